@@ -1,9 +1,54 @@
 DROP TABLE IF EXISTS RESOURCE_LOCK;
 CREATE TABLE RESOURCE_LOCK(
-    LOCK_KEY                 VARCHAR(64)    NOT NULL,
-    LOCK_NAME                VARCHAR(64)    NOT NULL,
-    LOCK_HOLDER              VARCHAR(64)    NOT NULL,
+    LOCK_ID                  BINARY(16)     NOT NULL,
+    LOCK_KEY                 VARCHAR(64)    CHARACTER SET ascii COLLATE ascii_bin NOT NULL,
+    LOCK_NAME                VARCHAR(255)   NOT NULL,
+    LOCK_HOLDER              VARCHAR(64)    CHARACTER SET ascii COLLATE ascii_bin NOT NULL,
     UPDATE_TIME              TIMESTAMP      DEFAULT CURRENT_TIMESTAMP,
     EXPIRED_TIME             TIMESTAMP      DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
-    PRIMARY KEY(LOCK_KEY,LOCK_NAME)
+    FENCING_TOKEN            BIGINT         NOT NULL AUTO_INCREMENT,
+    REVOKE_REQUESTED         TINYINT        NOT NULL DEFAULT 0,
+    PRIMARY KEY(LOCK_ID,LOCK_KEY),
+    UNIQUE KEY UK_FENCING_TOKEN(FENCING_TOKEN),
+    KEY IDX_LOCK_ID_EXPIRED_TIME(LOCK_ID,EXPIRED_TIME),
+    KEY IDX_EXPIRED_TIME(EXPIRED_TIME)
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8 COLLATE=utf8_general_ci;
+
+DROP TABLE IF EXISTS RESOURCE_PERMIT;
+CREATE TABLE RESOURCE_PERMIT(
+    LOCK_ID                  BINARY(16)     NOT NULL,
+    LOCK_NAME                VARCHAR(255)   NOT NULL,
+    CAPACITY                 INT            NOT NULL,
+    IN_USE                   INT            NOT NULL DEFAULT 0,
+    PRIMARY KEY(LOCK_ID)
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8 COLLATE=utf8_general_ci;
+
+DROP TABLE IF EXISTS RESOURCE_TICKET;
+CREATE TABLE RESOURCE_TICKET(
+    TICKET                   BIGINT         NOT NULL AUTO_INCREMENT,
+    LOCK_ID                  BINARY(16)     NOT NULL,
+    LOCK_HOLDER              VARCHAR(64)    CHARACTER SET ascii COLLATE ascii_bin NOT NULL,
+    EXPIRED_TIME             TIMESTAMP      DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    PRIMARY KEY(TICKET),
+    KEY IDX_LOCK_ID_TICKET(LOCK_ID,TICKET)
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8 COLLATE=utf8_general_ci;
+
+DROP TABLE IF EXISTS RESOURCE_LOCK_VERSION;
+CREATE TABLE RESOURCE_LOCK_VERSION(
+    LOCK_ID                  BINARY(16)     NOT NULL,
+    VERSION                  BIGINT         NOT NULL DEFAULT 0,
+    UPDATE_TIME              TIMESTAMP      DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    PRIMARY KEY(LOCK_ID),
+    KEY IDX_UPDATE_TIME(UPDATE_TIME)
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8 COLLATE=utf8_general_ci;
+
+DROP TABLE IF EXISTS RESOURCE_READ_WRITE;
+CREATE TABLE RESOURCE_READ_WRITE(
+    LOCK_ID                  BINARY(16)     NOT NULL,
+    LOCK_NAME                VARCHAR(255)   NOT NULL,
+    READERS                  INT            NOT NULL DEFAULT 0,
+    WRITERS                  INT            NOT NULL DEFAULT 0,
+    WRITE_INTENT             VARCHAR(64)    CHARACTER SET ascii COLLATE ascii_bin NULL DEFAULT NULL,
+    INTENT_EXPIRED_TIME      TIMESTAMP      NULL DEFAULT NULL,
+    PRIMARY KEY(LOCK_ID)
 ) ENGINE=InnoDB DEFAULT CHARSET=UTF8 COLLATE=utf8_general_ci;
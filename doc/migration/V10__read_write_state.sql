@@ -0,0 +1,17 @@
+-- Read and write locks claim a per-name state row with one conditional UPDATE, instead of
+-- inserting holder rows behind a NOT EXISTS check that relied on gap locks.
+--
+-- Stop every node before running it: held write locks and the intents of waiting writers are
+-- dropped, the new state rows start with no holder.
+
+DELETE FROM RESOURCE_LOCK WHERE LOCK_KEY = 'WRITE_INTENT' OR LOCK_KEY = 'WRITE_LOCK';
+
+CREATE TABLE RESOURCE_READ_WRITE(
+    LOCK_ID                  BINARY(16)     NOT NULL,
+    LOCK_NAME                VARCHAR(255)   NOT NULL,
+    READERS                  INT            NOT NULL DEFAULT 0,
+    WRITERS                  INT            NOT NULL DEFAULT 0,
+    WRITE_INTENT             VARCHAR(64)    CHARACTER SET ascii COLLATE ascii_bin NULL DEFAULT NULL,
+    INTENT_EXPIRED_TIME      TIMESTAMP      NULL DEFAULT NULL,
+    PRIMARY KEY(LOCK_ID)
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8 COLLATE=utf8_general_ci;
@@ -0,0 +1,11 @@
+-- Shared lock limits are enforced with one counter row per lock name
+-- (concurrent.lock.shared.permit-counter).
+--
+-- Safe to run while nodes are up, the rows are created on first use.
+
+CREATE TABLE RESOURCE_PERMIT(
+    LOCK_NAME                VARCHAR(64)    NOT NULL,
+    CAPACITY                 INT            NOT NULL,
+    IN_USE                   INT            NOT NULL DEFAULT 0,
+    PRIMARY KEY(LOCK_NAME)
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8 COLLATE=utf8_general_ci;
@@ -0,0 +1,7 @@
+-- Every holder row gets an increasing fencing token, returned by the INSERT that takes the lock.
+--
+-- Safe to run while nodes are up, existing rows are numbered by the migration.
+
+ALTER TABLE RESOURCE_LOCK
+    ADD COLUMN FENCING_TOKEN BIGINT NOT NULL AUTO_INCREMENT,
+    ADD UNIQUE KEY UK_FENCING_TOKEN(FENCING_TOKEN);
@@ -0,0 +1,6 @@
+-- Read and write locks look up every row of a lock name, not only the SINGLE_LOCK one.
+--
+-- Safe to run while nodes are up.
+
+ALTER TABLE RESOURCE_LOCK
+    ADD KEY IDX_LOCK_NAME(LOCK_NAME);
@@ -0,0 +1,12 @@
+-- Waiters take tickets and are granted in arrival order (concurrent.lock.fair).
+--
+-- Safe to run while nodes are up.
+
+CREATE TABLE RESOURCE_TICKET(
+    TICKET                   BIGINT         NOT NULL AUTO_INCREMENT,
+    LOCK_NAME                VARCHAR(64)    NOT NULL,
+    LOCK_HOLDER              VARCHAR(64)    NOT NULL,
+    EXPIRED_TIME             TIMESTAMP      DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    PRIMARY KEY(TICKET),
+    KEY IDX_LOCK_NAME_TICKET(LOCK_NAME,TICKET)
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8 COLLATE=utf8_general_ci;
@@ -0,0 +1,10 @@
+-- Unlocks bump a release version per lock name, waiters poll it instead of counting holders
+-- (concurrent.lock.wait.release-versions).
+--
+-- Safe to run while nodes are up, the rows are created on first use.
+
+CREATE TABLE RESOURCE_LOCK_VERSION(
+    LOCK_NAME                VARCHAR(64)    NOT NULL,
+    VERSION                  BIGINT         NOT NULL DEFAULT 0,
+    PRIMARY KEY(LOCK_NAME)
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8 COLLATE=utf8_general_ci;
@@ -0,0 +1,43 @@
+-- Lock names are keyed by LOCK_ID = UNHEX(MD5(LOCK_NAME)), the readable name is kept in
+-- RESOURCE_LOCK and RESOURCE_PERMIT. Holder keys are ASCII.
+--
+-- Stop every node before running it: held locks and queued tickets are dropped, the permit
+-- counters are reset to match.
+
+DELETE FROM RESOURCE_LOCK;
+DELETE FROM RESOURCE_TICKET;
+
+-- RESOURCE_LOCK: one name-first primary key serves acquire, release and renewal,
+-- IDX_LOCK_ID_EXPIRED_TIME the live count and IDX_EXPIRED_TIME the reaper
+ALTER TABLE RESOURCE_LOCK
+    DROP PRIMARY KEY,
+    DROP KEY IDX_LOCK_NAME,
+    ADD COLUMN LOCK_ID BINARY(16) NOT NULL FIRST,
+    MODIFY LOCK_KEY VARCHAR(64) CHARACTER SET ascii COLLATE ascii_bin NOT NULL,
+    MODIFY LOCK_NAME VARCHAR(255) NOT NULL,
+    MODIFY LOCK_HOLDER VARCHAR(64) CHARACTER SET ascii COLLATE ascii_bin NOT NULL,
+    ADD PRIMARY KEY(LOCK_ID,LOCK_KEY),
+    ADD KEY IDX_LOCK_ID_EXPIRED_TIME(LOCK_ID,EXPIRED_TIME),
+    ADD KEY IDX_EXPIRED_TIME(EXPIRED_TIME);
+
+ALTER TABLE RESOURCE_PERMIT
+    DROP PRIMARY KEY,
+    ADD COLUMN LOCK_ID BINARY(16) NOT NULL FIRST,
+    MODIFY LOCK_NAME VARCHAR(255) NOT NULL;
+UPDATE RESOURCE_PERMIT SET LOCK_ID = UNHEX(MD5(LOCK_NAME)), IN_USE = 0;
+ALTER TABLE RESOURCE_PERMIT ADD PRIMARY KEY(LOCK_ID);
+
+ALTER TABLE RESOURCE_TICKET
+    DROP KEY IDX_LOCK_NAME_TICKET,
+    DROP COLUMN LOCK_NAME,
+    ADD COLUMN LOCK_ID BINARY(16) NOT NULL AFTER TICKET,
+    MODIFY LOCK_HOLDER VARCHAR(64) CHARACTER SET ascii COLLATE ascii_bin NOT NULL,
+    ADD KEY IDX_LOCK_ID_TICKET(LOCK_ID,TICKET);
+
+ALTER TABLE RESOURCE_LOCK_VERSION
+    DROP PRIMARY KEY,
+    ADD COLUMN LOCK_ID BINARY(16) NOT NULL FIRST;
+UPDATE RESOURCE_LOCK_VERSION SET LOCK_ID = UNHEX(MD5(LOCK_NAME));
+ALTER TABLE RESOURCE_LOCK_VERSION
+    DROP COLUMN LOCK_NAME,
+    ADD PRIMARY KEY(LOCK_ID);
@@ -0,0 +1,7 @@
+-- Contenders flag an exclusive lock they failed to take, so a node keeping its released lease for
+-- the next local acquire (concurrent.lock.local-tier.sticky-millis) gives it up early.
+--
+-- Safe to run while nodes are up, existing rows start unflagged.
+
+ALTER TABLE RESOURCE_LOCK
+    ADD COLUMN REVOKE_REQUESTED TINYINT NOT NULL DEFAULT 0 AFTER FENCING_TOKEN;
@@ -0,0 +1,8 @@
+-- Release versions record when they were last bumped, so the reaper can delete the rows of names
+-- nobody used for concurrent.lock.reaper.version-idle-seconds.
+--
+-- Safe to run while nodes are up, existing rows start at the time of the migration.
+
+ALTER TABLE RESOURCE_LOCK_VERSION
+    ADD COLUMN UPDATE_TIME TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    ADD KEY IDX_UPDATE_TIME(UPDATE_TIME);
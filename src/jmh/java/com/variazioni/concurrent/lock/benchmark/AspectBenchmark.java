@@ -0,0 +1,168 @@
+package com.variazioni.concurrent.lock.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import com.variazioni.concurrent.lock.anno.ExclusiveLock;
+import com.variazioni.concurrent.lock.anno.SharedLock;
+import com.variazioni.concurrent.lock.service.LockRouter;
+
+/**
+ * Advice overhead of the annotations on the in-memory backend, against a method without one
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AspectBenchmark {
+
+  private AnnotationConfigApplicationContext context;
+
+  private Target target;
+
+  /**
+   * Annotated methods
+   */
+  public static class Target {
+
+    /**
+     * No lock
+     *
+     * @author Variazioni
+     * @param id
+     * @return long
+     */
+    public long plain(long id) {
+      return id;
+    }
+
+    /**
+     * Exclusive lock on the method
+     *
+     * @author Variazioni
+     * @param id
+     * @return long
+     */
+    @ExclusiveLock(timeout = 10)
+    public long exclusive(long id) {
+      return id;
+    }
+
+    /**
+     * Exclusive lock on the argument
+     *
+     * @author Variazioni
+     * @param id
+     * @return long
+     */
+    @ExclusiveLock(timeout = 10, key = "#id")
+    public long exclusiveByKey(long id) {
+      return id;
+    }
+
+    /**
+     * Shared lock on the method
+     *
+     * @author Variazioni
+     * @param id
+     * @return long
+     */
+    @SharedLock(timeout = 10, limit = 1024)
+    public long shared(long id) {
+      return id;
+    }
+  }
+
+  /**
+   * Start the context
+   *
+   * @author Variazioni
+   */
+  @Setup(Level.Trial)
+  public void setup() {
+    context = BenchmarkContext.open(LockRouter.MEMORY, Target.class);
+    target = context.getBean(Target.class);
+  }
+
+  /**
+   * Stop the context
+   *
+   * @author Variazioni
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+  }
+
+  /**
+   * Thread id, so uncontended calls use distinct keys
+   */
+  @State(Scope.Thread)
+  public static class Caller {
+    private final long id = Thread.currentThread().getId();
+  }
+
+  /**
+   * Baseline without advice
+   *
+   * @author Variazioni
+   * @param caller
+   * @return long
+   */
+  @Benchmark
+  public long plain(Caller caller) {
+    return target.plain(caller.id);
+  }
+
+  /**
+   * Exclusive lock advice, one lock name for every call
+   *
+   * @author Variazioni
+   * @param caller
+   * @return long
+   */
+  @Benchmark
+  public long exclusive(Caller caller) {
+    return target.exclusive(caller.id);
+  }
+
+  /**
+   * Exclusive lock advice with the key expression evaluated
+   *
+   * @author Variazioni
+   * @param caller
+   * @return long
+   */
+  @Benchmark
+  public long exclusiveByKey(Caller caller) {
+    return target.exclusiveByKey(caller.id);
+  }
+
+  /**
+   * Shared lock advice
+   *
+   * @author Variazioni
+   * @param caller
+   * @return long
+   */
+  @Benchmark
+  public long shared(Caller caller) {
+    return target.shared(caller.id);
+  }
+}
@@ -0,0 +1,169 @@
+package com.variazioni.concurrent.lock.benchmark;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import com.variazioni.concurrent.lock.config.LockAutoConfiguration;
+import com.variazioni.concurrent.lock.config.LockDatabaseAutoConfiguration;
+import com.variazioni.concurrent.lock.service.LockRouter;
+import com.zaxxer.hikari.HikariDataSource;
+import ch.vorburger.exec.ManagedProcessException;
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+
+/**
+ * Spring context of the benchmarks. The database backends run against an embedded MariaDB
+ * started once per benchmark JVM, with the tables of doc/create_tables.sql, the server backend
+ * against a lock server embedded in the context.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+final class BenchmarkContext {
+
+  /** Schema file, set by the build */
+  private static final String SCHEMA =
+      System.getProperty("concurrent.lock.schema", "doc/create_tables.sql");
+
+  private static final String DATABASE_NAME = "concurrent_lock";
+
+  private static String url;
+
+  private BenchmarkContext() {}
+
+  /**
+   * Start a context whose default backend is the given one
+   *
+   * @author Variazioni
+   * @param backend
+   * @param components Additional beans, for example the targets of the aspects
+   * @return AnnotationConfigApplicationContext
+   */
+  static AnnotationConfigApplicationContext open(String backend, Class<?>... components) {
+    AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("concurrent.lock.backend.default", backend);
+    properties.put("concurrent.lock.reaper.enabled", "false");
+    boolean database = LockRouter.DATABASE.equals(backend)
+        || LockRouter.LOCAL_TIER.equals(backend) || LockRouter.NAMED_LOCK.equals(backend);
+    if (database) {
+      properties.put("benchmark.database.url", database());
+    }
+    if (LockRouter.SERVER.equals(backend)) {
+      int port = freePort();
+      properties.put("concurrent.lock.server.embedded", "true");
+      properties.put("concurrent.lock.server.bind-address", "127.0.0.1");
+      properties.put("concurrent.lock.server.host", "127.0.0.1");
+      properties.put("concurrent.lock.server.port", port);
+    }
+    context.getEnvironment().getPropertySources()
+        .addFirst(new MapPropertySource("benchmark", properties));
+
+    // The database beans first, the database backends check for them
+    if (database) {
+      context.register(DatabaseConfiguration.class, LockDatabaseAutoConfiguration.class);
+    }
+    context.register(AspectConfiguration.class, LockAutoConfiguration.class);
+    if (components.length > 0) {
+      context.register(components);
+    }
+    context.refresh();
+    return context;
+  }
+
+  /**
+   * Embedded MariaDB, started on first use and stopped with the JVM
+   */
+  private static synchronized String database() {
+    if (url != null) {
+      return url;
+    }
+    try {
+      DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder().setPort(0);
+      DB db = DB.newEmbeddedDB(config.build());
+      db.start();
+      db.createDB(DATABASE_NAME);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          db.stop();
+        } catch (ManagedProcessException e) {
+          throw new IllegalStateException(e);
+        }
+      }));
+      url = config.getURL(DATABASE_NAME) + "?useSSL=false&rewriteBatchedStatements=true";
+
+      JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource(url));
+      String schema = new String(Files.readAllBytes(Paths.get(SCHEMA)), StandardCharsets.UTF_8);
+      for (String sql : schema.split(";")) {
+        if (!sql.trim().isEmpty()) {
+          jdbcTemplate.execute(sql);
+        }
+      }
+      return url;
+    } catch (ManagedProcessException | IOException e) {
+      throw new IllegalStateException("Starting the benchmark database failed!", e);
+    }
+  }
+
+  /**
+   * Port of the embedded lock server
+   */
+  private static int freePort() {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    } catch (IOException e) {
+      throw new IllegalStateException("No free port for the lock server!", e);
+    }
+  }
+
+  private static HikariDataSource dataSource(String url) {
+    HikariDataSource dataSource = new HikariDataSource();
+    dataSource.setJdbcUrl(url);
+    dataSource.setUsername("root");
+    dataSource.setMaximumPoolSize(128);
+    return dataSource;
+  }
+
+  /**
+   * Aspects on
+   */
+  @Configuration
+  @EnableAspectJAutoProxy(proxyTargetClass = true)
+  static class AspectConfiguration {}
+
+  /**
+   * Database beans of the embedded MariaDB
+   */
+  @Configuration
+  static class DatabaseConfiguration {
+
+    @Bean(destroyMethod = "close")
+    public HikariDataSource dataSource(@Value("${benchmark.database.url}") String url) {
+      return BenchmarkContext.dataSource(url);
+    }
+
+    @Bean
+    public JdbcTemplate jdbcTemplate(DataSource dataSource) {
+      return new JdbcTemplate(dataSource);
+    }
+
+    @Bean
+    public PlatformTransactionManager transactionManager(DataSource dataSource) {
+      return new DataSourceTransactionManager(dataSource);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.variazioni.concurrent.lock.benchmark;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.service.LockRouter;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * Acquire and release through a backend. Contended threads all use one lock name, uncontended
+ * threads each use their own. Contended, the holding benchmark compares how the backends wait:
+ * lockByNamedLock waiters sleep inside GET_LOCK, lockByDatabase waiters poll the table.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockBenchmark {
+
+  /** Wait long enough that contended acquisitions do not fail */
+  private static final Duration WAIT = Duration.ofSeconds(30);
+
+  /** Holders a shared lock admits */
+  private static final int SHARED_LIMIT = 8;
+
+  /** Time the holding benchmark keeps the lock */
+  private static final long HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Param({LockRouter.MEMORY, LockRouter.DATABASE, LockRouter.NAMED_LOCK, LockRouter.SERVER})
+  public String backend;
+
+  @Param({"false", "true"})
+  public boolean contended;
+
+  private final AtomicInteger threads = new AtomicInteger();
+
+  private AnnotationConfigApplicationContext context;
+
+  private Lock lock;
+
+  /**
+   * Start the context
+   *
+   * @author Variazioni
+   */
+  @Setup(Level.Trial)
+  public void setup() {
+    context = BenchmarkContext.open(backend);
+    lock = context.getBean(LockRouter.class).backend(backend);
+  }
+
+  /**
+   * Stop the context
+   *
+   * @author Variazioni
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+  }
+
+  /**
+   * Lock name and key of one benchmark thread
+   */
+  @State(Scope.Thread)
+  public static class Caller {
+    private String lockName;
+    private String lockKey;
+
+    /**
+     * Pick the lock name
+     *
+     * @author Variazioni
+     * @param benchmark
+     */
+    @Setup(Level.Trial)
+    public void setup(LockBenchmark benchmark) {
+      int thread = benchmark.threads.incrementAndGet();
+      lockName = benchmark.contended ? "benchmark" : "benchmark-" + thread;
+      lockKey = LockIds.holderKey();
+    }
+  }
+
+  /**
+   * Exclusive acquire and release
+   *
+   * @author Variazioni
+   * @param caller
+   * @return boolean
+   */
+  @Benchmark
+  public boolean exclusive(Caller caller) {
+    boolean locked = lock.lock(caller.lockName, caller.lockKey, 10, WAIT);
+    if (locked) {
+      lock.unlock(caller.lockName, caller.lockKey);
+    }
+    return locked;
+  }
+
+  /**
+   * Shared acquire and release
+   *
+   * @author Variazioni
+   * @param caller
+   * @return boolean
+   */
+  @Benchmark
+  public boolean shared(Caller caller) {
+    boolean locked = lock.lock(caller.lockName, caller.lockKey, SHARED_LIMIT, 10, WAIT);
+    if (locked) {
+      lock.unlock(caller.lockName, caller.lockKey);
+    }
+    return locked;
+  }
+
+  /**
+   * Exclusive acquire, a millisecond of work, release, so contended waiters pile up
+   *
+   * @author Variazioni
+   * @param caller
+   * @return boolean
+   */
+  @Benchmark
+  public boolean exclusiveHolding(Caller caller) {
+    boolean locked = lock.lock(caller.lockName, caller.lockKey, 10, WAIT);
+    if (locked) {
+      LockSupport.parkNanos(HOLD_NANOS);
+      lock.unlock(caller.lockName, caller.lockKey);
+    }
+    return locked;
+  }
+}
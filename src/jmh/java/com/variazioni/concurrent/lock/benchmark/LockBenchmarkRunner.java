@@ -0,0 +1,40 @@
+package com.variazioni.concurrent.lock.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks at 1, 4, 16 and 64 threads, with the allocation rate of the GC profiler.
+ * Arguments are the benchmark pattern and the result directory.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public final class LockBenchmarkRunner {
+
+  private static final int[] THREADS = {1, 4, 16, 64};
+
+  private LockBenchmarkRunner() {}
+
+  /**
+   * Thread sweep
+   *
+   * @author Variazioni
+   * @param args
+   * @throws RunnerException
+   */
+  public static void main(String[] args) throws RunnerException {
+    String include = args.length > 0 ? args[0] : LockBenchmarkRunner.class.getPackage().getName();
+    String directory = args.length > 1 ? args[1] : "build/reports/jmh";
+    for (int threads : THREADS) {
+      ChainedOptionsBuilder options = new OptionsBuilder().include(include).threads(threads)
+          .addProfiler(GCProfiler.class).resultFormat(ResultFormatType.JSON)
+          .result(directory + "/results-" + threads + "-threads.json");
+      new Runner(options.build()).run();
+    }
+  }
+}
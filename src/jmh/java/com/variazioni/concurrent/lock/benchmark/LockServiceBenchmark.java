@@ -0,0 +1,109 @@
+package com.variazioni.concurrent.lock.benchmark;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import com.variazioni.concurrent.lock.LockHandle;
+import com.variazioni.concurrent.lock.exception.LockException;
+import com.variazioni.concurrent.lock.service.LockRouter;
+import com.variazioni.concurrent.lock.service.LockService;
+
+/**
+ * LockService on the in-memory backend, so the service bookkeeping is what is measured
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockServiceBenchmark {
+
+  private AnnotationConfigApplicationContext context;
+
+  private LockService lockService;
+
+  /**
+   * Start the context
+   *
+   * @author Variazioni
+   */
+  @Setup(Level.Trial)
+  public void setup() {
+    context = BenchmarkContext.open(LockRouter.MEMORY);
+    lockService = context.getBean(LockService.class);
+  }
+
+  /**
+   * Stop the context
+   *
+   * @author Variazioni
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+  }
+
+  /**
+   * Lock name of one benchmark thread
+   */
+  @State(Scope.Thread)
+  public static class Caller {
+    private final String lockName = "benchmark-" + Thread.currentThread().getId();
+  }
+
+  /**
+   * Exclusive lock and unlock through the service
+   *
+   * @author Variazioni
+   * @param caller
+   * @throws LockException
+   */
+  @Benchmark
+  public void exclusive(Caller caller) throws LockException {
+    lockService.lock(caller.lockName, 10, Duration.ZERO);
+    lockService.unlock(caller.lockName);
+  }
+
+  /**
+   * Shared lock and unlock through the service
+   *
+   * @author Variazioni
+   * @param caller
+   * @throws LockException
+   */
+  @Benchmark
+  public void shared(Caller caller) throws LockException {
+    lockService.lock(caller.lockName, 10, 8, Duration.ZERO);
+    lockService.unlock(caller.lockName);
+  }
+
+  /**
+   * Exclusive lock released through its handle
+   *
+   * @author Variazioni
+   * @param caller
+   * @throws LockException
+   */
+  @Benchmark
+  public void handle(Caller caller) throws LockException {
+    try (LockHandle handle = lockService.lock(caller.lockName, 10, Duration.ZERO)) {
+      handle.getLockKey();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.variazioni.concurrent.lock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import com.variazioni.concurrent.lock.util.AppConst;
+
+/**
+ * Handle of several exclusive locks taken together. Releasing it releases all of them, from any
+ * thread, and closing it releases it too. The names may have been acquired with different lockKeys
+ * when some of them were re-entered; the lock name, lockKey and fencing token of the handle itself
+ * are those of the first name.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class CompositeLockHandle extends LockHandle {
+
+  private final Lock lock;
+  private final Map<String, String> lockKeys;
+
+  /**
+   * Constructor
+   *
+   * @param lock
+   * @param lockKeys Lock names in order to the lockKey each was acquired with
+   * @param unlock Run by the first release
+   */
+  public CompositeLockHandle(Lock lock, Map<String, String> lockKeys, BooleanSupplier unlock) {
+    super(lock, first(lockKeys), lockKeys.get(first(lockKeys)), true, unlock);
+    this.lock = lock;
+    this.lockKeys = Collections.unmodifiableMap(lockKeys);
+  }
+
+  /**
+   * Getter
+   *
+   * @author Variazioni
+   * @return List
+   */
+  public List<String> getLockNames() {
+    return new ArrayList<String>(lockKeys.keySet());
+  }
+
+  /**
+   * Fencing token of one of the names
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return long AppConst.NO_FENCING_TOKEN if the handle does not cover the name
+   */
+  public long getFencingToken(String lockName) {
+    String lockKey = lockKeys.get(lockName);
+    return lockKey == null ? AppConst.NO_FENCING_TOKEN : lock.getFencingToken(lockName, lockKey);
+  }
+
+  /**
+   * Lock timeout of every name extended, may be called from any thread
+   *
+   * @author Variazioni
+   * @param second
+   * @return boolean false if the handle was released or a lock has timed out
+   */
+  @Override
+  public boolean extend(int second) {
+    if (isReleased()) {
+      return false;
+    }
+    boolean result = true;
+    for (Map.Entry<String, String> entry : lockKeys.entrySet()) {
+      result &= lock.extendLock(entry.getKey(), entry.getValue(), second);
+    }
+    return result;
+  }
+
+  private static String first(Map<String, String> lockKeys) {
+    return lockKeys.isEmpty() ? null : lockKeys.keySet().iterator().next();
+  }
+}
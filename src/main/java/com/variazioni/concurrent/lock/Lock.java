@@ -1,5 +1,16 @@
 package com.variazioni.concurrent.lock;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import com.variazioni.concurrent.lock.util.AppConst;
+import com.variazioni.concurrent.lock.wait.LockReleaseNotifier;
+import com.variazioni.concurrent.lock.wait.LockWaitScheduler;
+import com.variazioni.concurrent.lock.wait.LockWaiter;
+
 /**
  * Resource lock interface
  * 
@@ -28,8 +39,25 @@ public interface Lock {
    * @param wait
    * @return boolean
    */
-  public boolean lock(String lockName, String lockKey, int limit, int timeout, Boolean wait);
+  public default boolean lock(String lockName, String lockKey, int limit, int timeout,
+      Boolean wait) {
+    return lock(lockName, lockKey, limit, timeout,
+        Boolean.FALSE.equals(wait) ? Duration.ZERO : AppConst.DEFAULT_WAIT_TIMEOUT);
+  }
 
+  /**
+   * Shared lock, waiting at most waitTimeout
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout Zero means one attempt only
+   * @return boolean
+   */
+  public boolean lock(String lockName, String lockKey, int limit, int timeout,
+      Duration waitTimeout);
 
   /**
    * Exclusive lock
@@ -41,7 +69,55 @@ public interface Lock {
    * @param wait
    * @return boolean
    */
-  public boolean lock(String lockName, String lockKey, int lockinTime, Boolean wait);
+  public default boolean lock(String lockName, String lockKey, int lockinTime, Boolean wait) {
+    return lock(lockName, lockKey, lockinTime,
+        Boolean.FALSE.equals(wait) ? Duration.ZERO : AppConst.DEFAULT_WAIT_TIMEOUT);
+  }
+
+  /**
+   * Exclusive lock, waiting at most waitTimeout
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param lockinTime
+   * @param waitTimeout Zero means one attempt only
+   * @return boolean
+   */
+  public boolean lock(String lockName, String lockKey, int lockinTime, Duration waitTimeout);
+
+  /**
+   * Read lock, waiting at most waitTimeout. Readers share the lock with each other and exclude
+   * writers.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout Zero means one attempt only
+   * @return boolean
+   */
+  public default boolean readLock(String lockName, String lockKey, int timeout,
+      Duration waitTimeout) {
+    throw new UnsupportedOperationException(
+        "Read/write locks are not supported by " + getClass().getSimpleName() + "!");
+  }
+
+  /**
+   * Write lock, waiting at most waitTimeout. A writer excludes readers and other writers.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout Zero means one attempt only
+   * @return boolean
+   */
+  public default boolean writeLock(String lockName, String lockKey, int timeout,
+      Duration waitTimeout) {
+    throw new UnsupportedOperationException(
+        "Read/write locks are not supported by " + getClass().getSimpleName() + "!");
+  }
 
   /**
    * Unlock
@@ -54,13 +130,39 @@ public interface Lock {
   public boolean unlock(String lockName, String lockKey);
 
   /**
-   * Waiting to unlock
+   * Waiting to unlock, at most the default wait timeout
    * 
    * @author Variazioni
    * @param lockName
    * @return boolean
    */
-  public boolean waitLock(String lockName);
+  public default boolean waitLock(String lockName) {
+    return waitLock(lockName, AppConst.DEFAULT_WAIT_TIMEOUT);
+  }
+
+  /**
+   * Waiting until no lock of the name is held, at most waitTimeout
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout Zero means one check only
+   * @return boolean false at the deadline or when the locks cannot be counted
+   */
+  public boolean waitLock(String lockName, Duration waitTimeout);
+
+  /**
+   * Waiting until no lock of the name is held without blocking the caller. The waiting is driven
+   * by the shared LockWaitScheduler, releases on this node trigger a check at once.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return CompletableFuture true when released, false when the deadline passed
+   */
+  public default CompletableFuture<Boolean> waitLockAsync(String lockName, Duration waitTimeout) {
+    return LockReleaseNotifier.getDefault().submit(lockName, waitTimeout, null,
+        () -> locksCount(lockName));
+  }
 
   /**
    * Lock timeout extended
@@ -72,4 +174,126 @@ public interface Lock {
    * @return boolean
    */
   public boolean extendLock(String lockName, String lockKey, int timeout);
+
+  /**
+   * Fencing token of a held lock. Tokens increase monotonically per lock name with every
+   * acquisition, so storage written under the lock can reject writes of an older holder.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return long AppConst.NO_FENCING_TOKEN if the lock is not held or has no token
+   */
+  public default long getFencingToken(String lockName, String lockKey) {
+    return AppConst.NO_FENCING_TOKEN;
+  }
+
+  /**
+   * Shared lock without blocking the caller. The waiting is driven by the shared
+   * LockWaitScheduler.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture true when locked, false when the deadline passed
+   */
+  public default CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int limit,
+      int timeout, Duration waitTimeout) {
+    return LockWaitScheduler.getDefault().submit(lockName,
+        () -> lock(lockName, lockKey, limit, timeout, Duration.ZERO),
+        () -> unlock(lockName, lockKey), waitTimeout);
+  }
+
+  /**
+   * Exclusive lock without blocking the caller. The waiting is driven by the shared
+   * LockWaitScheduler.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture true when locked, false when the deadline passed
+   */
+  public default CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int timeout,
+      Duration waitTimeout) {
+    return LockWaitScheduler.getDefault().submit(lockName,
+        () -> lock(lockName, lockKey, timeout, Duration.ZERO), () -> unlock(lockName, lockKey),
+        waitTimeout);
+  }
+
+  /**
+   * Shared lock, one attempt without blocking the caller
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @return CompletableFuture
+   */
+  public default CompletableFuture<Boolean> tryLockAsync(String lockName, String lockKey,
+      int limit, int timeout) {
+    return lockAsync(lockName, lockKey, limit, timeout, Duration.ZERO);
+  }
+
+  /**
+   * Exclusive lock, one attempt without blocking the caller
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return CompletableFuture
+   */
+  public default CompletableFuture<Boolean> tryLockAsync(String lockName, String lockKey,
+      int timeout) {
+    return lockAsync(lockName, lockKey, timeout, Duration.ZERO);
+  }
+
+  /**
+   * Exclusive lock on all names, all or nothing. Names are acquired in their natural order, so
+   * callers locking overlapping sets cannot deadlock. The default implementation locks them one by
+   * one and releases the acquired ones on failure.
+   * 
+   * @author Variazioni
+   * @param lockNames
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  public default boolean lockAll(Collection<String> lockNames, String lockKey, int timeout,
+      Duration waitTimeout) {
+    long deadline = System.nanoTime() + LockWaiter.toNanos(waitTimeout);
+    List<String> acquired = new ArrayList<String>(lockNames.size());
+    for (String lockName : new TreeSet<String>(lockNames)) {
+      Duration remaining = Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+      if (!lock(lockName, lockKey, timeout, remaining)) {
+        unlockAll(acquired, lockKey);
+        return false;
+      }
+      acquired.add(lockName);
+    }
+    return true;
+  }
+
+  /**
+   * Unlock all names
+   * 
+   * @author Variazioni
+   * @param lockNames
+   * @param lockKey
+   * @return boolean
+   */
+  public default boolean unlockAll(Collection<String> lockNames, String lockKey) {
+    boolean result = true;
+    for (String lockName : lockNames) {
+      result &= unlock(lockName, lockKey);
+    }
+    return result;
+  }
 }
@@ -0,0 +1,21 @@
+package com.variazioni.concurrent.lock;
+
+/**
+ * Chooses the lock backend of a lock name. Every resolver bean is asked before the configured
+ * routes, the first non-null answer wins.
+ * 
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public interface LockBackendResolver {
+
+  /**
+   * Backend of a lock name
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @return String Bean name of a Lock implementation, null to leave the choice to the next
+   *         resolver or the configured routes
+   */
+  public String resolve(String lockName);
+}
@@ -0,0 +1,133 @@
+package com.variazioni.concurrent.lock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Handle of one acquired lock. It carries the lockKey of the acquisition, so releasing or
+ * extending it needs no lookup and works from any thread. A handle is released once, closing it
+ * releases it too.
+ * 
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class LockHandle implements AutoCloseable {
+
+  private final Lock lock;
+  private final String lockName;
+  private final String lockKey;
+  private final boolean exclusive;
+  private final BooleanSupplier unlock;
+  private final AtomicBoolean released = new AtomicBoolean();
+
+  /**
+   * Constructor, releasing unlocks the lock
+   * 
+   * @param lock
+   * @param lockName
+   * @param lockKey
+   * @param exclusive
+   */
+  public LockHandle(Lock lock, String lockName, String lockKey, boolean exclusive) {
+    this(lock, lockName, lockKey, exclusive, () -> lock.unlock(lockName, lockKey));
+  }
+
+  /**
+   * Constructor
+   * 
+   * @param lock
+   * @param lockName
+   * @param lockKey
+   * @param exclusive
+   * @param unlock Run by the first release
+   */
+  public LockHandle(Lock lock, String lockName, String lockKey, boolean exclusive,
+      BooleanSupplier unlock) {
+    this.lock = lock;
+    this.lockName = lockName;
+    this.lockKey = lockKey;
+    this.exclusive = exclusive;
+    this.unlock = unlock;
+  }
+
+  /**
+   * Getter
+   * 
+   * @author Variazioni
+   * @return String
+   */
+  public String getLockName() {
+    return lockName;
+  }
+
+  /**
+   * Getter
+   * 
+   * @author Variazioni
+   * @return String
+   */
+  public String getLockKey() {
+    return lockKey;
+  }
+
+  /**
+   * Getter
+   * 
+   * @author Variazioni
+   * @return boolean
+   */
+  public boolean isExclusive() {
+    return exclusive;
+  }
+
+  /**
+   * Fencing token of this acquisition
+   * 
+   * @author Variazioni
+   * @return long
+   */
+  public long getFencingToken() {
+    return lock.getFencingToken(lockName, lockKey);
+  }
+
+  /**
+   * Getter
+   * 
+   * @author Variazioni
+   * @return boolean
+   */
+  public boolean isReleased() {
+    return released.get();
+  }
+
+  /**
+   * Unlock, may be called from any thread
+   * 
+   * @author Variazioni
+   * @return boolean false if the handle was released before or the unlock failed
+   */
+  public boolean release() {
+    return released.compareAndSet(false, true) && unlock.getAsBoolean();
+  }
+
+  /**
+   * Lock timeout extended, may be called from any thread
+   * 
+   * @author Variazioni
+   * @param second
+   * @return boolean false if the handle was released or the lock has timed out
+   */
+  public boolean extend(int second) {
+    return !released.get() && lock.extendLock(lockName, lockKey, second);
+  }
+
+  /**
+   * Release, for try-with-resources
+   * 
+   * @author Variazioni
+   */
+  @Override
+  public void close() {
+    release();
+  }
+}
@@ -0,0 +1,23 @@
+package com.variazioni.concurrent.lock;
+
+import java.lang.reflect.Method;
+
+/**
+ * Derives the resource key of an annotated method call from its arguments, for keys a SpEL
+ * expression cannot express well
+ * 
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public interface LockKeyResolver {
+
+  /**
+   * Resource key of a call
+   * 
+   * @author Variazioni
+   * @param method
+   * @param args
+   * @return String Appended to the lock name of the method, null locks the whole method
+   */
+  public String resolve(Method method, Object[] args);
+}
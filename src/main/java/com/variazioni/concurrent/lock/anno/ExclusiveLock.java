@@ -25,4 +25,54 @@ public @interface ExclusiveLock {
    */
   public int timeout();
 
+  /**
+   * Maximum waiting milliseconds for the lock, 0 means one attempt only
+   * 
+   * @author Variazioni
+   * @return long
+   */
+  public long waitTimeout() default 600000L;
+
+  /**
+   * Queue threads of this node on a local gate first, only the head goes to the database
+   * 
+   * @author Variazioni
+   * @return boolean
+   */
+  public boolean localTier() default false;
+
+  /**
+   * Bean name of the lock backend, empty to route by lock name
+   * 
+   * @author Variazioni
+   * @return String
+   */
+  public String backend() default "";
+
+  /**
+   * SpEL expression over the method arguments giving the locked resource, for example
+   * "#accountId" or "#p0.id". Calls on different resources take different locks. The value must
+   * be a string, number, boolean, character or enum, its text is the same on every node.
+   * 
+   * @author Variazioni
+   * @return String
+   */
+  public String key() default "";
+
+  /**
+   * Bean name of a LockKeyResolver giving the locked resource, instead of a key expression
+   * 
+   * @author Variazioni
+   * @return String
+   */
+  public String keyResolver() default "";
+
+  /**
+   * Hash the resource keys into this many lock names, 0 takes one lock name per key. Bounds the
+   * number of lock rows, unrelated keys in the same stripe contend.
+   * 
+   * @author Variazioni
+   * @return int
+   */
+  public int stripes() default 0;
 }
@@ -0,0 +1,51 @@
+package com.variazioni.concurrent.lock.anno;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Exclusive lock on several resources annotation class, all or nothing
+ * 
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ExclusiveLocks {
+
+  /**
+   * Lock names
+   * 
+   * @author Variazioni
+   * @return String[]
+   */
+  public String[] names();
+
+  /**
+   * Timeout second
+   * 
+   * @author Variazioni
+   * @return int
+   */
+  public int timeout();
+
+  /**
+   * Maximum waiting milliseconds for the locks, 0 means one attempt only
+   * 
+   * @author Variazioni
+   * @return long
+   */
+  public long waitTimeout() default 600000L;
+
+  /**
+   * Bean name of the lock backend, empty to route by lock name
+   * 
+   * @author Variazioni
+   * @return String
+   */
+  public String backend() default "";
+}
@@ -0,0 +1,52 @@
+package com.variazioni.concurrent.lock.anno;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Read lock annotation class. Methods reading the same resource run together, a writer
+ * excludes them all.
+ * 
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ReadLock {
+
+  /**
+   * Lock name, shared by the read and write lock annotations of one resource
+   * 
+   * @author Variazioni
+   * @return String
+   */
+  public String name();
+
+  /**
+   * Timeout second
+   * 
+   * @author Variazioni
+   * @return int
+   */
+  public int timeout();
+
+  /**
+   * Maximum waiting milliseconds for the lock, 0 means one attempt only
+   * 
+   * @author Variazioni
+   * @return long
+   */
+  public long waitTimeout() default 600000L;
+
+  /**
+   * Bean name of the lock backend, empty to route by lock name
+   * 
+   * @author Variazioni
+   * @return String
+   */
+  public String backend() default "";
+}
@@ -0,0 +1,164 @@
+package com.variazioni.concurrent.lock.aspect;
+
+import java.lang.annotation.Annotation;
+import java.time.Duration;
+import java.util.List;
+import org.aspectj.lang.ProceedingJoinPoint;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.service.LockRouter;
+
+/**
+ * Lock metadata of an advised method, resolved on its first call: the lock name template or the
+ * fixed lock names, the backend when it does not depend on the call, the wait timeout and the
+ * error messages. Later calls only evaluate the key, if there is one.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+final class AdvisedMethod {
+
+  private final Annotation annotation;
+  private final LockNames.Template lockName;
+  private final List<String> lockNames;
+  private final Lock lock;
+  private final Duration waitTimeout;
+  private final ReleaseFailurePolicy releaseFailure;
+  private final String lockingError;
+  private final String unlockingError;
+
+  /**
+   * Constructor
+   *
+   * @param proceedingJoinPoint
+   * @param annotation
+   * @param lockName Template of the lock name, null for several fixed lock names
+   * @param lockNames Fixed lock names, null for one lock name
+   * @param lock Backend, null to route every call by its lock name
+   * @param waitTimeout
+   * @param releaseFailure
+   */
+  AdvisedMethod(ProceedingJoinPoint proceedingJoinPoint, Annotation annotation,
+      LockNames.Template lockName, List<String> lockNames, Lock lock, long waitTimeout,
+      ReleaseFailurePolicy releaseFailure) {
+    String method = proceedingJoinPoint.getSignature().getDeclaringType().toString() + "."
+        + proceedingJoinPoint.getSignature().getName();
+    this.annotation = annotation;
+    this.lockName = lockName;
+    this.lockNames = lockNames;
+    this.lock = lock;
+    this.waitTimeout = Duration.ofMillis(waitTimeout);
+    this.releaseFailure = releaseFailure;
+    this.lockingError = method + "locking error!";
+    this.unlockingError = method + "unlocking error!";
+  }
+
+  /**
+   * Whether it was resolved from the annotation of a call. An interface method advised on several
+   * implementations may carry a different annotation on each.
+   *
+   * @author Variazioni
+   * @param annotation
+   * @return boolean
+   */
+  boolean isFor(Annotation annotation) {
+    return this.annotation == annotation;
+  }
+
+  /**
+   * Lock name of a call
+   *
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @return String
+   */
+  String lockName(ProceedingJoinPoint proceedingJoinPoint) {
+    return lockName.lockName(proceedingJoinPoint);
+  }
+
+  /**
+   * Fixed lock names, sorted and distinct
+   *
+   * @author Variazioni
+   * @return List
+   */
+  List<String> lockNames() {
+    return lockNames;
+  }
+
+  /**
+   * Backend of a call
+   *
+   * @author Variazioni
+   * @param router
+   * @param backend
+   * @param lockName
+   * @return Lock
+   */
+  Lock lock(LockRouter router, String backend, String lockName) {
+    return lock != null ? lock : router.route(backend, lockName);
+  }
+
+  /**
+   * Getter
+   *
+   * @author Variazioni
+   * @return Duration
+   */
+  Duration getWaitTimeout() {
+    return waitTimeout;
+  }
+
+  /**
+   * Exception of a failed acquisition
+   *
+   * @author Variazioni
+   * @return RuntimeException
+   */
+  RuntimeException lockingError() {
+    return new RuntimeException(lockingError);
+  }
+
+  /**
+   * Release a lock, applying the release failure policy if that fails
+   *
+   * @author Variazioni
+   * @param lock
+   * @param lockName
+   * @param lockKey
+   * @param failure Exception of the method, null if it returned
+   */
+  void unlock(Lock lock, String lockName, String lockKey, Throwable failure) {
+    boolean released = false;
+    RuntimeException cause = null;
+    try {
+      released = lock.unlock(lockName, lockKey);
+    } catch (RuntimeException e) {
+      cause = e;
+    }
+    if (!released) {
+      releaseFailure.failed(unlockingError, cause, failure);
+    }
+  }
+
+  /**
+   * Release several locks, applying the release failure policy if that fails
+   *
+   * @author Variazioni
+   * @param lock
+   * @param lockNames
+   * @param lockKey
+   * @param failure Exception of the method, null if it returned
+   */
+  void unlockAll(Lock lock, List<String> lockNames, String lockKey, Throwable failure) {
+    boolean released = false;
+    RuntimeException cause = null;
+    try {
+      released = lock.unlockAll(lockNames, lockKey);
+    } catch (RuntimeException e) {
+      cause = e;
+    }
+    if (!released) {
+      releaseFailure.failed(unlockingError, cause, failure);
+    }
+  }
+}
@@ -1,14 +1,20 @@
 package com.variazioni.concurrent.lock.aspect;
 
-import java.util.UUID;
-import javax.annotation.Resource;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import com.variazioni.concurrent.lock.Lock;
 import com.variazioni.concurrent.lock.anno.ExclusiveLock;
+import com.variazioni.concurrent.lock.service.LockHolds;
+import com.variazioni.concurrent.lock.service.LockRouter;
+import com.variazioni.concurrent.lock.util.LockIds;
 
 /**
  * Exclusive lock aspect class
@@ -20,8 +26,19 @@ import com.variazioni.concurrent.lock.anno.ExclusiveLock;
 @Component
 public class ExclusiveLockAspect {
 
-  @Resource(name = "lockByDatabase")
-  private Lock lock;
+  @Autowired
+  private LockRouter router;
+
+  @Autowired
+  private LockNames lockNames;
+
+  /** What an advised method does when its lock cannot be released */
+  @Value("${concurrent.lock.release-failure:THROW}")
+  private ReleaseFailurePolicy releaseFailure;
+
+  /** Metadata per advised method */
+  private final ConcurrentHashMap<Method, AdvisedMethod> methods =
+      new ConcurrentHashMap<Method, AdvisedMethod>();
 
   /**
    * Pointcut
@@ -43,27 +60,64 @@ public class ExclusiveLockAspect {
   @Around("@annotation(exclusiveLock)")
   public Object exclusiveLockAround(ProceedingJoinPoint proceedingJoinPoint,
       ExclusiveLock exclusiveLock) throws Throwable {
-    Object returnValue = null;
+    AdvisedMethod advised = advised(proceedingJoinPoint, exclusiveLock);
+    String lockName = advised.lockName(proceedingJoinPoint);
 
-    String lockKey =
-        UUID.randomUUID().toString().replace("-", "") + ":" + Thread.currentThread().getId();
-    String lockName = proceedingJoinPoint.getSignature().getDeclaringType().toString() + "."
-        + proceedingJoinPoint.getSignature().getName();
+    // Re-entry, no database round trip
+    if (LockHolds.reenter(LockHolds.EXCLUSIVE, lockName)) {
+      try {
+        return proceedingJoinPoint.proceed();
+      } finally {
+        LockHolds.release(LockHolds.EXCLUSIVE, lockName);
+      }
+    }
+
+    String lockKey = LockIds.holderKey();
+    Lock lock = advised.lock(router, exclusiveLock.backend(), lockName);
 
     // Preposition
-    if (!lock.lock(lockName, lockKey, exclusiveLock.timeout(), true)) {
-      throw new RuntimeException(proceedingJoinPoint.getSignature().getDeclaringType().toString()
-          + "." + proceedingJoinPoint.getSignature().getName() + "locking error!");
+    if (!lock.lock(lockName, lockKey, exclusiveLock.timeout(), advised.getWaitTimeout())) {
+      throw advised.lockingError();
     }
 
-    Object[] args = proceedingJoinPoint.getArgs();
-    returnValue = proceedingJoinPoint.proceed(args);
+    LockHolds.acquired(LockHolds.EXCLUSIVE, lockName, lockKey,
+        lock.getFencingToken(lockName, lockKey));
+    Throwable failure = null;
+    try {
+      return proceedingJoinPoint.proceed();
+    } catch (Throwable e) {
+      failure = e;
+      throw e;
+    } finally {
+      LockHolds.release(LockHolds.EXCLUSIVE, lockName);
+      // Postposition, after an exception too, so the lock does not wait for its lease
+      advised.unlock(lock, lockName, lockKey, failure);
+    }
+  }
 
-    // Postposition
-    if (!lock.unlock(lockName, lockKey)) {
-      throw new RuntimeException(proceedingJoinPoint.getSignature().getDeclaringType().toString()
-          + "." + proceedingJoinPoint.getSignature().getName() + "unlocking error!");
+  /**
+   * Metadata of the method of a call, resolved on its first call
+   * 
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @param exclusiveLock
+   * @return AdvisedMethod
+   */
+  private AdvisedMethod advised(ProceedingJoinPoint proceedingJoinPoint,
+      ExclusiveLock exclusiveLock) {
+    Method method = ((MethodSignature) proceedingJoinPoint.getSignature()).getMethod();
+    AdvisedMethod advised = methods.get(method);
+    if (advised == null || !advised.isFor(exclusiveLock)) {
+      LockNames.Template template = lockNames.template(proceedingJoinPoint, exclusiveLock.key(),
+          exclusiveLock.keyResolver(), exclusiveLock.stripes());
+      Lock lock = exclusiveLock.localTier() ? router.backend(LockRouter.LOCAL_TIER)
+          : template.fixedName() != null || !exclusiveLock.backend().isEmpty()
+              ? router.route(exclusiveLock.backend(), template.fixedName())
+              : null;
+      advised = new AdvisedMethod(proceedingJoinPoint, exclusiveLock, template, null, lock,
+          exclusiveLock.waitTimeout(), releaseFailure);
+      methods.put(method, advised);
     }
-    return returnValue;
+    return advised;
   }
 }
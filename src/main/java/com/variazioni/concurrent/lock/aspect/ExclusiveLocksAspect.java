@@ -0,0 +1,142 @@
+package com.variazioni.concurrent.lock.aspect;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.annotation.Pointcut;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.anno.ExclusiveLocks;
+import com.variazioni.concurrent.lock.service.LockHolds;
+import com.variazioni.concurrent.lock.service.LockRouter;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * Exclusive lock on several resources aspect class
+ * 
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Aspect
+@Component
+public class ExclusiveLocksAspect {
+
+  @Autowired
+  private LockRouter router;
+
+  /** What an advised method does when its locks cannot be released */
+  @Value("${concurrent.lock.release-failure:THROW}")
+  private ReleaseFailurePolicy releaseFailure;
+
+  /** Metadata per advised method */
+  private final ConcurrentHashMap<Method, AdvisedMethod> methods =
+      new ConcurrentHashMap<Method, AdvisedMethod>();
+
+  /**
+   * Pointcut
+   * 
+   * @author Variazioni
+   */
+  @Pointcut("@annotation(com.variazioni.concurrent.lock.anno.ExclusiveLocks)")
+  public void addExclusiveLocksAdvice() {}
+
+  /**
+   * Around notice
+   * 
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @param exclusiveLocks
+   * @return Object
+   * @throws Throwable
+   */
+  @Around("@annotation(exclusiveLocks)")
+  public Object exclusiveLocksAround(ProceedingJoinPoint proceedingJoinPoint,
+      ExclusiveLocks exclusiveLocks) throws Throwable {
+    AdvisedMethod advised = advised(proceedingJoinPoint, exclusiveLocks);
+
+    // Names held by this thread are re-entered, the lists are only copied if one is
+    List<String> reentered = Collections.emptyList();
+    List<String> lockNames = advised.lockNames();
+    for (int i = 0; i < advised.lockNames().size(); i++) {
+      String lockName = advised.lockNames().get(i);
+      if (LockHolds.reenter(LockHolds.EXCLUSIVE, lockName)) {
+        if (reentered.isEmpty()) {
+          reentered = new ArrayList<String>();
+          lockNames = new ArrayList<String>(advised.lockNames().subList(0, i));
+        }
+        reentered.add(lockName);
+      } else if (!reentered.isEmpty()) {
+        lockNames.add(lockName);
+      }
+    }
+
+    String lockKey = LockIds.holderKey();
+    Lock lock = advised.lock(router, exclusiveLocks.backend(), null);
+
+    // Preposition
+    if (!lockNames.isEmpty() && !lock.lockAll(lockNames, lockKey, exclusiveLocks.timeout(),
+        advised.getWaitTimeout())) {
+      for (String lockName : reentered) {
+        LockHolds.release(LockHolds.EXCLUSIVE, lockName);
+      }
+      throw advised.lockingError();
+    }
+
+    for (String lockName : lockNames) {
+      LockHolds.acquired(LockHolds.EXCLUSIVE, lockName, lockKey,
+          lock.getFencingToken(lockName, lockKey));
+    }
+    Throwable failure = null;
+    try {
+      return proceedingJoinPoint.proceed();
+    } catch (Throwable e) {
+      failure = e;
+      throw e;
+    } finally {
+      for (String lockName : reentered) {
+        LockHolds.release(LockHolds.EXCLUSIVE, lockName);
+      }
+      for (String lockName : lockNames) {
+        LockHolds.release(LockHolds.EXCLUSIVE, lockName);
+      }
+      // Postposition, after an exception too, so the locks do not wait for their leases
+      if (!lockNames.isEmpty()) {
+        advised.unlockAll(lock, lockNames, lockKey, failure);
+      }
+    }
+  }
+
+  /**
+   * Metadata of the method of a call, resolved on its first call
+   * 
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @param exclusiveLocks
+   * @return AdvisedMethod
+   */
+  private AdvisedMethod advised(ProceedingJoinPoint proceedingJoinPoint,
+      ExclusiveLocks exclusiveLocks) {
+    Method method = ((MethodSignature) proceedingJoinPoint.getSignature()).getMethod();
+    AdvisedMethod advised = methods.get(method);
+    if (advised == null || !advised.isFor(exclusiveLocks)) {
+      List<String> lockNames = Collections.unmodifiableList(
+          new ArrayList<String>(new TreeSet<String>(Arrays.asList(exclusiveLocks.names()))));
+      Lock lock =
+          exclusiveLocks.backend().isEmpty() ? router : router.backend(exclusiveLocks.backend());
+      advised = new AdvisedMethod(proceedingJoinPoint, exclusiveLocks, null, lockNames, lock,
+          exclusiveLocks.waitTimeout(), releaseFailure);
+      methods.put(method, advised);
+    }
+    return advised;
+  }
+}
@@ -0,0 +1,151 @@
+package com.variazioni.concurrent.lock.aspect;
+
+import java.lang.reflect.Method;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+import com.variazioni.concurrent.lock.LockKeyResolver;
+
+/**
+ * Lock names of annotated methods. Without a key the lock name is the method, with a key it is
+ * the method and the resource key of the call, so calls on unrelated resources do not contend.
+ * The key expression is parsed once per method, the aspects keep the template with the rest of the
+ * metadata of the method, and compiled by SpEL after a few calls. Every node must derive the same
+ * lock name for the same resource, so a key is a string, number, boolean, character or enum, and
+ * both the name and the stripe come from its text.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Component
+public class LockNames {
+
+  @Autowired
+  private BeanFactory beanFactory;
+
+  private final SpelExpressionParser parser = new SpelExpressionParser(
+      new SpelParserConfiguration(SpelCompilerMode.MIXED, LockNames.class.getClassLoader()));
+
+  private final ParameterNameDiscoverer parameterNames = new DefaultParameterNameDiscoverer();
+
+  /**
+   * Lock name template of the method of a call
+   *
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @param key SpEL expression over the arguments, empty for none
+   * @param keyResolver Bean name of a LockKeyResolver, empty for none
+   * @param stripes Hash keys into this many lock names, 0 keeps one lock name per key
+   * @return Template
+   */
+  public Template template(ProceedingJoinPoint proceedingJoinPoint, String key,
+      String keyResolver, int stripes) {
+    if (!key.isEmpty() && !keyResolver.isEmpty()) {
+      throw new IllegalStateException(
+          "Lock key and key resolver are exclusive on " + proceedingJoinPoint.getSignature());
+    }
+    return new Template(
+        proceedingJoinPoint.getSignature().getDeclaringType().toString() + "."
+            + proceedingJoinPoint.getSignature().getName(),
+        ((MethodSignature) proceedingJoinPoint.getSignature()).getMethod(),
+        key.isEmpty() ? null : parser.parseExpression(key),
+        keyResolver.isEmpty() ? null : beanFactory.getBean(keyResolver, LockKeyResolver.class),
+        stripes);
+  }
+
+  /**
+   * Template of a lock name given in full
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return Template
+   */
+  public Template fixed(String lockName) {
+    return new Template(lockName, null, null, null, 0);
+  }
+
+  /**
+   * Parsed lock name of one annotated method
+   */
+  public class Template {
+    private final String prefix;
+    private final Method method;
+    private final Expression expression;
+    private final LockKeyResolver resolver;
+    private final int stripes;
+
+    private Template(String prefix, Method method, Expression expression,
+        LockKeyResolver resolver, int stripes) {
+      this.prefix = prefix;
+      this.method = method;
+      this.expression = expression;
+      this.resolver = resolver;
+      this.stripes = stripes;
+    }
+
+    /**
+     * Lock name of a call
+     *
+     * @author Variazioni
+     * @param proceedingJoinPoint
+     * @return String
+     */
+    public String lockName(ProceedingJoinPoint proceedingJoinPoint) {
+      if (expression == null && resolver == null) {
+        return prefix;
+      }
+      Object[] args = proceedingJoinPoint.getArgs();
+      Object key = resolver != null ? resolver.resolve(method, args)
+          : expression.getValue(new MethodBasedEvaluationContext(proceedingJoinPoint.getTarget(),
+              method, args, parameterNames));
+      if (key == null) {
+        return prefix;
+      }
+      String text = text(key);
+      if (stripes > 0) {
+        int hash = text.hashCode();
+        return prefix + "#" + Math.floorMod(hash ^ (hash >>> 16), stripes);
+      }
+      return prefix + "#" + text;
+    }
+
+    /**
+     * Text of a key, the same on every JVM. Identity hash codes and default toString differ
+     * between nodes, so any other type is rejected.
+     *
+     * @author Variazioni
+     * @param key
+     * @return String
+     */
+    private String text(Object key) {
+      if (key instanceof CharSequence || key instanceof Number || key instanceof Boolean
+          || key instanceof Character) {
+        return key.toString();
+      }
+      if (key instanceof Enum) {
+        return ((Enum<?>) key).name();
+      }
+      throw new IllegalStateException("Lock key of " + prefix + " is a " + key.getClass().getName()
+          + ", it must be a string, number, boolean, character or enum!");
+    }
+
+    /**
+     * Lock name shared by every call, null if the calls have keys
+     *
+     * @author Variazioni
+     * @return String
+     */
+    public String fixedName() {
+      return expression == null && resolver == null ? prefix : null;
+    }
+  }
+}
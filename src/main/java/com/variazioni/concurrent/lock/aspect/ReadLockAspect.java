@@ -0,0 +1,85 @@
+package com.variazioni.concurrent.lock.aspect;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.annotation.Pointcut;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.anno.ReadLock;
+import com.variazioni.concurrent.lock.service.LockHolds;
+import com.variazioni.concurrent.lock.service.LockRouter;
+
+/**
+ * Read lock aspect class
+ * 
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Aspect
+@Component
+public class ReadLockAspect {
+
+  @Autowired
+  private LockRouter router;
+
+  @Autowired
+  private LockNames lockNames;
+
+  /** What an advised method does when its lock cannot be released */
+  @Value("${concurrent.lock.release-failure:THROW}")
+  private ReleaseFailurePolicy releaseFailure;
+
+  /** Metadata per advised method */
+  private final ConcurrentHashMap<Method, AdvisedMethod> methods =
+      new ConcurrentHashMap<Method, AdvisedMethod>();
+
+  /**
+   * Pointcut
+   * 
+   * @author Variazioni
+   */
+  @Pointcut("@annotation(com.variazioni.concurrent.lock.anno.ReadLock)")
+  public void addReadLockAdvice() {}
+
+  /**
+   * Around notice
+   * 
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @param readLock
+   * @return Object
+   * @throws Throwable
+   */
+  @Around("@annotation(readLock)")
+  public Object readLockAround(ProceedingJoinPoint proceedingJoinPoint, ReadLock readLock)
+      throws Throwable {
+    return ReadWriteAdvice.around(proceedingJoinPoint, advised(proceedingJoinPoint, readLock),
+        router, LockHolds.READ, readLock.backend(), readLock.timeout());
+  }
+
+  /**
+   * Metadata of the method of a call, resolved on its first call
+   * 
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @param readLock
+   * @return AdvisedMethod
+   */
+  private AdvisedMethod advised(ProceedingJoinPoint proceedingJoinPoint, ReadLock readLock) {
+    Method method = ((MethodSignature) proceedingJoinPoint.getSignature()).getMethod();
+    AdvisedMethod advised = methods.get(method);
+    if (advised == null || !advised.isFor(readLock)) {
+      Lock lock = router.route(readLock.backend(), readLock.name());
+      advised = new AdvisedMethod(proceedingJoinPoint, readLock, lockNames.fixed(readLock.name()),
+          null, lock, readLock.waitTimeout(), releaseFailure);
+      methods.put(method, advised);
+    }
+    return advised;
+  }
+}
@@ -0,0 +1,86 @@
+package com.variazioni.concurrent.lock.aspect;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.service.LockHolds;
+import com.variazioni.concurrent.lock.service.LockRouter;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * Advice body shared by the read and the write lock aspects. A thread that holds the write lock
+ * also reads under it, and a re-entry leaves exactly the hold it entered.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+final class ReadWriteAdvice {
+
+  private ReadWriteAdvice() {}
+
+  /**
+   * Run an advised method under a read or a write lock
+   *
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @param advised
+   * @param router
+   * @param mode LockHolds.READ or LockHolds.WRITE
+   * @param backend
+   * @param timeout
+   * @return Object
+   * @throws Throwable
+   */
+  static Object around(ProceedingJoinPoint proceedingJoinPoint, AdvisedMethod advised,
+      LockRouter router, char mode, String backend, int timeout) throws Throwable {
+    String lockName = advised.lockName(proceedingJoinPoint);
+
+    // Re-entry, no database round trip
+    char entered = reenter(mode, lockName);
+    if (entered != 0) {
+      try {
+        return proceedingJoinPoint.proceed();
+      } finally {
+        LockHolds.release(entered, lockName);
+      }
+    }
+
+    String lockKey = LockIds.holderKey();
+    Lock lock = advised.lock(router, backend, lockName);
+
+    // Preposition
+    boolean locked = mode == LockHolds.WRITE
+        ? lock.writeLock(lockName, lockKey, timeout, advised.getWaitTimeout())
+        : lock.readLock(lockName, lockKey, timeout, advised.getWaitTimeout());
+    if (!locked) {
+      throw advised.lockingError();
+    }
+
+    LockHolds.acquired(mode, lockName, lockKey, lock.getFencingToken(lockName, lockKey));
+    Throwable failure = null;
+    try {
+      return proceedingJoinPoint.proceed();
+    } catch (Throwable e) {
+      failure = e;
+      throw e;
+    } finally {
+      LockHolds.release(mode, lockName);
+      // Postposition, after an exception too, so the lock does not wait for its lease
+      advised.unlock(lock, lockName, lockKey, failure);
+    }
+  }
+
+  /**
+   * Enter a hold of this thread that covers the mode
+   *
+   * @return char Mode of the hold entered, 0 if none
+   */
+  private static char reenter(char mode, String lockName) {
+    if (LockHolds.reenter(LockHolds.WRITE, lockName)) {
+      return LockHolds.WRITE;
+    }
+    if (mode == LockHolds.READ && LockHolds.reenter(LockHolds.READ, lockName)) {
+      return LockHolds.READ;
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,49 @@
+package com.variazioni.concurrent.lock.aspect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * What an advised method does when its lock cannot be released. The lock stays held until its
+ * lease runs out either way, and an exception thrown by the method itself is never replaced.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public enum ReleaseFailurePolicy {
+
+  /** Throw, or add to the exception of the method as suppressed */
+  THROW,
+  /** Log and keep the outcome of the method */
+  LOG,
+  /** Keep the outcome of the method */
+  IGNORE;
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(ReleaseFailurePolicy.class);
+
+  /**
+   * A release failed
+   *
+   * @author Variazioni
+   * @param message
+   * @param cause Exception of the release, null if it returned false
+   * @param failure Exception of the method, null if it returned
+   */
+  public void failed(String message, RuntimeException cause, Throwable failure) {
+    switch (this) {
+      case THROW:
+        RuntimeException e = new RuntimeException(message, cause);
+        if (failure == null) {
+          throw e;
+        }
+        failure.addSuppressed(e);
+        return;
+      case LOG:
+        logger.error(message, cause);
+        return;
+      default:
+        return;
+    }
+  }
+}
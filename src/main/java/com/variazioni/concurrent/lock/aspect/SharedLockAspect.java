@@ -1,14 +1,20 @@
 package com.variazioni.concurrent.lock.aspect;
 
-import java.util.UUID;
-import javax.annotation.Resource;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import com.variazioni.concurrent.lock.Lock;
 import com.variazioni.concurrent.lock.anno.SharedLock;
+import com.variazioni.concurrent.lock.service.LockHolds;
+import com.variazioni.concurrent.lock.service.LockRouter;
+import com.variazioni.concurrent.lock.util.LockIds;
 
 /**
  * Shared lock aspect class
@@ -20,15 +26,26 @@ import com.variazioni.concurrent.lock.anno.SharedLock;
 @Component
 public class SharedLockAspect {
 
-  @Resource(name = "lockByDatabase")
-  private Lock lock;
+  @Autowired
+  private LockRouter router;
+
+  @Autowired
+  private LockNames lockNames;
+
+  /** What an advised method does when its lock cannot be released */
+  @Value("${concurrent.lock.release-failure:THROW}")
+  private ReleaseFailurePolicy releaseFailure;
+
+  /** Metadata per advised method */
+  private final ConcurrentHashMap<Method, AdvisedMethod> methods =
+      new ConcurrentHashMap<Method, AdvisedMethod>();
 
   /**
    * Pointcut
    * 
    * @author Variazioni
    */
-  @Pointcut("@annotation(com.variazioni.concurrent.lock.anno.ShareLock)")
+  @Pointcut("@annotation(com.variazioni.concurrent.lock.anno.SharedLock)")
   public void addShareLockAdvice() {}
 
   /**
@@ -43,31 +60,64 @@ public class SharedLockAspect {
   @Around("@annotation(shareLock)")
   public Object shareLockAround(ProceedingJoinPoint proceedingJoinPoint, SharedLock shareLock)
       throws Throwable {
-    Object returnValue = null;
-
-    // Generate lock key
-    String lockKey =
-        UUID.randomUUID().toString().replace("-", "") + ":" + Thread.currentThread().getId();
-    // Generate lock name
-    String lockName = proceedingJoinPoint.getSignature().getDeclaringType().toString() + "."
-        + proceedingJoinPoint.getSignature().getName();
+    AdvisedMethod advised = advised(proceedingJoinPoint, shareLock);
+    String lockName = advised.lockName(proceedingJoinPoint);
 
-    // Preposition
-    if (!lock.lock(lockName, lockKey, shareLock.limit(), shareLock.timeout(), true)) {
-      throw new RuntimeException(proceedingJoinPoint.getSignature().getDeclaringType().toString()
-          + "." + proceedingJoinPoint.getSignature().getName() + "locking error!");
+    // Re-entry, no database round trip
+    if (LockHolds.reenter(LockHolds.SHARED, lockName)) {
+      try {
+        return proceedingJoinPoint.proceed();
+      } finally {
+        LockHolds.release(LockHolds.SHARED, lockName);
+      }
     }
 
-    Object[] args = proceedingJoinPoint.getArgs();
-    returnValue = proceedingJoinPoint.proceed(args);
+    String lockKey = LockIds.holderKey();
+    Lock lock = advised.lock(router, shareLock.backend(), lockName);
 
-    // Postposition
-    if (!lock.unlock(lockName, lockKey)) {
-      throw new RuntimeException(proceedingJoinPoint.getSignature().getDeclaringType().toString()
-          + "." + proceedingJoinPoint.getSignature().getName() + "unlocking error!");
+    // Preposition
+    if (!lock.lock(lockName, lockKey, shareLock.limit(), shareLock.timeout(),
+        advised.getWaitTimeout())) {
+      throw advised.lockingError();
     }
 
-    return returnValue;
+    LockHolds.acquired(LockHolds.SHARED, lockName, lockKey,
+        lock.getFencingToken(lockName, lockKey));
+    Throwable failure = null;
+    try {
+      return proceedingJoinPoint.proceed();
+    } catch (Throwable e) {
+      failure = e;
+      throw e;
+    } finally {
+      LockHolds.release(LockHolds.SHARED, lockName);
+      // Postposition, after an exception too, so the lock does not wait for its lease
+      advised.unlock(lock, lockName, lockKey, failure);
+    }
   }
 
+  /**
+   * Metadata of the method of a call, resolved on its first call
+   * 
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @param shareLock
+   * @return AdvisedMethod
+   */
+  private AdvisedMethod advised(ProceedingJoinPoint proceedingJoinPoint, SharedLock shareLock) {
+    Method method = ((MethodSignature) proceedingJoinPoint.getSignature()).getMethod();
+    AdvisedMethod advised = methods.get(method);
+    if (advised == null || !advised.isFor(shareLock)) {
+      LockNames.Template template = lockNames.template(proceedingJoinPoint, shareLock.key(),
+          shareLock.keyResolver(), shareLock.stripes());
+      Lock lock = shareLock.localTier() ? router.backend(LockRouter.LOCAL_TIER)
+          : template.fixedName() != null || !shareLock.backend().isEmpty()
+              ? router.route(shareLock.backend(), template.fixedName())
+              : null;
+      advised = new AdvisedMethod(proceedingJoinPoint, shareLock, template, null, lock,
+          shareLock.waitTimeout(), releaseFailure);
+      methods.put(method, advised);
+    }
+    return advised;
+  }
 }
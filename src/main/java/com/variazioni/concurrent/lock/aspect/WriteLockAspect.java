@@ -0,0 +1,85 @@
+package com.variazioni.concurrent.lock.aspect;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.annotation.Pointcut;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.anno.WriteLock;
+import com.variazioni.concurrent.lock.service.LockHolds;
+import com.variazioni.concurrent.lock.service.LockRouter;
+
+/**
+ * Write lock aspect class
+ * 
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Aspect
+@Component
+public class WriteLockAspect {
+
+  @Autowired
+  private LockRouter router;
+
+  @Autowired
+  private LockNames lockNames;
+
+  /** What an advised method does when its lock cannot be released */
+  @Value("${concurrent.lock.release-failure:THROW}")
+  private ReleaseFailurePolicy releaseFailure;
+
+  /** Metadata per advised method */
+  private final ConcurrentHashMap<Method, AdvisedMethod> methods =
+      new ConcurrentHashMap<Method, AdvisedMethod>();
+
+  /**
+   * Pointcut
+   * 
+   * @author Variazioni
+   */
+  @Pointcut("@annotation(com.variazioni.concurrent.lock.anno.WriteLock)")
+  public void addWriteLockAdvice() {}
+
+  /**
+   * Around notice
+   * 
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @param writeLock
+   * @return Object
+   * @throws Throwable
+   */
+  @Around("@annotation(writeLock)")
+  public Object writeLockAround(ProceedingJoinPoint proceedingJoinPoint, WriteLock writeLock)
+      throws Throwable {
+    return ReadWriteAdvice.around(proceedingJoinPoint, advised(proceedingJoinPoint, writeLock),
+        router, LockHolds.WRITE, writeLock.backend(), writeLock.timeout());
+  }
+
+  /**
+   * Metadata of the method of a call, resolved on its first call
+   * 
+   * @author Variazioni
+   * @param proceedingJoinPoint
+   * @param writeLock
+   * @return AdvisedMethod
+   */
+  private AdvisedMethod advised(ProceedingJoinPoint proceedingJoinPoint, WriteLock writeLock) {
+    Method method = ((MethodSignature) proceedingJoinPoint.getSignature()).getMethod();
+    AdvisedMethod advised = methods.get(method);
+    if (advised == null || !advised.isFor(writeLock)) {
+      Lock lock = router.route(writeLock.backend(), writeLock.name());
+      advised = new AdvisedMethod(proceedingJoinPoint, writeLock,
+          lockNames.fixed(writeLock.name()), null, lock, writeLock.waitTimeout(), releaseFailure);
+      methods.put(method, advised);
+    }
+    return advised;
+  }
+}
@@ -0,0 +1,109 @@
+package com.variazioni.concurrent.lock.config;
+
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.autoconfigure.endpoint.condition.ConditionalOnAvailableEndpoint;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.ComponentScan.Filter;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.FilterType;
+import io.micrometer.core.instrument.MeterRegistry;
+import com.variazioni.concurrent.lock.impl.LockByMemory;
+import com.variazioni.concurrent.lock.impl.LockByServer;
+import com.variazioni.concurrent.lock.metrics.LockActivity;
+import com.variazioni.concurrent.lock.metrics.LockMetrics;
+import com.variazioni.concurrent.lock.metrics.LocksEndpoint;
+import com.variazioni.concurrent.lock.metrics.MicrometerLockMetrics;
+import com.variazioni.concurrent.lock.server.LockServer;
+
+/**
+ * Spring Boot auto-configuration. The service, the aspects and the in-memory backend are always
+ * registered, the database backends by LockDatabaseAutoConfiguration when the application has one
+ * DataSource. Without it the default backend must be set, for example to lockByMemory for
+ * single-node applications and tests. The lock server is embedded on demand. Lock operations are
+ * measured when Micrometer is present and the locks endpoint is registered when the actuator is.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Configuration
+@AutoConfigureAfter(value = LockDatabaseAutoConfiguration.class,
+    name = "org.springframework.boot.actuate.autoconfigure.metrics."
+        + "CompositeMeterRegistryAutoConfiguration")
+@ComponentScan(basePackages = {"com.variazioni.concurrent.lock.service",
+    "com.variazioni.concurrent.lock.aspect", "com.variazioni.concurrent.lock.metrics"})
+@ComponentScan(basePackages = "com.variazioni.concurrent.lock.impl", useDefaultFilters = false,
+    includeFilters = @Filter(type = FilterType.ASSIGNABLE_TYPE,
+        classes = {LockByMemory.class, LockByServer.class}))
+public class LockAutoConfiguration {
+
+  /**
+   * Embedded lock server, for the lockByServer backend of this and other nodes
+   *
+   * @author Variazioni
+   * @param bindAddress
+   * @param port
+   * @return LockServer
+   */
+  @Bean(initMethod = "start", destroyMethod = "stop")
+  @ConditionalOnProperty(name = "concurrent.lock.server.embedded", havingValue = "true")
+  public LockServer lockServer(
+      @Value("${concurrent.lock.server.bind-address:0.0.0.0}") String bindAddress,
+      @Value("${concurrent.lock.server.port:7070}") int port) {
+    return new LockServer(bindAddress, port);
+  }
+
+  /**
+   * Micrometer meters of the lock operations
+   *
+   * @author Variazioni
+   */
+  @Configuration
+  @ConditionalOnClass(MeterRegistry.class)
+  @ConditionalOnBean(MeterRegistry.class)
+  public static class MetricsConfiguration {
+
+    /**
+     * Lock metrics
+     *
+     * @author Variazioni
+     * @param registry
+     * @param activity
+     * @return LockMetrics
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public LockMetrics lockMetrics(MeterRegistry registry, LockActivity activity) {
+      return new MicrometerLockMetrics(registry, activity);
+    }
+  }
+
+  /**
+   * Actuator endpoint of the locks of this node
+   *
+   * @author Variazioni
+   */
+  @Configuration
+  @ConditionalOnClass(Endpoint.class)
+  public static class EndpointConfiguration {
+
+    /**
+     * Locks endpoint
+     *
+     * @author Variazioni
+     * @param activity
+     * @return LocksEndpoint
+     */
+    @Bean
+    @ConditionalOnAvailableEndpoint
+    public LocksEndpoint locksEndpoint(LockActivity activity) {
+      return new LocksEndpoint(activity);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package com.variazioni.concurrent.lock.config;
+
+import javax.sql.DataSource;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnSingleCandidate;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceTransactionManagerAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import com.variazioni.concurrent.lock.impl.ExpiredLockReaper;
+import com.variazioni.concurrent.lock.impl.FairLockQueue;
+import com.variazioni.concurrent.lock.impl.FencingTokens;
+import com.variazioni.concurrent.lock.impl.LeaseRenewalWatchdog;
+import com.variazioni.concurrent.lock.impl.LockByDatabase;
+import com.variazioni.concurrent.lock.impl.LockByLocalTier;
+import com.variazioni.concurrent.lock.impl.LockByNamedLock;
+import com.variazioni.concurrent.lock.impl.LockShards;
+import com.variazioni.concurrent.lock.impl.PermitCounter;
+import com.variazioni.concurrent.lock.impl.PermitLeases;
+import com.variazioni.concurrent.lock.impl.ReadWriteCounter;
+import com.variazioni.concurrent.lock.impl.ReleaseBatcher;
+import com.variazioni.concurrent.lock.impl.ReleaseVersions;
+
+/**
+ * Spring Boot auto-configuration of the database backends. It runs after the DataSource, the
+ * JdbcTemplate and the transaction manager are configured and only when there is one DataSource,
+ * so the backends exist exactly when Boot configured the database they need.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Configuration
+@AutoConfigureAfter({DataSourceAutoConfiguration.class, JdbcTemplateAutoConfiguration.class,
+    DataSourceTransactionManagerAutoConfiguration.class})
+@ConditionalOnSingleCandidate(DataSource.class)
+public class LockDatabaseAutoConfiguration {
+
+  /**
+   * Storage shards
+   *
+   * @author Variazioni
+   * @return LockShards
+   */
+  @Bean
+  public LockShards lockShards() {
+    return new LockShards();
+  }
+
+  /**
+   * Fencing tokens of held locks
+   *
+   * @author Variazioni
+   * @return FencingTokens
+   */
+  @Bean
+  public FencingTokens fencingTokens() {
+    return new FencingTokens();
+  }
+
+  /**
+   * Counter rows of shared locks
+   *
+   * @author Variazioni
+   * @return PermitCounter
+   */
+  @Bean
+  public PermitCounter permitCounter() {
+    return new PermitCounter();
+  }
+
+  /**
+   * State rows of read/write locks
+   *
+   * @author Variazioni
+   * @return ReadWriteCounter
+   */
+  @Bean
+  public ReadWriteCounter readWriteCounter() {
+    return new ReadWriteCounter();
+  }
+
+  /**
+   * Shared permits leased per node
+   *
+   * @author Variazioni
+   * @return PermitLeases
+   */
+  @Bean
+  public PermitLeases permitLeases() {
+    return new PermitLeases();
+  }
+
+  /**
+   * Release versions of waiters
+   *
+   * @author Variazioni
+   * @return ReleaseVersions
+   */
+  @Bean
+  public ReleaseVersions releaseVersions() {
+    return new ReleaseVersions();
+  }
+
+  /**
+   * Write-behind releases
+   *
+   * @author Variazioni
+   * @return ReleaseBatcher
+   */
+  @Bean
+  public ReleaseBatcher releaseBatcher() {
+    return new ReleaseBatcher();
+  }
+
+  /**
+   * Fair ticket queue
+   *
+   * @author Variazioni
+   * @return FairLockQueue
+   */
+  @Bean
+  public FairLockQueue fairLockQueue() {
+    return new FairLockQueue();
+  }
+
+  /**
+   * Lease renewal of held locks
+   *
+   * @author Variazioni
+   * @return LeaseRenewalWatchdog
+   */
+  @Bean
+  public LeaseRenewalWatchdog leaseRenewalWatchdog() {
+    return new LeaseRenewalWatchdog();
+  }
+
+  /**
+   * Background deletion of expired locks
+   *
+   * @author Variazioni
+   * @return ExpiredLockReaper
+   */
+  @Bean
+  public ExpiredLockReaper expiredLockReaper() {
+    return new ExpiredLockReaper();
+  }
+
+  /**
+   * Table backend
+   *
+   * @author Variazioni
+   * @return LockByDatabase
+   */
+  @Bean
+  public LockByDatabase lockByDatabase() {
+    return new LockByDatabase();
+  }
+
+  /**
+   * Table backend behind the local tier
+   *
+   * @author Variazioni
+   * @return LockByLocalTier
+   */
+  @Bean
+  public LockByLocalTier lockByLocalTier() {
+    return new LockByLocalTier();
+  }
+
+  /**
+   * MySQL named lock backend
+   *
+   * @author Variazioni
+   * @return LockByNamedLock
+   */
+  @Bean
+  public LockByNamedLock lockByNamedLock() {
+    return new LockByNamedLock();
+  }
+}
@@ -0,0 +1,203 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.metrics.LockMetrics;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * Expired lock reaper. Deletes expired rows in batches on a schedule, so the lock, unlock and count
+ * paths no longer run a DELETE each, and the release versions of names nobody holds that no
+ * release bumped for a while. Only one node reaps at a time, the leader is elected with an
+ * exclusive lock on the table itself, and reaps every shard. Every node evicts the fencing tokens
+ * of its own locks that were lost without an unlock.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class ExpiredLockReaper {
+
+  @Autowired
+  private LockShards shards;
+
+  @Resource(name = "lockByDatabase")
+  private Lock lock;
+
+  @Autowired
+  private PermitCounter permitCounter;
+
+  @Autowired
+  private ReadWriteCounter readWriteCounter;
+
+  @Autowired
+  private FairLockQueue fairQueue;
+
+  @Autowired
+  private FencingTokens fencingTokens;
+
+  @Autowired(required = false)
+  private LockMetrics metrics = LockMetrics.NOOP;
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(ExpiredLockReaper.class);
+
+  /** Lock name of the reaper leadership */
+  public static final String LEADER_LOCK_NAME = "concurrent-lock.reaper";
+
+  @Value("${concurrent.lock.reaper.enabled:true}")
+  private boolean enabled;
+
+  @Value("${concurrent.lock.reaper.interval-millis:5000}")
+  private long intervalMillis;
+
+  @Value("${concurrent.lock.reaper.batch-size:1000}")
+  private int batchSize;
+
+  /** RESOURCE_TICKET is only used, and needed, in fair mode */
+  @Value("${concurrent.lock.fair:false}")
+  private boolean fair;
+
+  /** RESOURCE_LOCK_VERSION is only used with release versions */
+  @Value("${concurrent.lock.wait.release-versions:false}")
+  private boolean releaseVersions;
+
+  /** Release versions not bumped for this long are deleted once their name has no holder */
+  @Value("${concurrent.lock.reaper.version-idle-seconds:3600}")
+  private int versionIdleSeconds;
+
+  /** Leader lock key of this node */
+  private final String leaderKey = LockIds.holderKey();
+
+  private volatile boolean leader;
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Start reaping
+   *
+   * @author Variazioni
+   */
+  @PostConstruct
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "lock-expired-reaper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::reap, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop reaping and give up the leadership
+   *
+   * @author Variazioni
+   */
+  @PreDestroy
+  public void stop() {
+    if (scheduler == null) {
+      return;
+    }
+    scheduler.shutdownNow();
+    if (leader) {
+      lock.unlock(LEADER_LOCK_NAME, leaderKey);
+    }
+  }
+
+  /**
+   * One reaping round
+   *
+   * @author Variazioni
+   */
+  void reap() {
+    try {
+      // Rows recorded during the last round may belong to transactions still running
+      fencingTokens.evictLost(intervalMillis, batchSize);
+    } catch (Exception e) {
+      logger.error("Database exception, evicting lost fencing tokens failure!", e);
+    }
+    if (!elect()) {
+      return;
+    }
+    for (LockShards.Shard shard : shards.all()) {
+      reap(shard);
+    }
+  }
+
+  /**
+   * Reap one shard
+   *
+   * @author Variazioni
+   * @param shard
+   */
+  private void reap(LockShards.Shard shard) {
+    JdbcTemplate jdbcTemplate = shard.getJdbcTemplate();
+    try {
+      // Exclusive locks
+      String sql =
+          "DELETE FROM RESOURCE_LOCK WHERE `LOCK_KEY` = 'SINGLE_LOCK' AND `EXPIRED_TIME` < NOW() LIMIT ?";
+      int deleted;
+      do {
+        deleted = jdbcTemplate.update(sql, batchSize);
+        metrics.expired("lockByDatabase", deleted);
+      } while (deleted >= batchSize && !Thread.currentThread().isInterrupted());
+
+      // Shared and read/write locks, their counts are given back together with the rows
+      String namesSql =
+          "SELECT DISTINCT `LOCK_NAME` FROM RESOURCE_LOCK WHERE `LOCK_KEY` <> 'SINGLE_LOCK' AND `EXPIRED_TIME` < NOW() LIMIT ?";
+      for (String lockName : jdbcTemplate.queryForList(namesSql, String.class, batchSize)) {
+        if (readWriteCounter.reclaimExpired(shard, lockName) < 0) {
+          permitCounter.reclaimExpired(shard, lockName);
+        }
+      }
+
+      // Tickets of waiters that died
+      if (fair) {
+        do {
+          deleted = fairQueue.reapExpired(shard, batchSize);
+        } while (deleted >= batchSize && !Thread.currentThread().isInterrupted());
+      }
+
+      // Idle release versions, a waiter that still polls one creates it again
+      if (releaseVersions) {
+        String versionSql =
+            "DELETE FROM RESOURCE_LOCK_VERSION WHERE `UPDATE_TIME` < DATE_SUB(NOW(), INTERVAL ? SECOND) AND NOT EXISTS (SELECT 1 FROM RESOURCE_LOCK WHERE RESOURCE_LOCK.`LOCK_ID` = RESOURCE_LOCK_VERSION.`LOCK_ID`) LIMIT ?";
+        do {
+          deleted = jdbcTemplate.update(versionSql, versionIdleSeconds, batchSize);
+        } while (deleted >= batchSize && !Thread.currentThread().isInterrupted());
+      }
+    } catch (Exception e) {
+      logger.error("Database exception, reaping expired locks failure!", e);
+    }
+  }
+
+  /**
+   * Keep or take the leadership. The lease covers three rounds, so a dead leader is replaced
+   * within a few intervals.
+   *
+   * @author Variazioni
+   * @return boolean
+   */
+  private boolean elect() {
+    int lease = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(intervalMillis * 3));
+    if (leader && lock.extendLock(LEADER_LOCK_NAME, leaderKey, lease)) {
+      return true;
+    }
+    leader = lock.lock(LEADER_LOCK_NAME, leaderKey, lease, Duration.ZERO);
+    return leader;
+  }
+}
@@ -0,0 +1,206 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * Arrival-ordered wait queue of the fair mode. A waiter draws an AUTO_INCREMENT ticket in
+ * RESOURCE_TICKET and only tries the lock once no live ticket of the lock name is older than its
+ * own, the others just check their position. So releases are not raced by every waiter, and a
+ * waiter is overtaken by nobody who came later. Waiters renew their ticket while they wait, the
+ * ticket of a waiter that died expires and stops blocking the queue. The queue of a lock name lives
+ * on the shard owning it.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class FairLockQueue {
+
+  @Autowired
+  private LockShards shards;
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(FairLockQueue.class);
+
+  /** Lifetime of a ticket, every check after half of it renews it */
+  @Value("${concurrent.lock.fair.ticket-seconds:10}")
+  private int ticketSeconds;
+
+  /** Enqueue SQL */
+  private static final String ENQUEUE_SQL =
+      "INSERT INTO RESOURCE_TICKET (`LOCK_ID`, `LOCK_HOLDER`, `EXPIRED_TIME`) VALUES (?, ?, DATE_ADD(NOW(), INTERVAL ? SECOND))";
+
+  /** Live tickets ahead, the position in the queue */
+  private static final String AHEAD_SQL =
+      "SELECT COUNT(`TICKET`) FROM RESOURCE_TICKET WHERE `LOCK_ID` = ? AND `TICKET` < ? AND `EXPIRED_TIME` >= NOW()";
+
+  /** Renew SQL */
+  private static final String RENEW_SQL =
+      "UPDATE RESOURCE_TICKET SET `EXPIRED_TIME` = DATE_ADD(NOW(), INTERVAL ? SECOND) WHERE `TICKET` = ?";
+
+  /** Leave SQL */
+  private static final String LEAVE_SQL = "DELETE FROM RESOURCE_TICKET WHERE `TICKET` = ?";
+
+  /** Threads of this node waiting in a queue, woken up when this node releases the lock name */
+  private final ConcurrentHashMap<String, Set<Thread>> waiting =
+      new ConcurrentHashMap<String, Set<Thread>>();
+
+  /**
+   * Ticket of one waiter. Used as the attempt of a wait loop, it tries the lock only at the head
+   * of the queue. Must be left when the wait is over.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param acquire One lock attempt
+   * @return Ticket
+   */
+  public Ticket ticket(String lockName, String lockKey, BooleanSupplier acquire) {
+    return new Ticket(lockName, lockKey, acquire);
+  }
+
+  /**
+   * A lock name was released on this node, its local waiters check their position at once
+   *
+   * @author Variazioni
+   * @param lockName
+   */
+  public void released(String lockName) {
+    Set<Thread> threads = waiting.get(lockName);
+    if (threads != null) {
+      for (Thread thread : threads) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  /**
+   * Delete expired tickets on one shard
+   *
+   * @author Variazioni
+   * @param shard
+   * @param batchSize
+   * @return int Deleted tickets
+   */
+  public int reapExpired(LockShards.Shard shard, int batchSize) {
+    return shard.getJdbcTemplate().update(
+        "DELETE FROM RESOURCE_TICKET WHERE `EXPIRED_TIME` < NOW() LIMIT ?", batchSize);
+  }
+
+  /**
+   * Ticket of one waiter
+   */
+  public class Ticket implements BooleanSupplier {
+    private final String lockName;
+    private final String lockKey;
+    private final BooleanSupplier acquire;
+    private final JdbcTemplate jdbcTemplate;
+    private long ticket;
+    private long renewAt;
+    private Thread parked;
+
+    private Ticket(String lockName, String lockKey, BooleanSupplier acquire) {
+      this.lockName = lockName;
+      this.lockKey = lockKey;
+      this.acquire = acquire;
+      this.jdbcTemplate = shards.shard(lockName).getJdbcTemplate();
+    }
+
+    /**
+     * Draw or renew the ticket, then try the lock if no one is ahead
+     *
+     * @author Variazioni
+     * @return boolean
+     */
+    @Override
+    public boolean getAsBoolean() {
+      try {
+        long now = System.nanoTime();
+        if (ticket == 0) {
+          ticket = enqueue();
+          renewAt = now + TimeUnit.SECONDS.toNanos(ticketSeconds) / 2;
+        } else if (now - renewAt >= 0) {
+          jdbcTemplate.update(RENEW_SQL, ticketSeconds, ticket);
+          renewAt = now + TimeUnit.SECONDS.toNanos(ticketSeconds) / 2;
+        }
+        Integer ahead = jdbcTemplate.queryForObject(AHEAD_SQL, Integer.class, LockIds.of(lockName),
+            ticket);
+        if ((ahead == null || ahead == 0) && acquire.getAsBoolean()) {
+          return true;
+        }
+      } catch (Exception e) {
+        logger.error("Database exception, lock queue failure!", e);
+        return false;
+      }
+      park();
+      return false;
+    }
+
+    /**
+     * Leave the queue, after the lock was taken or the wait given up
+     *
+     * @author Variazioni
+     */
+    public void leave() {
+      if (parked != null) {
+        leave(parked);
+        parked = null;
+      }
+      if (ticket == 0) {
+        return;
+      }
+      try {
+        jdbcTemplate.update(LEAVE_SQL, ticket);
+      } catch (Exception e) {
+        // It expires anyway
+        logger.warn("Database exception, leaving lock queue failure!", e);
+      }
+      ticket = 0;
+    }
+
+    /** Register the waiting thread for local wake-ups */
+    private void park() {
+      Thread thread = Thread.currentThread();
+      if (thread == parked) {
+        return;
+      }
+      if (parked != null) {
+        leave(parked);
+      }
+      parked = thread;
+      waiting.computeIfAbsent(lockName, k -> ConcurrentHashMap.newKeySet()).add(thread);
+    }
+
+    private void leave(Thread thread) {
+      waiting.computeIfPresent(lockName, (k, threads) -> {
+        threads.remove(thread);
+        return threads.isEmpty() ? null : threads;
+      });
+    }
+
+    private long enqueue() {
+      KeyHolder keyHolder = new GeneratedKeyHolder();
+      jdbcTemplate.update(con -> {
+        PreparedStatement ps = con.prepareStatement(ENQUEUE_SQL, Statement.RETURN_GENERATED_KEYS);
+        ps.setBytes(1, LockIds.of(lockName));
+        ps.setString(2, lockKey);
+        ps.setInt(3, ticketSeconds);
+        return ps;
+      }, keyHolder);
+      return keyHolder.getKey().longValue();
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import com.variazioni.concurrent.lock.util.AppConst;
+
+/**
+ * Fencing tokens of the locks held by this node. The token is the AUTO_INCREMENT FENCING_TOKEN of
+ * the holder row, it comes back with the INSERT that takes the lock, so it costs no extra round
+ * trip. Tokens only grow, so downstream storage can reject a writer whose token is older than the
+ * newest one it has seen. Tokens of locks that are lost without an unlock, a lease that ran out and
+ * was reaped or taken over, are evicted by the reaper round of every node.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class FencingTokens {
+
+  @Autowired
+  private LockShards shards;
+
+  /** Live check SQL, the token list is appended per batch */
+  private static final String LIVE_SQL =
+      "SELECT `FENCING_TOKEN` FROM RESOURCE_LOCK WHERE `EXPIRED_TIME` >= NOW() AND `FENCING_TOKEN` IN (";
+
+  /** Tokens of held locks, lockName and lockKey to token */
+  private final ConcurrentHashMap<String, Token> tokens = new ConcurrentHashMap<String, Token>();
+
+  /**
+   * Execute a lock INSERT and record the tokens of the inserted rows
+   *
+   * @author Variazioni
+   * @param jdbcTemplate
+   * @param sql
+   * @param lockNames Lock names of the inserted rows, in row order
+   * @param lockKey
+   * @param args
+   * @return int Inserted rows
+   */
+  public int insert(JdbcTemplate jdbcTemplate, String sql, List<String> lockNames, String lockKey,
+      Object... args) {
+    KeyHolder keyHolder = new GeneratedKeyHolder();
+    int rows = execute(jdbcTemplate, sql, keyHolder, args);
+    List<Long> inserted = tokens(keyHolder, rows);
+    long now = System.nanoTime();
+    for (int i = 0; i < inserted.size() && i < lockNames.size(); i++) {
+      if (inserted.get(i) != AppConst.NO_FENCING_TOKEN) {
+        tokens.put(lockNames.get(i) + '\n' + lockKey,
+            new Token(lockNames.get(i), inserted.get(i), now));
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Execute a lock upsert of one row and record its token. The lock is taken only if a token comes
+   * back: an upsert that left a live row unchanged still reports it as found under the default
+   * CLIENT_FOUND_ROWS of the driver, but it generates no key.
+   *
+   * @author Variazioni
+   * @param jdbcTemplate
+   * @param sql
+   * @param lockName
+   * @param lockKey
+   * @param args
+   * @return int 1 if the row was inserted, 2 if it was taken over, 0 if the lock was not taken
+   */
+  public int upsert(JdbcTemplate jdbcTemplate, String sql, String lockName, String lockKey,
+      Object... args) {
+    KeyHolder keyHolder = new GeneratedKeyHolder();
+    int rows = execute(jdbcTemplate, sql, keyHolder, args);
+    long token = rows > 0 ? tokens(keyHolder, 1).get(0) : AppConst.NO_FENCING_TOKEN;
+    if (token <= 0) {
+      return 0;
+    }
+    tokens.put(lockName + '\n' + lockKey, new Token(lockName, token, System.nanoTime()));
+    return rows;
+  }
+
+  /**
+   * Execute a lock INSERT and return the tokens of the inserted rows without recording them
+   *
+   * @author Variazioni
+   * @param jdbcTemplate
+   * @param sql
+   * @param args
+   * @return List One token per inserted row in row order, AppConst.NO_FENCING_TOKEN if unknown
+   */
+  public List<Long> insertRows(JdbcTemplate jdbcTemplate, String sql, Object... args) {
+    KeyHolder keyHolder = new GeneratedKeyHolder();
+    return tokens(keyHolder, execute(jdbcTemplate, sql, keyHolder, args));
+  }
+
+  /**
+   * Token of a held lock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return long AppConst.NO_FENCING_TOKEN if unknown
+   */
+  public long get(String lockName, String lockKey) {
+    Token token = tokens.get(lockName + '\n' + lockKey);
+    return token == null ? AppConst.NO_FENCING_TOKEN : token.value;
+  }
+
+  /**
+   * Forget the token of a released lock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   */
+  public void remove(String lockName, String lockKey) {
+    tokens.remove(lockName + '\n' + lockKey);
+  }
+
+  /**
+   * Forget the tokens whose row is gone or expired. Only tokens recorded at least minAgeMillis ago
+   * are checked, so the rows of transactions still running are not taken for lost ones.
+   *
+   * @author Variazioni
+   * @param minAgeMillis
+   * @param batchSize
+   * @return int Evicted tokens
+   */
+  public int evictLost(long minAgeMillis, int batchSize) {
+    long recordedBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(minAgeMillis);
+    Map<LockShards.Shard, Map<String, Token>> byShard =
+        new LinkedHashMap<LockShards.Shard, Map<String, Token>>();
+    for (Map.Entry<String, Token> entry : tokens.entrySet()) {
+      Token token = entry.getValue();
+      if (token.recordedAt - recordedBefore <= 0) {
+        // The token comes from the shard owning the name now
+        byShard.computeIfAbsent(shards.shard(token.lockName), k -> new HashMap<String, Token>())
+            .put(entry.getKey(), token);
+      }
+    }
+    int evicted = 0;
+    for (Map.Entry<LockShards.Shard, Map<String, Token>> entry : byShard.entrySet()) {
+      List<Map.Entry<String, Token>> checked =
+          new ArrayList<Map.Entry<String, Token>>(entry.getValue().entrySet());
+      for (int from = 0; from < checked.size(); from += batchSize) {
+        evicted += evictLost(entry.getKey(),
+            checked.subList(from, Math.min(from + batchSize, checked.size())));
+      }
+    }
+    return evicted;
+  }
+
+  private int evictLost(LockShards.Shard shard, List<Map.Entry<String, Token>> batch) {
+    StringBuilder sql = new StringBuilder(LIVE_SQL);
+    Object[] args = new Object[batch.size()];
+    for (int i = 0; i < args.length; i++) {
+      sql.append(i == 0 ? "?" : ", ?");
+      args[i] = batch.get(i).getValue().value;
+    }
+    Set<Long> live = new HashSet<Long>(
+        shard.getJdbcTemplate().queryForList(sql.append(')').toString(), Long.class, args));
+    int evicted = 0;
+    for (Map.Entry<String, Token> entry : batch) {
+      // Unless unlocked and locked again meanwhile
+      if (!live.contains(entry.getValue().value)
+          && tokens.remove(entry.getKey(), entry.getValue())) {
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  private static int execute(JdbcTemplate jdbcTemplate, String sql, KeyHolder keyHolder,
+      Object[] args) {
+    return jdbcTemplate.update(con -> {
+      PreparedStatement ps = con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+      for (int i = 0; i < args.length; i++) {
+        ps.setObject(i + 1, args[i]);
+      }
+      return ps;
+    }, keyHolder);
+  }
+
+  private static List<Long> tokens(KeyHolder keyHolder, int rows) {
+    List<Map<String, Object>> keys = keyHolder.getKeyList();
+    List<Long> result = new ArrayList<Long>(rows);
+    for (int i = 0; i < rows; i++) {
+      long token = AppConst.NO_FENCING_TOKEN;
+      if (i < keys.size()) {
+        for (Object key : keys.get(i).values()) {
+          if (key instanceof Number) {
+            token = ((Number) key).longValue();
+            break;
+          }
+        }
+      }
+      result.add(token);
+    }
+    return result;
+  }
+
+  /**
+   * Recorded token
+   */
+  private static class Token {
+    private final String lockName;
+    private final long value;
+    private final long recordedAt;
+
+    private Token(String lockName, long value, long recordedAt) {
+      this.lockName = lockName;
+      this.value = value;
+      this.recordedAt = recordedAt;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * Lease renewal watchdog. Tracks every lease held by this node and renews the due ones with one
+ * batched UPDATE per shard and tick. Each row is renewed by its own lease length, which is the
+ * distance between UPDATE_TIME and EXPIRED_TIME.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class LeaseRenewalWatchdog {
+
+  @Autowired
+  private LockShards shards;
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(LeaseRenewalWatchdog.class);
+
+  /** Renew SQL, the row list is appended per batch */
+  private static final String RENEW_SQL =
+      "UPDATE RESOURCE_LOCK SET `EXPIRED_TIME` = DATE_ADD(NOW(), INTERVAL TIMESTAMPDIFF(SECOND, `UPDATE_TIME`, `EXPIRED_TIME`) SECOND), `UPDATE_TIME` = NOW() WHERE `EXPIRED_TIME` >= NOW() AND (`LOCK_ID`, `LOCK_HOLDER`) IN (";
+
+  @Value("${concurrent.lock.renewal.interval-millis:1000}")
+  private long intervalMillis;
+
+  @Value("${concurrent.lock.renewal.batch-size:500}")
+  private int batchSize;
+
+  /** Tracked leases, lockName and lockKey to lease */
+  private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Start ticking
+   *
+   * @author Variazioni
+   */
+  @PostConstruct
+  public void start() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "lock-lease-renewal");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::renew, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop ticking
+   *
+   * @author Variazioni
+   */
+  @PreDestroy
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Track a lease
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   */
+  public void track(String lockName, String lockKey, int timeout) {
+    leases.put(lockName + '\n' + lockKey, new Lease(lockName, lockKey, timeout));
+  }
+
+  /**
+   * Reschedule a tracked lease after its length changed
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   */
+  public void retime(String lockName, String lockKey, int timeout) {
+    leases.computeIfPresent(lockName + '\n' + lockKey,
+        (k, v) -> new Lease(lockName, lockKey, timeout));
+  }
+
+  /**
+   * Stop tracking a lease
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   */
+  public void untrack(String lockName, String lockKey) {
+    leases.remove(lockName + '\n' + lockKey);
+  }
+
+  /**
+   * Renew the due leases
+   *
+   * @author Variazioni
+   */
+  void renew() {
+    long now = System.nanoTime();
+    Map<LockShards.Shard, List<Lease>> due = new LinkedHashMap<LockShards.Shard, List<Lease>>();
+    for (Lease lease : leases.values()) {
+      if (lease.renewAt - now <= 0) {
+        for (LockShards.Shard shard : shards.owners(lease.lockName)) {
+          due.computeIfAbsent(shard, k -> new ArrayList<Lease>()).add(lease);
+        }
+      }
+    }
+    for (Map.Entry<LockShards.Shard, List<Lease>> entry : due.entrySet()) {
+      List<Lease> onShard = entry.getValue();
+      for (int from = 0; from < onShard.size(); from += batchSize) {
+        int to = Math.min(onShard.size(), from + batchSize);
+        renewBatch(entry.getKey(), onShard.subList(from, to));
+      }
+    }
+  }
+
+  /**
+   * One UPDATE for a batch of leases on one shard
+   *
+   * @author Variazioni
+   * @param shard
+   * @param batch
+   */
+  private void renewBatch(LockShards.Shard shard, List<Lease> batch) {
+    StringBuilder sql = new StringBuilder(RENEW_SQL.length() + batch.size() * 8).append(RENEW_SQL);
+    Object[] args = new Object[batch.size() * 2];
+    for (int i = 0; i < batch.size(); i++) {
+      sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+      args[i * 2] = LockIds.of(batch.get(i).lockName);
+      args[i * 2 + 1] = batch.get(i).lockKey;
+    }
+    sql.append(')');
+    try {
+      int renewed = shard.getJdbcTemplate().update(sql.toString(), args);
+      if (renewed < batch.size()) {
+        logger.warn((batch.size() - renewed) + " leases were lost before renewal!");
+      }
+      for (Lease lease : batch) {
+        lease.scheduleNext();
+      }
+    } catch (Exception e) {
+      logger.error("Database exception, lease renewal failure!", e);
+    }
+  }
+
+  /**
+   * Tracked lease, renewed when a third of its length is left
+   */
+  private static class Lease {
+    private final String lockName;
+    private final String lockKey;
+    private final long period;
+    private volatile long renewAt;
+
+    private Lease(String lockName, String lockKey, int timeout) {
+      this.lockName = lockName;
+      this.lockKey = lockKey;
+      this.period = TimeUnit.SECONDS.toNanos(Math.max(1, timeout)) * 2 / 3;
+      scheduleNext();
+    }
+
+    private void scheduleNext() {
+      renewAt = System.nanoTime() + period;
+    }
+  }
+}
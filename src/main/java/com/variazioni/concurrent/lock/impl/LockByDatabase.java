@@ -1,30 +1,132 @@
 package com.variazioni.concurrent.lock.impl;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import javax.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.support.rowset.SqlRowSet;
-import org.springframework.stereotype.Component;
 import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.metrics.LockMetrics;
+import com.variazioni.concurrent.lock.util.AppConst;
+import com.variazioni.concurrent.lock.util.LockIds;
+import com.variazioni.concurrent.lock.wait.LockReleaseNotifier;
+import com.variazioni.concurrent.lock.wait.LockWaitScheduler;
+import com.variazioni.concurrent.lock.wait.LockWaiter;
+import com.variazioni.concurrent.lock.wait.WaitPolicy;
+import com.variazioni.concurrent.lock.wait.WaitStrategy;
 
 /**
- * Implementation class. Based on MySQL
+ * Implementation class. Based on MySQL, every lock name is stored on the shard that owns it
  * 
  * @author Variazioni
  * @date 2021/07/18
  */
-@Component
 public class LockByDatabase implements Lock {
 
   @Autowired
-  private JdbcTemplate jdbcTemplate;
+  private LockShards shards;
 
   /** Logger */
   private static final Logger logger = LoggerFactory.getLogger(LockByDatabase.class);
 
-  protected volatile boolean isOpenExpirationRenewal = true;
+  /** Backend name of the metrics */
+  private static final String BACKEND = "lockByDatabase";
+
+  @Autowired(required = false)
+  private LockMetrics metrics = LockMetrics.NOOP;
+
+  @Autowired
+  private LeaseRenewalWatchdog watchdog;
+
+  @Autowired
+  private PermitCounter permitCounter;
+
+  @Autowired
+  private PermitLeases permitLeases;
+
+  @Autowired
+  private ReadWriteCounter readWriteCounter;
+
+  @Autowired
+  private FencingTokens fencingTokens;
+
+  @Autowired
+  private FairLockQueue fairQueue;
+
+  @Autowired
+  private ReleaseVersions releaseVersions;
+
+  @Autowired
+  private ReleaseBatcher releaseBatcher;
+
+  /** Bump the release version of the lock name on unlock, waiters poll it instead of counting */
+  @Value("${concurrent.lock.wait.release-versions:false}")
+  private boolean releaseVersionsEnabled;
+
+  /** Grant exclusive and shared locks in arrival order through the ticket queue */
+  @Value("${concurrent.lock.fair:false}")
+  private boolean fair;
+
+  /** Enforce shared lock limits with the RESOURCE_PERMIT counter row instead of COUNT */
+  @Value("${concurrent.lock.shared.permit-counter:true}")
+  private boolean permitCounterEnabled;
+
+  /** Renew held leases in the background until they are unlocked */
+  @Value("${concurrent.lock.expiration-renewal:false}")
+  protected volatile boolean isOpenExpirationRenewal;
+
+  /** Waiting strategy, a WaitStrategy bean takes precedence over the policy properties */
+  @Autowired(required = false)
+  private WaitStrategy waitStrategy;
+
+  @Value("${concurrent.lock.wait.policy:BACKOFF}")
+  private WaitPolicy waitPolicy;
+
+  @Value("${concurrent.lock.wait.spin-tries:3}")
+  private int waitSpinTries;
+
+  @Value("${concurrent.lock.wait.initial-millis:5}")
+  private long waitInitialMillis;
+
+  @Value("${concurrent.lock.wait.max-millis:1000}")
+  private long waitMaxMillis;
+
+  @Value("${concurrent.lock.wait.max-retries-per-second:20}")
+  private int waitMaxRetriesPerSecond;
+
+  /** Sticky local tier leases, a failed exclusive attempt asks the holder to give its lease up */
+  @Value("${concurrent.lock.local-tier.sticky-millis:0}")
+  private long stickyMillis;
+
+  /**
+   * Build the waiting strategy from the configuration
+   * 
+   * @author Variazioni
+   */
+  @PostConstruct
+  public void init() {
+    if (waitStrategy == null) {
+      waitStrategy = waitPolicy.create(waitSpinTries, waitInitialMillis, waitMaxMillis,
+          waitMaxRetriesPerSecond);
+    }
+    releaseBatcher.onFlushed(this::bumpReleaseVersions);
+  }
 
   /**
    * Locks statistics implementation
@@ -37,18 +139,23 @@ public class LockByDatabase implements Lock {
   public int locksCount(String lockName) {
     int result = 0;
     try {
-      // Timeout mechanism, before each insert, clear the timeout lock
-      clearTimedoutLocks(lockName);
-
-      // Query sql
-      String sql = "SELECT COUNT(`LOCK_KEY`) FROM `RESOURCE_LOCK` WHERE `LOCK_NAME` = ?";
-      SqlRowSet rs = jdbcTemplate.queryForRowSet(sql, lockName);
-      if (rs.next()) {
-        result = rs.getInt(1);
+      // Query sql, expired locks are not counted
+      String sql =
+          "SELECT COUNT(`LOCK_KEY`) FROM `RESOURCE_LOCK` WHERE `LOCK_ID` = ? AND `EXPIRED_TIME` >= NOW()";
+      for (LockShards.Shard shard : shards.owners(lockName)) {
+        metrics.roundTrip(BACKEND, "count");
+        SqlRowSet rs = shard.getJdbcTemplate().queryForRowSet(sql, LockIds.of(lockName));
+        if (rs.next()) {
+          result = Math.max(result, rs.getInt(1));
+        }
       }
+      // Leased permits nobody holds and queued releases have rows but are free
+      result = Math.max(
+          result - permitLeases.idle(lockName) - releaseBatcher.pending(lockName), 0);
 
     } catch (Exception e) {
       logger.error("Query lock quantity database exception, return failure!", e);
+      metrics.failure(BACKEND, "count", e);
       return -1;
     }
     return result;
@@ -62,28 +169,14 @@ public class LockByDatabase implements Lock {
    * @param lockKey
    * @param limit
    * @param timeout
-   * @param wait
+   * @param waitTimeout
    * @return boolean
    */
   @Override
-  public boolean lock(String lockName, String lockKey, int limit, int timeout, Boolean wait) {
-    try {
-      if (wait) {
-        // Block, wait 10 minutes
-        for (int i = 0; i < 120; i++) {
-          if (lockDatabase(lockName, lockKey, limit, timeout)) {
-            return true;
-          }
-          TimeUnit.SECONDS.sleep(5);
-        }
-      } else {
-        return lockDatabase(lockName, lockKey, limit, timeout);
-      }
-    } catch (Exception e) {
-      logger.error("Database exception, lock failure!");
-      return false;
-    }
-    return false;
+  public boolean lock(String lockName, String lockKey, int limit, int timeout,
+      Duration waitTimeout) {
+    return await(lockName, lockKey, waitTimeout,
+        () -> lockDatabase(lockName, lockKey, limit, timeout));
   }
 
   /**
@@ -92,29 +185,99 @@ public class LockByDatabase implements Lock {
    * @author Variazioni
    * @param lockName
    * @param lockKey
-   * @param lockinTime
-   * @param wait
+   * @param timeout
+   * @param waitTimeout
    * @return boolean
    */
   @Override
-  public boolean lock(String lockName, String lockKey, int timeout, Boolean wait) {
+  public boolean lock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return await(lockName, lockKey, waitTimeout,
+        () -> lockDatabaseSingle(lockName, lockKey, timeout));
+  }
+
+  /**
+   * Asynchronous shared lock implementation, paced by the configured waiting strategy
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int limit,
+      int timeout, Duration waitTimeout) {
+    return submit(lockName, lockKey, waitTimeout,
+        () -> lockDatabase(lockName, lockKey, limit, timeout));
+  }
+
+  /**
+   * Asynchronous exclusive lock implementation, paced by the configured waiting strategy
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int timeout,
+      Duration waitTimeout) {
+    return submit(lockName, lockKey, waitTimeout,
+        () -> lockDatabaseSingle(lockName, lockKey, timeout));
+  }
+
+  /**
+   * Wait loop of the blocking locks, through the ticket queue in fair mode
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param waitTimeout
+   * @param attempt
+   * @return boolean
+   */
+  private boolean await(String lockName, String lockKey, Duration waitTimeout,
+      BooleanSupplier attempt) {
+    FairLockQueue.Ticket ticket = fair ? fairQueue.ticket(lockName, lockKey, attempt) : null;
     try {
-      if (wait) {
-        // Block, wait 10 minutes
-        for (int i = 0; i < 200; i++) {
-          if (lockDatabaseSingle(lockName, lockKey, timeout)) {
-            return true;
-          }
-          TimeUnit.SECONDS.sleep(3);
-        }
-      } else {
-        return lockDatabaseSingle(lockName, lockKey, timeout);
-      }
-    } catch (Exception e) {
-      logger.error("Database exception, lock failure!");
+      return LockWaiter.await(lockName, waitTimeout, waitStrategy,
+          ticket == null ? attempt : ticket);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.error("Interrupted while waiting, lock failure!");
       return false;
+    } finally {
+      if (ticket != null) {
+        ticket.leave();
+      }
     }
-    return false;
+  }
+
+  /**
+   * Wait queue of the asynchronous locks, through the ticket queue in fair mode
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param waitTimeout
+   * @param attempt
+   * @return CompletableFuture
+   */
+  private CompletableFuture<Boolean> submit(String lockName, String lockKey,
+      Duration waitTimeout, BooleanSupplier attempt) {
+    if (!fair) {
+      return LockWaitScheduler.getDefault().submit(lockName, attempt,
+          () -> unlock(lockName, lockKey), waitTimeout, waitStrategy);
+    }
+    FairLockQueue.Ticket ticket = fairQueue.ticket(lockName, lockKey, attempt);
+    CompletableFuture<Boolean> result = LockWaitScheduler.getDefault().submit(lockName, ticket,
+        () -> unlock(lockName, lockKey), waitTimeout, waitStrategy);
+    result.whenComplete((locked, e) -> ticket.leave());
+    return result;
   }
 
   /**
@@ -127,22 +290,49 @@ public class LockByDatabase implements Lock {
    * @return boolean
    */
   public boolean lockDatabaseSingle(String lockName, String lockKey, int timeout) {
+    if (!attempt(lockName, () -> onOwners(lockName, lockKey,
+        shard -> lockDatabaseSingle(shard, lockName, lockKey, timeout)))) {
+      return false;
+    }
+    if (isOpenExpirationRenewal) {
+      watchdog.track(lockName, lockKey, timeout);
+    }
+    return true;
+  }
 
+  /**
+   * Exclusive lock on one shard, one upsert. A free name gets a new row, an expired row is taken
+   * over in place. Expired rows are removed by the reaper, until then the upsert treats them as
+   * free. A takeover gets a new fencing token too: the AUTO_INCREMENT value the INSERT reserved
+   * before it met the row. With sticky leases a failed upsert flags the live row, so the node
+   * keeping it gives it up. The flag is only written while it is clear, a waiter asks once and
+   * again only after the holder handed the lease out anew and cleared it.
+   * 
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return boolean
+   */
+  private boolean lockDatabaseSingle(LockShards.Shard shard, String lockName, String lockKey,
+      int timeout) {
     try {
-      // Timeout mechanism, before each insert, clear the timeout lock
-      clearTimedoutLocks(lockName);
-
-      // Insert SQL
-      String insertSql =
-          "INSERT INTO RESOURCE_LOCK (`LOCK_KEY`,`LOCK_NAME`,`LOCK_HOLDER`,`EXPIRED_TIME`) VALUES ('SINGLE_LOCK', ?, ?, DATE_ADD(NOW(), INTERVAL ? SECOND))";
-      if (jdbcTemplate.update(insertSql, lockName, lockKey, timeout) == 0) {
-        return false;
+      metrics.roundTrip(BACKEND, "lock");
+      // Upsert SQL, EXPIRED_TIME is compared before it is assigned
+      String upsertSql =
+          "INSERT INTO RESOURCE_LOCK (`LOCK_KEY`,`LOCK_ID`,`LOCK_NAME`,`LOCK_HOLDER`,`EXPIRED_TIME`) VALUES ('SINGLE_LOCK', ?, ?, ?, DATE_ADD(NOW(), INTERVAL ? SECOND)) ON DUPLICATE KEY UPDATE `FENCING_TOKEN` = IF(`EXPIRED_TIME` < NOW(), LAST_INSERT_ID(VALUES(`FENCING_TOKEN`)), `FENCING_TOKEN`), `LOCK_HOLDER` = IF(`EXPIRED_TIME` < NOW(), VALUES(`LOCK_HOLDER`), `LOCK_HOLDER`), `UPDATE_TIME` = IF(`EXPIRED_TIME` < NOW(), NOW(), `UPDATE_TIME`), `REVOKE_REQUESTED` = IF(`EXPIRED_TIME` < NOW(), 0, GREATEST(`REVOKE_REQUESTED`, ?)), `EXPIRED_TIME` = IF(`EXPIRED_TIME` < NOW(), VALUES(`EXPIRED_TIME`), `EXPIRED_TIME`)";
+      int rows = fencingTokens.upsert(shard.getJdbcTemplate(), upsertSql, lockName, lockKey,
+          LockIds.of(lockName), lockName, lockKey, timeout, stickyMillis > 0 ? 1 : 0);
+      if (rows > 1) {
+        metrics.expired(BACKEND, 1);
       }
+      return rows > 0;
     } catch (Exception e) {
-      logger.error("Database exception, lock failure!");
+      logger.error("Database exception, lock failure!", e);
+      metrics.failure(BACKEND, "lock", e);
       return false;
     }
-    return true;
   }
 
   /**
@@ -156,24 +346,40 @@ public class LockByDatabase implements Lock {
    * @return boolean
    */
   public boolean lockDatabase(String lockName, String lockKey, int limit, int timeout) {
+    if (permitCounterEnabled && permitLeases.covers(lockName)) {
+      // The lease renews its rows, the watchdog only keeps the permit from being taken back
+      return permitLeases.acquire(lockName, lockKey, limit, timeout, isOpenExpirationRenewal);
+    }
+    if (!attempt(lockName, () -> onOwners(lockName, lockKey,
+        shard -> lockDatabase(shard, lockName, lockKey, limit, timeout)))) {
+      return false;
+    }
+    if (isOpenExpirationRenewal) {
+      watchdog.track(lockName, lockKey, timeout);
+    }
+    return true;
+  }
 
+  private boolean lockDatabase(LockShards.Shard shard, String lockName, String lockKey, int limit,
+      int timeout) {
     try {
+      metrics.roundTrip(BACKEND, "lock");
+      if (permitCounterEnabled) {
+        return permitCounter.acquire(shard, lockName, lockKey, limit, timeout);
+      }
 
-      // Timeout mechanism, before each insert, clear the timeout lock
-      clearTimedoutLocks(lockName);
-
-      // Insert SQL
+      // Insert SQL, expired locks are not counted
       String insertSql =
-          "INSERT INTO RESOURCE_LOCK ( `LOCK_KEY`, `LOCK_NAME`,`LOCK_HOLDER`,`EXPIRED_TIME` ) SELECT ?, ?, ?,(SELECT DATE_ADD(NOW(),INTERVAL ? SECOND)) EXPIRED_TIME FROM DUAL WHERE TRUE = ( SELECT IF( ( SELECT COUNT(`LOCK_KEY`) FROM RESOURCE_LOCK WHERE `LOCK_NAME` = ?) < ?,TRUE,FALSE))";
-      if (jdbcTemplate.update(insertSql, lockKey, lockName, lockKey, timeout, lockName,
-          limit) == 0) {
-        return false;
-      }
+          "INSERT INTO RESOURCE_LOCK ( `LOCK_KEY`, `LOCK_ID`, `LOCK_NAME`,`LOCK_HOLDER`,`EXPIRED_TIME` ) SELECT ?, ?, ?, ?,(SELECT DATE_ADD(NOW(),INTERVAL ? SECOND)) EXPIRED_TIME FROM DUAL WHERE TRUE = ( SELECT IF( ( SELECT COUNT(`LOCK_KEY`) FROM RESOURCE_LOCK WHERE `LOCK_ID` = ? AND `EXPIRED_TIME` >= NOW()) < ?,TRUE,FALSE))";
+      byte[] lockId = LockIds.of(lockName);
+      return fencingTokens.insert(shard.getJdbcTemplate(), insertSql,
+          Collections.singletonList(lockName), lockKey, lockKey, lockId, lockName, lockKey,
+          timeout, lockId, limit) > 0;
     } catch (Exception e) {
-      logger.error("Database exception, lock failure!");
+      logger.error("Database exception, lock failure!", e);
+      metrics.failure(BACKEND, "lock", e);
       return false;
     }
-    return true;
   }
 
   /**
@@ -186,47 +392,170 @@ public class LockByDatabase implements Lock {
    */
   @Override
   public boolean unlock(String lockName, String lockKey) {
+    if (permitLeases.release(lockName, lockKey)) {
+      if (fair) {
+        fairQueue.released(lockName);
+      }
+      LockReleaseNotifier.getDefault().released(lockName);
+      return true;
+    }
+    watchdog.untrack(lockName, lockKey);
+    fencingTokens.remove(lockName, lockKey);
+    boolean permit = permitCounter.holds(lockKey);
+    boolean readWrite = readWriteCounter.holds(lockKey);
 
-    // Timeout mechanism, before each insert, clear the timeout lock
-    clearTimedoutLocks(lockName);
+    if (releaseBatcher.isEnabled() && !readWrite) {
+      // Deleted by the next flush, the local waiters flush it when they try the lock
+      releaseBatcher.release(lockName, lockKey, permit);
+      if (fair) {
+        fairQueue.released(lockName);
+      }
+      LockReleaseNotifier.getDefault().released(lockName);
+      return true;
+    }
 
+    List<LockShards.Shard> owners = shards.owners(lockName);
+    int released = 0;
     try {
-      // Delete SQL
-      String sql = "DELETE FROM `RESOURCE_LOCK` WHERE `LOCK_NAME` = ? AND `LOCK_HOLDER` = ?";
-      if (jdbcTemplate.update(sql, lockName, lockKey) == 0) {
-        return false;
+      for (LockShards.Shard shard : owners) {
+        if (release(shard, lockName, lockKey, permit)) {
+          released++;
+        }
       }
     } catch (Exception e) {
       logger.error("Database exception, unlock failure!", e);
+      metrics.failure(BACKEND, "unlock", e);
       return false;
+    } finally {
+      if (fair) {
+        fairQueue.released(lockName);
+      }
     }
-    return true;
+    if (permit) {
+      permitCounter.released(lockKey);
+    }
+    if (readWrite) {
+      readWriteCounter.released(lockKey);
+    }
+    if (released > 0) {
+      notifyReleased(Collections.singletonList(lockName));
+    }
+    return released == owners.size();
   }
 
   /**
-   * Waiting to unlock
+   * Delete one holder row on a shard, its permit or read/write count is given back if it holds one
    * 
    * @author Variazioni
+   * @param shard
    * @param lockName
+   * @param lockKey
+   * @param permit
    * @return boolean
    */
-  @Override
-  public boolean waitLock(String lockName) {
-    while (true) {
-      if (0 == locksCount(lockName)) {
-        return true;
-      } else if (-1 == locksCount(lockName)) {
-        return false;
+  private boolean release(LockShards.Shard shard, String lockName, String lockKey,
+      boolean permit) {
+    metrics.roundTrip(BACKEND, "unlock");
+    if (readWriteCounter.holds(lockKey)) {
+      return readWriteCounter.release(shard, lockName, lockKey);
+    }
+    if (permit) {
+      return permitCounter.release(shard, lockName, lockKey);
+    }
+    // Delete SQL
+    String sql = "DELETE FROM `RESOURCE_LOCK` WHERE `LOCK_ID` = ? AND `LOCK_HOLDER` = ?";
+    return shard.getJdbcTemplate().update(sql, LockIds.of(lockName), lockKey) > 0;
+  }
+
+  /**
+   * Try a lock, and once more if this node had queued releases of the name that were deleted only
+   * now. Free locks cost no flush.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param attempt
+   * @return boolean
+   */
+  private boolean attempt(String lockName, BooleanSupplier attempt) {
+    return attempt.getAsBoolean()
+        || releaseBatcher.flushIfPending(lockName) && attempt.getAsBoolean();
+  }
+
+  /**
+   * Take a lock on every shard it belongs to, the previous owner of a moved name first. A failure
+   * releases the shards already taken and forgets their fencing token.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param attempt
+   * @return boolean
+   */
+  private boolean onOwners(String lockName, String lockKey, Predicate<LockShards.Shard> attempt) {
+    List<LockShards.Shard> owners = shards.owners(lockName);
+    for (int i = 0; i < owners.size(); i++) {
+      if (attempt.test(owners.get(i))) {
+        continue;
       }
-      try {
-        TimeUnit.SECONDS.sleep(3);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-        return false;
+      boolean permit = permitCounter.holds(lockKey);
+      for (int j = 0; j < i; j++) {
+        try {
+          release(owners.get(j), lockName, lockKey, permit);
+        } catch (Exception e) {
+          // The lease runs out
+          logger.error("Database exception, unlock failure!", e);
+          metrics.failure(BACKEND, "unlock", e);
+        }
       }
+      if (permit) {
+        permitCounter.released(lockKey);
+      }
+      readWriteCounter.released(lockKey);
+      if (i > 0) {
+        // Recorded by the shards taken before
+        fencingTokens.remove(lockName, lockKey);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Waiting to unlock. Releases on this node wake the waiter at once. Otherwise it counts the
+   * holders, or with release versions polls the version and only counts again when a lock was
+   * released or the earliest lease ran out.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean waitLock(String lockName, Duration waitTimeout) {
+    try {
+      return LockReleaseNotifier.getDefault().await(lockName, waitTimeout, waitStrategy,
+          new ReleaseWatch(lockName));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.error("Interrupted while waiting, query lock failure!");
+      return false;
     }
   }
 
+  /**
+   * Asynchronous waiting to unlock, paced by the configured waiting strategy
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> waitLockAsync(String lockName, Duration waitTimeout) {
+    return LockReleaseNotifier.getDefault().submit(lockName, waitTimeout, waitStrategy,
+        new ReleaseWatch(lockName));
+  }
+
   /**
    * Lock timeout extended
    * 
@@ -238,33 +567,534 @@ public class LockByDatabase implements Lock {
    */
   @Override
   public boolean extendLock(String lockName, String lockKey, int second) {
+    if (permitLeases.extend(lockName, lockKey, second)) {
+      return true;
+    }
 
     try {
       String sql =
-          "UPDATE RESOURCE_LOCK SET `EXPIRED_TIME` = (SELECT DATE_ADD(NOW(),INTERVAL ? SECOND)) WHERE `LOCK_KEY` = ? AND LOCK_NAME = ?";
-      if (jdbcTemplate.update(sql, second, lockKey, lockName) == 0) {
-        return false;
+          "UPDATE RESOURCE_LOCK SET `EXPIRED_TIME` = (SELECT DATE_ADD(NOW(),INTERVAL ? SECOND)), `UPDATE_TIME` = NOW() WHERE (`LOCK_KEY` = ? OR `LOCK_HOLDER` = ?) AND `LOCK_ID` = ? AND `EXPIRED_TIME` >= NOW()";
+      for (LockShards.Shard shard : shards.owners(lockName)) {
+        metrics.roundTrip(BACKEND, "extend");
+        if (shard.getJdbcTemplate().update(sql, second, lockKey, lockKey,
+            LockIds.of(lockName)) == 0) {
+          return false;
+        }
       }
     } catch (Exception e) {
       logger.error("Database exception, lock timeout extended failure!", e);
+      metrics.failure(BACKEND, "extend", e);
+      return false;
+    }
+    watchdog.retime(lockName, lockKey, second);
+    return true;
+  }
+
+  /**
+   * Read lock implementation
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean readLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    try {
+      return LockWaiter.await(lockName, waitTimeout, waitStrategy,
+          () -> lockDatabaseRead(lockName, lockKey, timeout));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.error("Interrupted while waiting, lock failure!");
+      return false;
+    }
+  }
+
+  /**
+   * Write lock implementation. A writer that gives up withdraws its intent.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean writeLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    boolean locked = false;
+    try {
+      locked = LockWaiter.await(lockName, waitTimeout, waitStrategy,
+          () -> lockDatabaseWrite(lockName, lockKey, timeout));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.error("Interrupted while waiting, lock failure!");
+    }
+    if (!locked) {
+      try {
+        for (LockShards.Shard shard : shards.owners(lockName)) {
+          readWriteCounter.withdraw(shard, lockName, lockKey);
+        }
+      } catch (Exception e) {
+        logger.error("Database exception, withdrawing write intent failure!", e);
+      }
+    }
+    return locked;
+  }
+
+  /**
+   * Read lock process. One conditional UPDATE of the state row of the name, which fails while a
+   * writer holds the lock, or with writer preference while a writer waits for it. Readers only
+   * share that row lock for the length of their claim, see ReadWriteCounter.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return boolean
+   */
+  public boolean lockDatabaseRead(String lockName, String lockKey, int timeout) {
+    if (!attempt(lockName, () -> onOwners(lockName, lockKey,
+        shard -> lockDatabaseRead(shard, lockName, lockKey, timeout)))) {
       return false;
     }
+    if (isOpenExpirationRenewal) {
+      watchdog.track(lockName, lockKey, timeout);
+    }
     return true;
   }
 
+  private boolean lockDatabaseRead(LockShards.Shard shard, String lockName, String lockKey,
+      int timeout) {
+    try {
+      metrics.roundTrip(BACKEND, "lock");
+      return readWriteCounter.acquireRead(shard, lockName, lockKey, timeout);
+    } catch (Exception e) {
+      logger.error("Database exception, lock failure!", e);
+      metrics.failure(BACKEND, "lock", e);
+      return false;
+    }
+  }
+
   /**
-   * Clear timedout locks
+   * Write lock process. One conditional UPDATE of the state row of the name, which fails while a
+   * reader or another writer holds the lock; only the intent of this writer itself is ignored. A
+   * failed attempt posts or renews the intent of this writer, unless another writer already waits.
    * 
    * @author Variazioni
    * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return boolean
    */
-  private void clearTimedoutLocks(String lockName) {
+  public boolean lockDatabaseWrite(String lockName, String lockKey, int timeout) {
+    if (!attempt(lockName, () -> onOwners(lockName, lockKey,
+        shard -> lockDatabaseWrite(shard, lockName, lockKey, timeout)))) {
+      return false;
+    }
+    if (isOpenExpirationRenewal) {
+      watchdog.track(lockName, lockKey, timeout);
+    }
+    return true;
+  }
+
+  private boolean lockDatabaseWrite(LockShards.Shard shard, String lockName, String lockKey,
+      int timeout) {
     try {
-      String deleteSql =
-          "DELETE FROM RESOURCE_LOCK WHERE `LOCK_NAME` = ? AND `EXPIRED_TIME` < NOW()";
-      jdbcTemplate.update(deleteSql, lockName);
+      metrics.roundTrip(BACKEND, "lock");
+      return readWriteCounter.acquireWrite(shard, lockName, lockKey, timeout);
     } catch (Exception e) {
-      logger.error("Clearing timeout lock database exception, clearing failed!");
+      logger.error("Database exception, lock failure!", e);
+      metrics.failure(BACKEND, "lock", e);
+      return false;
+    }
+  }
+
+  /**
+   * Exclusive lock on all names implementation
+   * 
+   * @author Variazioni
+   * @param lockNames
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lockAll(Collection<String> lockNames, String lockKey, int timeout,
+      Duration waitTimeout) {
+    List<String> names = new ArrayList<String>(new TreeSet<String>(lockNames));
+    if (names.isEmpty()) {
+      return true;
+    }
+    try {
+      return LockWaiter.await(names.get(0), waitTimeout, waitStrategy,
+          () -> lockDatabaseAll(names, lockKey, timeout));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.error("Interrupted while waiting, lock failure!");
+      return false;
+    }
+  }
+
+  /**
+   * Exclusive lock on all names process. One multi-row INSERT in name order per shard, which
+   * succeeds or fails as a whole; the shards are taken in order and released again if a later one
+   * fails. Queued releases of the names are deleted only when it fails.
+   * 
+   * @author Variazioni
+   * @param lockNames Sorted, without duplicates
+   * @param lockKey
+   * @param timeout
+   * @return boolean
+   */
+  public boolean lockDatabaseAll(List<String> lockNames, String lockKey, int timeout) {
+    if (tryAll(lockNames, lockKey, timeout)) {
+      return true;
+    }
+    boolean flushed = false;
+    for (String lockName : lockNames) {
+      flushed |= releaseBatcher.flushIfPending(lockName);
+    }
+    return flushed && tryAll(lockNames, lockKey, timeout);
+  }
+
+  private boolean tryAll(List<String> lockNames, String lockKey, int timeout) {
+    List<Map.Entry<LockShards.Shard, List<String>>> taken =
+        new ArrayList<Map.Entry<LockShards.Shard, List<String>>>();
+    for (Map.Entry<LockShards.Shard, List<String>> group : shards.group(lockNames).entrySet()) {
+      if (!lockDatabaseAll(group.getKey(), group.getValue(), lockKey, timeout)) {
+        for (Map.Entry<LockShards.Shard, List<String>> done : taken) {
+          try {
+            deleteAll(done.getKey(), done.getValue(), lockKey);
+          } catch (Exception e) {
+            // The leases run out
+            logger.error("Database exception, unlock failure!", e);
+            metrics.failure(BACKEND, "unlock", e);
+          }
+        }
+        return false;
+      }
+      taken.add(group);
+    }
+    if (isOpenExpirationRenewal) {
+      for (String lockName : lockNames) {
+        watchdog.track(lockName, lockKey, timeout);
+      }
+    }
+    return true;
+  }
+
+  private boolean lockDatabaseAll(LockShards.Shard shard, List<String> lockNames, String lockKey,
+      int timeout) {
+    StringBuilder insertSql = new StringBuilder(
+        "INSERT INTO RESOURCE_LOCK (`LOCK_KEY`,`LOCK_ID`,`LOCK_NAME`,`LOCK_HOLDER`,`EXPIRED_TIME`) VALUES ");
+    Object[] args = new Object[lockNames.size() * 4];
+    for (int i = 0; i < lockNames.size(); i++) {
+      insertSql.append(i == 0 ? "" : ", ")
+          .append("('SINGLE_LOCK', ?, ?, ?, DATE_ADD(NOW(), INTERVAL ? SECOND))");
+      args[i * 4] = LockIds.of(lockNames.get(i));
+      args[i * 4 + 1] = lockNames.get(i);
+      args[i * 4 + 2] = lockKey;
+      args[i * 4 + 3] = timeout;
+    }
+
+    for (int tries = 0; tries < 2; tries++) {
+      try {
+        metrics.roundTrip(BACKEND, "lock");
+        fencingTokens.insert(shard.getJdbcTemplate(), insertSql.toString(), lockNames, lockKey,
+            args);
+        return true;
+      } catch (DuplicateKeyException e) {
+        // Some names are held, retry once if expired locks were among them
+        if (tries > 0 || clearExpired(shard, lockNames) == 0) {
+          return false;
+        }
+      } catch (Exception e) {
+        logger.error("Database exception, lock failure!", e);
+        metrics.failure(BACKEND, "lock", e);
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Unlock all names implementation, one DELETE
+   * 
+   * @author Variazioni
+   * @param lockNames
+   * @param lockKey
+   * @return boolean
+   */
+  @Override
+  public boolean unlockAll(Collection<String> lockNames, String lockKey) {
+    Set<String> names = new TreeSet<String>(lockNames);
+    if (names.isEmpty()) {
+      return true;
+    }
+    for (String lockName : names) {
+      watchdog.untrack(lockName, lockKey);
+      fencingTokens.remove(lockName, lockKey);
+    }
+    try {
+      int deleted = 0;
+      int rows = 0;
+      for (Map.Entry<LockShards.Shard, List<String>> group : shards.group(names).entrySet()) {
+        deleted += deleteAll(group.getKey(), group.getValue(), lockKey);
+        rows += group.getValue().size();
+      }
+      if (deleted > 0) {
+        notifyReleased(names);
+      }
+      if (deleted < rows) {
+        return false;
+      }
+    } catch (Exception e) {
+      logger.error("Database exception, unlock failure!", e);
+      metrics.failure(BACKEND, "unlock", e);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Delete the rows of a holder on one shard, one DELETE
+   * 
+   * @author Variazioni
+   * @param shard
+   * @param lockNames
+   * @param lockKey
+   * @return int
+   */
+  private int deleteAll(LockShards.Shard shard, List<String> lockNames, String lockKey) {
+    Object[] args = new Object[lockNames.size() + 1];
+    args[0] = lockKey;
+    for (int i = 0; i < lockNames.size(); i++) {
+      args[i + 1] = LockIds.of(lockNames.get(i));
+    }
+    metrics.roundTrip(BACKEND, "unlock");
+    String sql = "DELETE FROM `RESOURCE_LOCK` WHERE `LOCK_HOLDER` = ? AND `LOCK_ID` IN ("
+        + placeholders(lockNames.size()) + ")";
+    return shard.getJdbcTemplate().update(sql, args);
+  }
+
+  /**
+   * Tell the waiters that lock names were released, on other nodes through the release version
+   * 
+   * @author Variazioni
+   * @param lockNames
+   */
+  private void notifyReleased(Collection<String> lockNames) {
+    bumpReleaseVersions(lockNames);
+    for (String lockName : lockNames) {
+      LockReleaseNotifier.getDefault().released(lockName);
+    }
+  }
+
+  /**
+   * Bump the release versions of lock names
+   * 
+   * @author Variazioni
+   * @param lockNames
+   */
+  private void bumpReleaseVersions(Collection<String> lockNames) {
+    if (!releaseVersionsEnabled) {
+      return;
+    }
+    try {
+      metrics.roundTrip(BACKEND, "release-version");
+      releaseVersions.bump(lockNames);
+    } catch (Exception e) {
+      // Remote waiters notice the release by their next count
+      logger.warn("Database exception, bumping release version failure!", e);
+      metrics.failure(BACKEND, "release-version", e);
+    }
+  }
+
+  /**
+   * Delete expired exclusive locks of some names on one shard
+   * 
+   * @author Variazioni
+   * @param shard
+   * @param lockNames
+   * @return int
+   */
+  private int clearExpired(LockShards.Shard shard, List<String> lockNames) {
+    try {
+      String sql =
+          "DELETE FROM RESOURCE_LOCK WHERE `LOCK_KEY` = 'SINGLE_LOCK' AND `EXPIRED_TIME` < NOW() AND `LOCK_ID` IN ("
+              + placeholders(lockNames.size()) + ")";
+      Object[] args = new Object[lockNames.size()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = LockIds.of(lockNames.get(i));
+      }
+      return shard.getJdbcTemplate().update(sql, args);
+    } catch (Exception e) {
+      logger.error("Clearing timeout lock database exception, clearing failed!", e);
+      return 0;
+    }
+  }
+
+  /**
+   * Exclusive locks of this node whose release a contender has requested
+   * 
+   * @author Variazioni
+   * @param lockNames
+   * @return Set
+   */
+  public Set<String> revokeRequested(Collection<String> lockNames) {
+    Set<String> result = new TreeSet<String>();
+    try {
+      for (Map.Entry<LockShards.Shard, List<String>> group : shards.group(lockNames).entrySet()) {
+        List<String> names = group.getValue();
+        String sql =
+            "SELECT `LOCK_NAME` FROM RESOURCE_LOCK WHERE `LOCK_KEY` = 'SINGLE_LOCK' AND `REVOKE_REQUESTED` = 1 AND `LOCK_ID` IN ("
+                + placeholders(names.size()) + ")";
+        Object[] args = new Object[names.size()];
+        for (int i = 0; i < args.length; i++) {
+          args[i] = LockIds.of(names.get(i));
+        }
+        metrics.roundTrip(BACKEND, "revoke-check");
+        result.addAll(group.getKey().getJdbcTemplate().queryForList(sql, String.class, args));
+      }
+    } catch (Exception e) {
+      logger.error("Database exception, query revoke requests failure!", e);
+      metrics.failure(BACKEND, "revoke-check", e);
+    }
+    return result;
+  }
+
+  /**
+   * Extend a kept exclusive lease that is handed out again on this node and clear its revoke flag.
+   * A contender that still waits flags it again with its next attempt.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param second
+   * @return boolean
+   */
+  public boolean renewKept(String lockName, String lockKey, int second) {
+    try {
+      String sql =
+          "UPDATE RESOURCE_LOCK SET `EXPIRED_TIME` = DATE_ADD(NOW(), INTERVAL ? SECOND), `UPDATE_TIME` = NOW(), `REVOKE_REQUESTED` = 0 WHERE `LOCK_ID` = ? AND `LOCK_KEY` = 'SINGLE_LOCK' AND `LOCK_HOLDER` = ? AND `EXPIRED_TIME` >= NOW()";
+      for (LockShards.Shard shard : shards.owners(lockName)) {
+        metrics.roundTrip(BACKEND, "extend");
+        if (shard.getJdbcTemplate().update(sql, second, LockIds.of(lockName), lockKey) == 0) {
+          return false;
+        }
+      }
+    } catch (Exception e) {
+      logger.error("Database exception, lock timeout extended failure!", e);
+      metrics.failure(BACKEND, "extend", e);
+      return false;
+    }
+    watchdog.retime(lockName, lockKey, second);
+    return true;
+  }
+
+  /**
+   * Placeholders of an IN list
+   * 
+   * @author Variazioni
+   * @param count
+   * @return String
+   */
+  private static String placeholders(int count) {
+    StringBuilder sb = new StringBuilder(count * 3);
+    for (int i = 0; i < count; i++) {
+      sb.append(i == 0 ? "?" : ", ?");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Fencing token implementation. A permit handed out from a lease of this node has no token.
+   * 
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return long
+   */
+  @Override
+  public long getFencingToken(String lockName, String lockKey) {
+    if (permitLeases.holds(lockName, lockKey)) {
+      return AppConst.NO_FENCING_TOKEN;
+    }
+    return fencingTokens.get(lockName, lockKey);
+  }
+
+  /**
+   * Locks held by one waiter's lock name. Counts the holders only when the release version moved
+   * or the earliest lease has run out since the last count, every other check is one primary key
+   * read. Without release versions every check counts.
+   */
+  private class ReleaseWatch implements IntSupplier {
+    private final String lockName;
+    private long version = -1;
+    private long recountAt;
+    private int count;
+
+    private ReleaseWatch(String lockName) {
+      this.lockName = lockName;
+    }
+
+    @Override
+    public int getAsInt() {
+      try {
+        long now = System.nanoTime();
+        if (releaseVersionsEnabled) {
+          // Read before counting, so a release after the count moves the version
+          long current = version();
+          if (current >= 0 && current == version && now - recountAt < 0) {
+            return held();
+          }
+          version = current;
+        }
+        // Query sql, expired locks are not counted
+        String sql =
+            "SELECT COUNT(`LOCK_KEY`), TIMESTAMPDIFF(MICROSECOND, NOW(), MIN(`EXPIRED_TIME`)) FROM `RESOURCE_LOCK` WHERE `LOCK_ID` = ? AND `EXPIRED_TIME` >= NOW()";
+        long untilExpiry = Long.MAX_VALUE;
+        count = 0;
+        for (LockShards.Shard shard : shards.owners(lockName)) {
+          metrics.roundTrip(BACKEND, "count");
+          SqlRowSet rs = shard.getJdbcTemplate().queryForRowSet(sql, LockIds.of(lockName));
+          if (rs.next() && rs.getInt(1) > 0) {
+            count = Math.max(count, rs.getInt(1));
+            untilExpiry = Math.min(untilExpiry, rs.getLong(2));
+          }
+        }
+        if (count == 0) {
+          untilExpiry = 0;
+        }
+        // Expiry times have second precision, a lease is alive through its last second
+        recountAt = now + TimeUnit.MICROSECONDS.toNanos(untilExpiry) + TimeUnit.SECONDS.toNanos(1);
+        return held();
+      } catch (Exception e) {
+        logger.error("Query lock quantity database exception, return failure!", e);
+        metrics.failure(BACKEND, "count", e);
+        return -1;
+      }
+    }
+
+    /** Counted holders without the leased permits nobody holds and the queued releases */
+    private int held() {
+      return Math.max(count - permitLeases.idle(lockName) - releaseBatcher.pending(lockName), 0);
+    }
+
+    /** Release version, -1 if unknown so the caller counts */
+    private long version() {
+      try {
+        metrics.roundTrip(BACKEND, "release-version");
+        return releaseVersions.version(lockName);
+      } catch (Exception e) {
+        logger.warn("Database exception, query release version failure!", e);
+        metrics.failure(BACKEND, "release-version", e);
+        return -1;
+      }
     }
   }
 
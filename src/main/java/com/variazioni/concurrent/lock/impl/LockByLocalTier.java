@@ -0,0 +1,570 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.wait.LockWaiter;
+
+/**
+ * Two-tier implementation. Threads of this node first queue on an in-process gate per lock name,
+ * only the gate holders go to the database. A holder that releases while local threads are queued
+ * hands its database lease directly to the next one, without a database round trip. After
+ * concurrent.lock.local-tier.max-hand-offs hand-offs in a row the lease goes back to the database,
+ * so the queue of this node cannot keep a lock from other nodes.
+ * <p>
+ * With concurrent.lock.local-tier.sticky-millis an exclusive lease is biased towards this node: a
+ * holder that releases with nobody queued keeps the database lease for the grace period, so the
+ * next local acquire costs no round trip. A node that fails to take the lock flags its row, this
+ * node checks the flags of its kept leases every revoke-check-millis and gives a flagged lease up
+ * as soon as it is not held. Renewing a kept lease to hand it out again clears the flag.
+ * <p>
+ * A gate lives while threads queue on it or hold it and while it keeps a lease, so only the names
+ * in use take memory.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class LockByLocalTier implements Lock {
+
+  @Resource(name = "lockByDatabase")
+  private LockByDatabase lock;
+
+  /** Keep a released exclusive lease this long for the next local acquire, 0 releases at once */
+  @Value("${concurrent.lock.local-tier.sticky-millis:0}")
+  private long stickyMillis;
+
+  /** Interval of checking kept leases for revoke requests and the end of their grace period */
+  @Value("${concurrent.lock.local-tier.revoke-check-millis:100}")
+  private long revokeCheckMillis;
+
+  /** Local hand-offs of one lease before it goes back to the database */
+  @Value("${concurrent.lock.local-tier.max-hand-offs:16}")
+  private int maxHandOffs;
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(LockByLocalTier.class);
+
+  /** Local gate per lock name and lock type, the users of an entry change in compute only */
+  private final ConcurrentHashMap<String, LocalEntry> entries =
+      new ConcurrentHashMap<String, LocalEntry>();
+
+  /** Gates keeping a lease */
+  private final Set<LocalEntry> keptEntries = ConcurrentHashMap.newKeySet();
+
+  /** Local holders, lockKey to the lease it uses */
+  private final ConcurrentHashMap<String, Holder> holders = new ConcurrentHashMap<String, Holder>();
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Start checking kept leases
+   *
+   * @author Variazioni
+   */
+  @PostConstruct
+  public void start() {
+    if (stickyMillis <= 0) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "lock-local-tier-sticky");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::checkKept, revokeCheckMillis, revokeCheckMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop checking and release the kept leases
+   *
+   * @author Variazioni
+   */
+  @PreDestroy
+  public void stop() {
+    if (scheduler == null) {
+      return;
+    }
+    scheduler.shutdown();
+    for (LocalEntry entry : keptEntries) {
+      Lease lease = entry.kept;
+      if (lease != null && entry.idle.remove(lease)) {
+        release(entry, lease);
+        tidy(entry);
+      }
+    }
+  }
+
+  /**
+   * Locks statistics implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return int
+   */
+  @Override
+  public int locksCount(String lockName) {
+    return lock.locksCount(lockName);
+  }
+
+  /**
+   * Shared lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int limit, int timeout,
+      Duration waitTimeout) {
+    return acquire(lockName, lockKey, false, limit, timeout, waitTimeout);
+  }
+
+  /**
+   * Exclusive lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return acquire(lockName, lockKey, true, 1, timeout, waitTimeout);
+  }
+
+  /**
+   * Read lock, straight to the database without the local gate
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean readLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return lock.readLock(lockName, lockKey, timeout, waitTimeout);
+  }
+
+  /**
+   * Write lock, straight to the database without the local gate
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean writeLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return lock.writeLock(lockName, lockKey, timeout, waitTimeout);
+  }
+
+  /**
+   * Unlock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return boolean
+   */
+  @Override
+  public boolean unlock(String lockName, String lockKey) {
+    Holder holder = holders.remove(lockKey);
+    if (holder == null) {
+      return lock.unlock(lockName, lockKey);
+    }
+    LocalEntry entry = holder.entry;
+    Lease lease = holder.lease;
+
+    // Local threads are queued, hand the lease over. Biased, keep it with nobody queued. Checked
+    // and offered under the entry lock, a waiter that gives up meanwhile finds the lease.
+    boolean handOff;
+    synchronized (entry) {
+      long now = System.nanoTime();
+      boolean queued = entry.waiters.get() > 0;
+      handOff = !lease.revoked && lease.expiresAt - now > 0
+          && (queued ? lease.handOffs < maxHandOffs : entry.kept == lease);
+      if (handOff) {
+        if (queued) {
+          lease.handOffs++;
+        }
+        lease.idleSince = now;
+        entry.idle.offerLast(lease);
+      }
+    }
+    if (handOff) {
+      entry.gate.release();
+      done(entry);
+      return true;
+    }
+
+    boolean result = release(entry, lease);
+    entry.gate.release();
+    done(entry);
+    return result;
+  }
+
+  /**
+   * Waiting to unlock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean waitLock(String lockName, Duration waitTimeout) {
+    return lock.waitLock(lockName, waitTimeout);
+  }
+
+  /**
+   * Asynchronous waiting to unlock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> waitLockAsync(String lockName, Duration waitTimeout) {
+    return lock.waitLockAsync(lockName, waitTimeout);
+  }
+
+  /**
+   * Lock timeout extended
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param second
+   * @return boolean
+   */
+  @Override
+  public boolean extendLock(String lockName, String lockKey, int second) {
+    Holder holder = holders.get(lockKey);
+    if (holder == null) {
+      return lock.extendLock(lockName, lockKey, second);
+    }
+    long start = System.nanoTime();
+    if (!lock.extendLock(lockName, holder.lease.dbKey, second)) {
+      return false;
+    }
+    holder.lease.expiresAt = start + TimeUnit.SECONDS.toNanos(second);
+    return true;
+  }
+
+  /**
+   * Fencing token implementation. A lease handed over locally keeps its token, the token fences
+   * the database lease, not each local holder.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return long
+   */
+  @Override
+  public long getFencingToken(String lockName, String lockKey) {
+    Holder holder = holders.get(lockKey);
+    return lock.getFencingToken(lockName, holder == null ? lockKey : holder.lease.dbKey);
+  }
+
+  /**
+   * Acquire the local gate, then reuse a handed-over lease or go to the database
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param exclusive
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  private boolean acquire(String lockName, String lockKey, boolean exclusive, int limit,
+      int timeout, Duration waitTimeout) {
+    long deadline = System.nanoTime() + LockWaiter.toNanos(waitTimeout);
+    LocalEntry entry = entries.compute((exclusive ? "X:" : "S:") + lockName, (k, e) -> {
+      LocalEntry result = e == null ? new LocalEntry(k, lockName, Math.max(1, limit)) : e;
+      result.users++;
+      return result;
+    });
+
+    // Local queue
+    boolean permitted = false;
+    entry.waiters.incrementAndGet();
+    try {
+      permitted = entry.gate.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!permitted) {
+      leave(entry);
+      done(entry);
+      return false;
+    }
+
+    // Direct hand-off from a local holder, still counted as a waiter so nothing is left behind
+    Lease lease;
+    try {
+      lease = takeIdle(lockName, entry, timeout);
+    } finally {
+      leave(entry);
+    }
+
+    // Head of the local queue goes to the database
+    if (lease == null) {
+      long start = System.nanoTime();
+      Duration remaining = Duration.ofNanos(Math.max(0, deadline - start));
+      boolean locked = false;
+      try {
+        locked = exclusive ? lock.lock(lockName, lockKey, timeout, remaining)
+            : lock.lock(lockName, lockKey, limit, timeout, remaining);
+      } finally {
+        if (!locked) {
+          entry.gate.release();
+          done(entry);
+        }
+      }
+      if (!locked) {
+        return false;
+      }
+      lease = new Lease(lockKey, start + TimeUnit.SECONDS.toNanos(timeout));
+      if (exclusive && stickyMillis > 0) {
+        entry.kept = lease;
+        keptEntries.add(entry);
+      }
+    }
+    holders.put(lockKey, new Holder(entry, lease));
+    return true;
+  }
+
+  /**
+   * Take a handed-over lease, extending it when it would expire before the requested timeout
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param entry
+   * @param timeout
+   * @return Lease null if there is no usable lease
+   */
+  private Lease takeIdle(String lockName, LocalEntry entry, int timeout) {
+    Lease lease;
+    while ((lease = entry.idle.pollFirst()) != null) {
+      if (lease.revoked) {
+        // Asked for by another node, it goes back to the database first
+        release(entry, lease);
+        continue;
+      }
+      long start = System.nanoTime();
+      if (lease.expiresAt - start >= TimeUnit.SECONDS.toNanos(timeout)) {
+        return lease;
+      }
+      // A kept lease is extended ahead, so a run of local acquires extends once per timeout
+      boolean kept = entry.kept == lease;
+      int second = kept ? timeout * 2 : timeout;
+      if (kept ? lock.renewKept(lockName, lease.dbKey, second)
+          : lock.extendLock(lockName, lease.dbKey, second)) {
+        lease.expiresAt = start + TimeUnit.SECONDS.toNanos(second);
+        return lease;
+      }
+      unkeep(entry, lease);
+      logger.warn("Handed-over lease of " + lockName + " has expired, acquiring again.");
+    }
+    return null;
+  }
+
+  /**
+   * Release a lease to the database
+   *
+   * @author Variazioni
+   * @param entry
+   * @param lease
+   * @return boolean
+   */
+  private boolean release(LocalEntry entry, Lease lease) {
+    unkeep(entry, lease);
+    return lock.unlock(entry.lockName, lease.dbKey);
+  }
+
+  private void unkeep(LocalEntry entry, Lease lease) {
+    if (entry.kept == lease) {
+      entry.kept = null;
+      keptEntries.remove(entry);
+    }
+  }
+
+  /**
+   * A thread is done with a gate, forget the gate if nobody else uses it
+   *
+   * @author Variazioni
+   * @param entry
+   */
+  private void done(LocalEntry entry) {
+    entries.computeIfPresent(entry.key, (k, e) -> {
+      e.users--;
+      return e.unused() ? null : e;
+    });
+  }
+
+  /**
+   * Forget a gate that is no longer used
+   *
+   * @author Variazioni
+   * @param entry
+   */
+  private void tidy(LocalEntry entry) {
+    entries.computeIfPresent(entry.key, (k, e) -> e == entry && e.unused() ? null : e);
+  }
+
+  /**
+   * Mark the kept leases another node asked for and release the idle ones among them, or whose
+   * grace period has ended
+   *
+   * @author Variazioni
+   */
+  private void checkKept() {
+    try {
+      List<LocalEntry> kept = new ArrayList<LocalEntry>();
+      List<String> lockNames = new ArrayList<String>();
+      for (LocalEntry entry : keptEntries) {
+        if (entry.kept != null) {
+          kept.add(entry);
+          lockNames.add(entry.lockName);
+        }
+      }
+      if (kept.isEmpty()) {
+        return;
+      }
+      Set<String> revoked = lock.revokeRequested(lockNames);
+      long now = System.nanoTime();
+      for (LocalEntry entry : kept) {
+        Lease lease = entry.kept;
+        if (lease == null) {
+          continue;
+        }
+        if (revoked.contains(entry.lockName)) {
+          lease.revoked = true;
+        }
+        if ((lease.revoked || now - lease.idleSince >= TimeUnit.MILLISECONDS.toNanos(stickyMillis))
+            && entry.idle.remove(lease)) {
+          release(entry, lease);
+          tidy(entry);
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.error("Checking kept leases failed!", e);
+    }
+  }
+
+  /**
+   * Stop counting as a waiter. The last waiter to leave releases the leases handed over to nobody,
+   * only a kept lease stays for its grace period.
+   *
+   * @author Variazioni
+   * @param entry
+   */
+  private void leave(LocalEntry entry) {
+    List<Lease> left = null;
+    synchronized (entry) {
+      if (entry.waiters.decrementAndGet() > 0 || entry.idle.isEmpty()) {
+        return;
+      }
+      for (Lease lease : entry.idle) {
+        if (lease != entry.kept && entry.idle.remove(lease)) {
+          if (left == null) {
+            left = new ArrayList<Lease>(1);
+          }
+          left.add(lease);
+        }
+      }
+    }
+    if (left != null) {
+      for (Lease lease : left) {
+        release(entry, lease);
+      }
+    }
+  }
+
+  /**
+   * Local gate of one lock name
+   */
+  private static class LocalEntry {
+    private final String key;
+    private final String lockName;
+    private final Semaphore gate;
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ConcurrentLinkedDeque<Lease> idle = new ConcurrentLinkedDeque<Lease>();
+    /** Exclusive lease kept between local holders, null if none */
+    private volatile Lease kept;
+    /** Threads queued on or holding the gate, guarded by the entries map */
+    private int users;
+
+    private LocalEntry(String key, String lockName, int permits) {
+      this.key = key;
+      this.lockName = lockName;
+      this.gate = new Semaphore(permits, true);
+    }
+
+    private boolean unused() {
+      return users == 0 && kept == null && idle.isEmpty();
+    }
+  }
+
+  /**
+   * Database lease, dbKey is the lockKey it was acquired with
+   */
+  private static class Lease {
+    private final String dbKey;
+    private volatile long expiresAt;
+    /** Another node asked for it, it is neither kept nor handed over */
+    private volatile boolean revoked;
+    /** System.nanoTime() it was last released locally */
+    private volatile long idleSince;
+    /** Local hand-offs to queued threads since it was acquired */
+    private int handOffs;
+
+    private Lease(String dbKey, long expiresAt) {
+      this.dbKey = dbKey;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * Local holder
+   */
+  private static class Holder {
+    private final LocalEntry entry;
+    private final Lease lease;
+
+    private Holder(LocalEntry entry, Lease lease) {
+      this.entry = entry;
+      this.lease = lease;
+    }
+  }
+}
@@ -0,0 +1,447 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.util.AppConst;
+import com.variazioni.concurrent.lock.wait.BackoffWaitStrategy;
+import com.variazioni.concurrent.lock.wait.LockReleaseNotifier;
+import com.variazioni.concurrent.lock.wait.LockWaitScheduler;
+import com.variazioni.concurrent.lock.wait.LockWaiter;
+import com.variazioni.concurrent.lock.wait.WaitStrategy;
+
+/**
+ * In-memory implementation for locks that only need to be node-local, and for single-node
+ * deployments and tests. Same exclusive, shared limit, expiry, extend and fencing semantics as the
+ * database, but every operation is one atomic compute on the entry of its lock name, so different
+ * names never contend and no I/O is involved.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Component
+public class LockByMemory implements Lock {
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(LockByMemory.class);
+
+  private static final char EXCLUSIVE = 'X';
+  private static final char SHARED = 'S';
+  private static final char READ = 'R';
+  private static final char WRITE = 'W';
+
+  /** Waiting writers keep new readers out, so writers do not starve */
+  @Value("${concurrent.lock.read-write.writer-preference:true}")
+  private boolean writerPreference = true;
+
+  /** Lifetime of the intent of a waiting writer, every attempt renews it */
+  @Value("${concurrent.lock.read-write.intent-seconds:5}")
+  private int writeIntentSeconds = 5;
+
+  /** Holders per lock name, an entry is removed with its last holder */
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /** Fencing token sequence */
+  private final AtomicLong tokens = new AtomicLong();
+
+  /** Spin first, a memory lock is usually released within microseconds */
+  private final WaitStrategy waitStrategy =
+      new BackoffWaitStrategy(16, 10, 1000, TimeUnit.MICROSECONDS);
+
+  /**
+   * Locks statistics implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return int
+   */
+  @Override
+  public int locksCount(String lockName) {
+    int[] count = new int[1];
+    entries.computeIfPresent(lockName, (k, entry) -> {
+      count[0] = entry.purge(System.nanoTime());
+      return entry.isEmpty() ? null : entry;
+    });
+    return count[0];
+  }
+
+  /**
+   * Shared lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int limit, int timeout,
+      Duration waitTimeout) {
+    try {
+      return LockWaiter.await(lockName, waitTimeout, waitStrategy,
+          () -> acquire(lockName, lockKey, SHARED, limit, timeout));
+    } catch (InterruptedException e) {
+      logger.error("Interrupted while waiting for lock " + lockName + "!", e);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Exclusive lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    try {
+      return LockWaiter.await(lockName, waitTimeout, waitStrategy,
+          () -> acquire(lockName, lockKey, EXCLUSIVE, 1, timeout));
+    } catch (InterruptedException e) {
+      logger.error("Interrupted while waiting for lock " + lockName + "!", e);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Shared lock without blocking, paced for memory instead of the database
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int limit,
+      int timeout, Duration waitTimeout) {
+    return LockWaitScheduler.getDefault().submit(lockName,
+        () -> acquire(lockName, lockKey, SHARED, limit, timeout), () -> unlock(lockName, lockKey),
+        waitTimeout, waitStrategy);
+  }
+
+  /**
+   * Exclusive lock without blocking, paced for memory instead of the database
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int timeout,
+      Duration waitTimeout) {
+    return LockWaitScheduler.getDefault().submit(lockName,
+        () -> acquire(lockName, lockKey, EXCLUSIVE, 1, timeout), () -> unlock(lockName, lockKey),
+        waitTimeout, waitStrategy);
+  }
+
+  /**
+   * Read lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean readLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    try {
+      return LockWaiter.await(lockName, waitTimeout, waitStrategy,
+          () -> acquire(lockName, lockKey, READ, 0, timeout));
+    } catch (InterruptedException e) {
+      logger.error("Interrupted while waiting for lock " + lockName + "!", e);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Write lock implementation. A writer that gives up withdraws its intent.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean writeLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    boolean locked = false;
+    try {
+      locked = LockWaiter.await(lockName, waitTimeout, waitStrategy,
+          () -> acquire(lockName, lockKey, WRITE, 0, timeout));
+    } catch (InterruptedException e) {
+      logger.error("Interrupted while waiting for lock " + lockName + "!", e);
+      Thread.currentThread().interrupt();
+    }
+    if (!locked) {
+      entries.computeIfPresent(lockName, (k, entry) -> {
+        entry.withdraw(lockKey);
+        return entry.isEmpty() ? null : entry;
+      });
+    }
+    return locked;
+  }
+
+  /**
+   * Unlock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return boolean
+   */
+  @Override
+  public boolean unlock(String lockName, String lockKey) {
+    boolean[] result = new boolean[1];
+    entries.computeIfPresent(lockName, (k, entry) -> {
+      entry.purge(System.nanoTime());
+      result[0] = entry.remove(lockKey);
+      return entry.isEmpty() ? null : entry;
+    });
+    if (result[0]) {
+      LockReleaseNotifier.getDefault().released(lockName);
+    }
+    return result[0];
+  }
+
+  /**
+   * Waiting lock implementation, woken by the releases
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean waitLock(String lockName, Duration waitTimeout) {
+    try {
+      return LockReleaseNotifier.getDefault().await(lockName, waitTimeout, waitStrategy,
+          () -> locksCount(lockName));
+    } catch (InterruptedException e) {
+      logger.error("Interrupted while waiting for lock " + lockName + "!", e);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Waiting lock without blocking, paced for memory instead of the database
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> waitLockAsync(String lockName, Duration waitTimeout) {
+    return LockReleaseNotifier.getDefault().submit(lockName, waitTimeout, waitStrategy,
+        () -> locksCount(lockName));
+  }
+
+  /**
+   * Extend lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return boolean
+   */
+  @Override
+  public boolean extendLock(String lockName, String lockKey, int timeout) {
+    boolean[] result = new boolean[1];
+    entries.computeIfPresent(lockName, (k, entry) -> {
+      long now = System.nanoTime();
+      entry.purge(now);
+      Holder holder = entry.holders.get(lockKey);
+      if (holder != null) {
+        holder.expiresAt = now + TimeUnit.SECONDS.toNanos(timeout);
+        entry.nextExpiry = Math.min(entry.nextExpiry, holder.expiresAt);
+        result[0] = true;
+      }
+      return entry.isEmpty() ? null : entry;
+    });
+    return result[0];
+  }
+
+  /**
+   * Fencing token implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return long
+   */
+  @Override
+  public long getFencingToken(String lockName, String lockKey) {
+    long[] token = {AppConst.NO_FENCING_TOKEN};
+    entries.computeIfPresent(lockName, (k, entry) -> {
+      Holder holder = entry.holders.get(lockKey);
+      if (holder != null) {
+        token[0] = holder.fencingToken;
+      }
+      return entry;
+    });
+    return token[0];
+  }
+
+  /**
+   * One attempt
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param mode
+   * @param limit
+   * @param timeout
+   * @return boolean
+   */
+  private boolean acquire(String lockName, String lockKey, char mode, int limit, int timeout) {
+    boolean[] result = new boolean[1];
+    entries.compute(lockName, (k, entry) -> {
+      long now = System.nanoTime();
+      if (entry == null) {
+        entry = new Entry();
+      }
+      entry.purge(now);
+      boolean free;
+      switch (mode) {
+        case EXCLUSIVE:
+          free = entry.exclusiveHolders == 0;
+          break;
+        case READ:
+          free = entry.writeHolders == 0 && (!writerPreference || entry.writeIntent == null);
+          break;
+        case WRITE:
+          free = entry.holders.isEmpty();
+          break;
+        default:
+          // Like the database, an exclusive holder also takes one place of the shared limit
+          free = entry.holders.size() < limit;
+          break;
+      }
+      if (free && !entry.holders.containsKey(lockKey)) {
+        entry.add(lockKey, new Holder(mode, now + TimeUnit.SECONDS.toNanos(timeout),
+            tokens.incrementAndGet()));
+        result[0] = true;
+      } else if (mode == WRITE && writerPreference
+          && (entry.writeIntent == null || entry.writeIntent.equals(lockKey))) {
+        entry.writeIntent = lockKey;
+        entry.intentExpiresAt = now + TimeUnit.SECONDS.toNanos(writeIntentSeconds);
+      }
+      return entry.isEmpty() ? null : entry;
+    });
+    return result[0];
+  }
+
+  /**
+   * Holders of one lock name. Mutated inside compute only, which also publishes the changes.
+   */
+  private static class Entry {
+    private final HashMap<String, Holder> holders = new HashMap<String, Holder>(4);
+    private int exclusiveHolders;
+    private int writeHolders;
+    /** No holder expires before this, so most calls skip the scan */
+    private long nextExpiry = Long.MAX_VALUE;
+    /** Waiting writer that keeps new readers out */
+    private String writeIntent;
+    private long intentExpiresAt;
+
+    /** Drop expired holders and intent, returns the live holder count */
+    private int purge(long now) {
+      if (writeIntent != null && intentExpiresAt - now < 0) {
+        writeIntent = null;
+      }
+      if (holders.isEmpty() || now - nextExpiry < 0) {
+        return holders.size();
+      }
+      long next = Long.MAX_VALUE;
+      for (Iterator<Holder> it = holders.values().iterator(); it.hasNext();) {
+        Holder holder = it.next();
+        if (holder.expiresAt - now < 0) {
+          it.remove();
+          count(holder, -1);
+        } else {
+          next = Math.min(next, holder.expiresAt);
+        }
+      }
+      nextExpiry = next;
+      return holders.size();
+    }
+
+    private void add(String lockKey, Holder holder) {
+      holders.put(lockKey, holder);
+      count(holder, 1);
+      nextExpiry = Math.min(nextExpiry, holder.expiresAt);
+      withdraw(lockKey);
+    }
+
+    private boolean remove(String lockKey) {
+      Holder holder = holders.remove(lockKey);
+      if (holder != null) {
+        count(holder, -1);
+      }
+      withdraw(lockKey);
+      return holder != null;
+    }
+
+    private void withdraw(String lockKey) {
+      if (lockKey.equals(writeIntent)) {
+        writeIntent = null;
+      }
+    }
+
+    private void count(Holder holder, int delta) {
+      if (holder.mode == EXCLUSIVE) {
+        exclusiveHolders += delta;
+      } else if (holder.mode == WRITE) {
+        writeHolders += delta;
+      }
+    }
+
+    private boolean isEmpty() {
+      return holders.isEmpty() && writeIntent == null;
+    }
+  }
+
+  /**
+   * One holder
+   */
+  private static class Holder {
+    private final char mode;
+    private long expiresAt;
+    private final long fencingToken;
+
+    private Holder(char mode, long expiresAt, long fencingToken) {
+      this.mode = mode;
+      this.expiresAt = expiresAt;
+      this.fencingToken = fencingToken;
+    }
+  }
+}
@@ -0,0 +1,428 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.metrics.LockMetrics;
+import com.variazioni.concurrent.lock.wait.LockReleaseNotifier;
+import com.variazioni.concurrent.lock.wait.LockWaiter;
+import com.variazioni.concurrent.lock.wait.WaitPolicy;
+import com.variazioni.concurrent.lock.wait.WaitStrategy;
+
+/**
+ * Implementation class based on MySQL named locks. An exclusive lock is a GET_LOCK held by a
+ * connection pinned to it until unlock, so a contended attempt is no failed INSERT, a waiter
+ * sleeps inside GET_LOCK and wakes up as soon as the lock is released, and a lock whose session
+ * dies is released by the server. Each held lock takes one pooled connection until it is released.
+ * A waiter sleeps inside GET_LOCK for at most concurrent.lock.named-lock.wait-slice-seconds, then
+ * gives its connection back and retries through the wait strategy, so waiters do not drain the
+ * pool. Named locks have no fencing token. Shared locks go to the table implementation.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class LockByNamedLock implements Lock {
+
+  @Autowired
+  private DataSource dataSource;
+
+  /** Shared locks and their holders stay in the table */
+  @Resource(name = "lockByDatabase")
+  private Lock table;
+
+  @Autowired(required = false)
+  private LockMetrics metrics = LockMetrics.NOOP;
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(LockByNamedLock.class);
+
+  /** Longest name GET_LOCK accepts */
+  private static final int MAX_NAME_LENGTH = 64;
+
+  /** Keep named locks until unlocked instead of ending them at the lease timeout */
+  @Value("${concurrent.lock.expiration-renewal:false}")
+  private boolean isOpenExpirationRenewal;
+
+  /** Longest wait inside one GET_LOCK, the connection goes back to the pool between the waits */
+  @Value("${concurrent.lock.named-lock.wait-slice-seconds:1}")
+  private int waitSliceSeconds;
+
+  /** Waiting strategy between the GET_LOCK waits, a WaitStrategy bean takes precedence */
+  @Autowired(required = false)
+  private WaitStrategy waitStrategy;
+
+  @Value("${concurrent.lock.wait.policy:BACKOFF}")
+  private WaitPolicy waitPolicy;
+
+  @Value("${concurrent.lock.wait.spin-tries:3}")
+  private int waitSpinTries;
+
+  @Value("${concurrent.lock.wait.initial-millis:5}")
+  private long waitInitialMillis;
+
+  @Value("${concurrent.lock.wait.max-millis:1000}")
+  private long waitMaxMillis;
+
+  @Value("${concurrent.lock.wait.max-retries-per-second:20}")
+  private int waitMaxRetriesPerSecond;
+
+  /** Held locks, lockName and lockKey to the pinned connection */
+  private final ConcurrentHashMap<String, Held> held = new ConcurrentHashMap<String, Held>();
+
+  /** Ends the leases that run out */
+  private final ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "lock-named-lock-expirer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Build the waiting strategy from the configuration
+   *
+   * @author Variazioni
+   */
+  @PostConstruct
+  public void init() {
+    if (waitStrategy == null) {
+      waitStrategy = waitPolicy.create(waitSpinTries, waitInitialMillis, waitMaxMillis,
+          waitMaxRetriesPerSecond);
+    }
+  }
+
+  /**
+   * Locks statistics implementation, the named lock and the shared holders
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return int
+   */
+  @Override
+  public int locksCount(String lockName) {
+    int shared = table.locksCount(lockName);
+    if (shared < 0) {
+      return shared;
+    }
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement ps = connection.prepareStatement("SELECT IS_USED_LOCK(?)")) {
+      ps.setString(1, toNamedLock(lockName));
+      try (ResultSet rs = ps.executeQuery()) {
+        rs.next();
+        rs.getLong(1);
+        return shared + (rs.wasNull() ? 0 : 1);
+      }
+    } catch (SQLException e) {
+      logger.error("Database exception, query lock failure!", e);
+      return -1;
+    }
+  }
+
+  /**
+   * Shared lock, in the table
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int limit, int timeout,
+      Duration waitTimeout) {
+    return table.lock(lockName, lockKey, limit, timeout, waitTimeout);
+  }
+
+  /**
+   * Exclusive lock implementation. The wait happens inside GET_LOCK, in slices of whole seconds.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    String namedLock = toNamedLock(lockName);
+    long deadline = System.nanoTime() + LockWaiter.toNanos(waitTimeout);
+    Connection[] connection = new Connection[1];
+    try {
+      if (!LockWaiter.await(lockName, waitTimeout, waitStrategy,
+          () -> (connection[0] = getLock(namedLock, deadline)) != null)) {
+        return false;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.error("Interrupted while waiting, lock failure!");
+      close(connection[0]);
+      return false;
+    }
+
+    Held lock = new Held(connection[0]);
+    held.put(lockName + '\n' + lockKey, lock);
+    expireAfter(lockName, lockKey, lock, timeout);
+    return true;
+  }
+
+  /**
+   * Read lock, in the table
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean readLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return table.readLock(lockName, lockKey, timeout, waitTimeout);
+  }
+
+  /**
+   * Write lock, in the table
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean writeLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return table.writeLock(lockName, lockKey, timeout, waitTimeout);
+  }
+
+  /**
+   * Unlock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return boolean
+   */
+  @Override
+  public boolean unlock(String lockName, String lockKey) {
+    Held lock = held.remove(lockName + '\n' + lockKey);
+    if (lock == null) {
+      return table.unlock(lockName, lockKey);
+    }
+    boolean released;
+    synchronized (lock) {
+      if (lock.expiry != null) {
+        lock.expiry.cancel(false);
+      }
+      released = release(lockName, lock.connection);
+    }
+    if (released) {
+      LockReleaseNotifier.getDefault().released(lockName);
+    }
+    return released;
+  }
+
+  /**
+   * Waiting lock implementation. Waits inside GET_LOCK for the named lock, in slices of whole
+   * seconds, then in the table for the shared holders.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean waitLock(String lockName, Duration waitTimeout) {
+    String namedLock = toNamedLock(lockName);
+    long deadline = System.nanoTime() + LockWaiter.toNanos(waitTimeout);
+    try {
+      if (!LockWaiter.await(lockName, waitTimeout, waitStrategy, () -> {
+        Connection connection = getLock(namedLock, deadline);
+        return connection != null && release(lockName, connection);
+      })) {
+        return false;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.error("Interrupted while waiting, query lock failure!");
+      return false;
+    }
+    return table.waitLock(lockName, Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+  }
+
+  /**
+   * Extend lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return boolean
+   */
+  @Override
+  public boolean extendLock(String lockName, String lockKey, int timeout) {
+    Held lock = held.get(lockName + '\n' + lockKey);
+    if (lock == null) {
+      return table.extendLock(lockName, lockKey, timeout);
+    }
+    synchronized (lock) {
+      if (lock.expiry != null && !lock.expiry.cancel(false)) {
+        // Already ended
+        return false;
+      }
+      expireAfter(lockName, lockKey, lock, timeout);
+      return true;
+    }
+  }
+
+  /**
+   * Fencing token of shared locks, named locks have none
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return long
+   */
+  @Override
+  public long getFencingToken(String lockName, String lockKey) {
+    return table.getFencingToken(lockName, lockKey);
+  }
+
+  /**
+   * Stop expiring, the pinned connections stay until unlocked
+   *
+   * @author Variazioni
+   */
+  @PreDestroy
+  public void stop() {
+    expirer.shutdownNow();
+  }
+
+  /**
+   * Schedule the end of a lease
+   */
+  private void expireAfter(String lockName, String lockKey, Held lock, int timeout) {
+    if (isOpenExpirationRenewal) {
+      return;
+    }
+    lock.expiry = expirer.schedule(() -> {
+      if (held.remove(lockName + '\n' + lockKey, lock)) {
+        logger.warn("Lock " + lockName + " timed out and was released.");
+        metrics.expired("lockByNamedLock", 1);
+        synchronized (lock) {
+          release(lockName, lock.connection);
+        }
+      }
+    }, timeout, TimeUnit.SECONDS);
+  }
+
+  /**
+   * One GET_LOCK, waiting until the deadline but no longer than one slice. Returns the connection
+   * holding the lock, or null with the connection given back.
+   */
+  private Connection getLock(String namedLock, long deadline) {
+    long remaining = TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadline - System.nanoTime()));
+    Connection connection = null;
+    try {
+      connection = dataSource.getConnection();
+      try (PreparedStatement ps = connection.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+        ps.setString(1, namedLock);
+        ps.setLong(2, Math.min(waitSliceSeconds, (remaining + 999) / 1000));
+        try (ResultSet rs = ps.executeQuery()) {
+          if (rs.next() && rs.getInt(1) == 1) {
+            return connection;
+          }
+        }
+      }
+    } catch (SQLException e) {
+      logger.error("Database exception, locking failure!", e);
+    }
+    close(connection);
+    return null;
+  }
+
+  /**
+   * Release a named lock on its pinned connection and give the connection back. Closing alone is
+   * not enough, a pooled connection keeps its session and with it the lock.
+   */
+  private boolean release(String lockName, Connection connection) {
+    try (PreparedStatement ps = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+      ps.setString(1, toNamedLock(lockName));
+      try (ResultSet rs = ps.executeQuery()) {
+        return rs.next() && rs.getInt(1) == 1;
+      }
+    } catch (SQLException e) {
+      logger.error("Database exception, unlocking failure!", e);
+      return false;
+    } finally {
+      close(connection);
+    }
+  }
+
+  /**
+   * Name for GET_LOCK, long lock names are hashed
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return String
+   */
+  private static String toNamedLock(String lockName) {
+    if (lockName.length() <= MAX_NAME_LENGTH) {
+      return lockName;
+    }
+    try {
+      StringBuilder name = new StringBuilder("concurrent-lock:");
+      for (byte b : MessageDigest.getInstance("SHA-1")
+          .digest(lockName.getBytes(StandardCharsets.UTF_8))) {
+        name.append(Character.forDigit((b >> 4) & 0xF, 16));
+        name.append(Character.forDigit(b & 0xF, 16));
+      }
+      return name.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void close(Connection connection) {
+    if (connection == null) {
+      return;
+    }
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      logger.warn("Closing a named lock connection failed.", e);
+    }
+  }
+
+  /**
+   * A held named lock
+   */
+  private static class Held {
+    private final Connection connection;
+    private ScheduledFuture<?> expiry;
+
+    private Held(Connection connection) {
+      this.connection = connection;
+    }
+  }
+}
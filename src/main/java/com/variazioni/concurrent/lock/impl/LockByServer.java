@@ -0,0 +1,481 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.server.LockProtocol;
+import com.variazioni.concurrent.lock.util.AppConst;
+import com.variazioni.concurrent.lock.wait.LockWaiter;
+
+/**
+ * Lock server client implementation. All requests of this node share one pipelined connection, a
+ * waiting lock request is queued on the server, which pushes the reply when the lock is granted,
+ * so waiting costs no polling at all. The connection is opened on first use and reopened after a
+ * failure. The server releases the locks of a connection when it closes, so locks held when the
+ * connection fails are lost and their extension returns false. Futures of lockAsync complete on
+ * the common pool, the blocking calls are completed directly by the reader thread.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Component
+public class LockByServer implements Lock {
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(LockByServer.class);
+
+  /** Mode sent with the requests that take no lock */
+  private static final byte NO_MODE = LockProtocol.MODE_SHARED;
+
+  @Value("${concurrent.lock.server.host:127.0.0.1}")
+  private String host;
+
+  @Value("${concurrent.lock.server.port:7070}")
+  private int port;
+
+  /** Reply timeout of the requests that do not wait */
+  @Value("${concurrent.lock.server.request-timeout-millis:5000}")
+  private long requestTimeoutMillis;
+
+  private final AtomicInteger ids = new AtomicInteger();
+
+  /** Fencing tokens of held locks, lockName and lockKey to token */
+  private final ConcurrentHashMap<String, Long> tokens = new ConcurrentHashMap<String, Long>();
+
+  private volatile Connection connection;
+
+  /**
+   * Locks statistics implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return int -1 if the server cannot be reached
+   */
+  @Override
+  public int locksCount(String lockName) {
+    Reply reply = call(LockProtocol.OP_COUNT, lockName, null, NO_MODE, 0, 0, 0,
+        requestTimeoutMillis);
+    return reply == null ? -1 : (int) reply.value;
+  }
+
+  /**
+   * Shared lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int limit, int timeout,
+      Duration waitTimeout) {
+    return awaitLock(
+        send(lockName, lockKey, LockProtocol.MODE_SHARED, limit, timeout, waitTimeout, false),
+        waitTimeout);
+  }
+
+  /**
+   * Exclusive lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return awaitLock(
+        send(lockName, lockKey, LockProtocol.MODE_EXCLUSIVE, 1, timeout, waitTimeout, false),
+        waitTimeout);
+  }
+
+  /**
+   * Read lock implementation, readers queue behind a waiting writer on the server
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean readLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return awaitLock(
+        send(lockName, lockKey, LockProtocol.MODE_READ, 0, timeout, waitTimeout, false),
+        waitTimeout);
+  }
+
+  /**
+   * Write lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean writeLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return awaitLock(
+        send(lockName, lockKey, LockProtocol.MODE_WRITE, 1, timeout, waitTimeout, false),
+        waitTimeout);
+  }
+
+  /**
+   * Shared lock without blocking, the server queues the request and replies when granted
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int limit,
+      int timeout, Duration waitTimeout) {
+    return send(lockName, lockKey, LockProtocol.MODE_SHARED, limit, timeout, waitTimeout, true);
+  }
+
+  /**
+   * Exclusive lock without blocking, the server queues the request and replies when granted
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int timeout,
+      Duration waitTimeout) {
+    return send(lockName, lockKey, LockProtocol.MODE_EXCLUSIVE, 1, timeout, waitTimeout, true);
+  }
+
+  /**
+   * Unlock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return boolean
+   */
+  @Override
+  public boolean unlock(String lockName, String lockKey) {
+    tokens.remove(lockName + '\n' + lockKey);
+    Reply reply = call(LockProtocol.OP_UNLOCK, lockName, lockKey, NO_MODE, 0, 0, 0,
+        requestTimeoutMillis);
+    return reply != null && reply.status == LockProtocol.STATUS_TRUE;
+  }
+
+  /**
+   * Waiting lock implementation, the server replies when the name is free or at the deadline
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean waitLock(String lockName, Duration waitTimeout) {
+    long waitMillis = TimeUnit.NANOSECONDS.toMillis(LockWaiter.toNanos(waitTimeout));
+    Reply reply = call(LockProtocol.OP_WAIT, lockName, null, NO_MODE, 0, 0, waitMillis,
+        waitMillis + requestTimeoutMillis);
+    return reply != null && reply.status == LockProtocol.STATUS_TRUE;
+  }
+
+  /**
+   * Asynchronous waiting lock implementation, completed on the common pool
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> waitLockAsync(String lockName, Duration waitTimeout) {
+    long waitMillis = TimeUnit.NANOSECONDS.toMillis(LockWaiter.toNanos(waitTimeout));
+    return request(LockProtocol.OP_WAIT, lockName, null, NO_MODE, 0, 0, waitMillis)
+        .handleAsync((reply, e) -> {
+          if (e != null) {
+            logger.error("Lock server request failed, waiting for " + lockName + " failure!", e);
+            return false;
+          }
+          return reply.status == LockProtocol.STATUS_TRUE;
+        });
+  }
+
+  /**
+   * Extend lock implementation
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return boolean
+   */
+  @Override
+  public boolean extendLock(String lockName, String lockKey, int timeout) {
+    Reply reply = call(LockProtocol.OP_EXTEND, lockName, lockKey, NO_MODE, 0, timeout, 0,
+        requestTimeoutMillis);
+    return reply != null && reply.status == LockProtocol.STATUS_TRUE;
+  }
+
+  /**
+   * Fencing token implementation, the server returns it with the grant
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return long
+   */
+  @Override
+  public long getFencingToken(String lockName, String lockKey) {
+    Long token = tokens.get(lockName + '\n' + lockKey);
+    return token == null ? AppConst.NO_FENCING_TOKEN : token;
+  }
+
+  /**
+   * Close the connection
+   *
+   * @author Variazioni
+   */
+  @PreDestroy
+  public void close() {
+    Connection current = connection;
+    if (current != null) {
+      current.close(new IOException("Lock server client closed"));
+    }
+  }
+
+  /**
+   * Send a lock request. A grant that arrives after the caller gave up is unlocked again.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param mode
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @param async Complete on the common pool instead of the reader thread, for continuations that
+   *        may block on this client
+   * @return CompletableFuture
+   */
+  private CompletableFuture<Boolean> send(String lockName, String lockKey, byte mode, int limit,
+      int timeout, Duration waitTimeout, boolean async) {
+    long waitMillis = TimeUnit.NANOSECONDS.toMillis(LockWaiter.toNanos(waitTimeout));
+    CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+    BiConsumer<Reply, Throwable> complete = (reply, e) -> {
+      if (e != null) {
+        logger.error("Lock server request failed, locking " + lockName + " failure!", e);
+        result.complete(false);
+        return;
+      }
+      boolean granted = reply.status == LockProtocol.STATUS_TRUE;
+      if (granted) {
+        tokens.put(lockName + '\n' + lockKey, reply.value);
+      }
+      if (!result.complete(granted) && granted) {
+        // Never wait for a reply here, this may be the reader thread
+        tokens.remove(lockName + '\n' + lockKey);
+        request(LockProtocol.OP_UNLOCK, lockName, lockKey, NO_MODE, 0, 0, 0);
+      }
+    };
+    CompletableFuture<Reply> reply =
+        request(LockProtocol.OP_LOCK, lockName, lockKey, mode, limit, timeout, waitMillis);
+    if (async) {
+      reply.whenCompleteAsync(complete);
+    } else {
+      reply.whenComplete(complete);
+    }
+    return result;
+  }
+
+  /**
+   * Wait for a lock reply, the server answers by the wait deadline
+   *
+   * @author Variazioni
+   * @param future
+   * @param waitTimeout
+   * @return boolean
+   */
+  private boolean awaitLock(CompletableFuture<Boolean> future, Duration waitTimeout) {
+    long waitMillis = TimeUnit.NANOSECONDS.toMillis(LockWaiter.toNanos(waitTimeout));
+    try {
+      return future.get(waitMillis + requestTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException | TimeoutException e) {
+      future.cancel(false);
+      logger.error("No reply from the lock server in time!", e);
+      return false;
+    }
+  }
+
+  /**
+   * Send a request and wait for its reply
+   *
+   * @return Reply null on failure
+   */
+  private Reply call(byte op, String lockName, String lockKey, byte mode, int limit, int timeout,
+      long waitMillis, long replyTimeoutMillis) {
+    try {
+      return request(op, lockName, lockKey, mode, limit, timeout, waitMillis)
+          .get(replyTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException | TimeoutException e) {
+      logger.error("Lock server request failed!", e);
+      return null;
+    }
+  }
+
+  /**
+   * Send a request on the shared connection
+   *
+   * @return CompletableFuture Completed by the reader thread
+   */
+  private CompletableFuture<Reply> request(byte op, String lockName, String lockKey, byte mode,
+      int limit, int timeout, long waitMillis) {
+    int id = ids.incrementAndGet();
+    CompletableFuture<Reply> future = new CompletableFuture<Reply>();
+    Connection current = null;
+    try {
+      current = connect();
+      current.pending.put(id, future);
+      if (!current.open) {
+        throw new IOException("Lock server connection closed");
+      }
+      current.write(
+          LockProtocol.request(id, op, lockName, lockKey, mode, limit, timeout, waitMillis));
+    } catch (IOException e) {
+      if (current != null) {
+        // A partly written frame leaves the stream unusable
+        current.close(e);
+      }
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  private Connection connect() throws IOException {
+    Connection current = connection;
+    if (current != null && current.open) {
+      return current;
+    }
+    synchronized (this) {
+      current = connection;
+      if (current == null || !current.open) {
+        current = new Connection(SocketChannel.open(new InetSocketAddress(host, port)));
+        connection = current;
+      }
+      return current;
+    }
+  }
+
+  /**
+   * Reply of the server
+   */
+  private static class Reply {
+    private final byte status;
+    private final long value;
+
+    private Reply(byte status, long value) {
+      this.status = status;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Pipelined connection, writes are serialized and one reader thread completes the replies
+   */
+  private class Connection {
+    private final SocketChannel channel;
+    private final ConcurrentHashMap<Integer, CompletableFuture<Reply>> pending =
+        new ConcurrentHashMap<Integer, CompletableFuture<Reply>>();
+    private volatile boolean open = true;
+
+    private Connection(SocketChannel channel) throws IOException {
+      this.channel = channel;
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      Thread reader = new Thread(this::read, "lock-server-client");
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+      synchronized (channel) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+    }
+
+    private void read() {
+      ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+      try {
+        while (channel.read(buffer) >= 0) {
+          buffer.flip();
+          while (buffer.remaining() >= 4 + LockProtocol.RESPONSE_LENGTH) {
+            buffer.getInt();
+            int id = buffer.getInt();
+            byte status = buffer.get();
+            long value = buffer.getLong();
+            CompletableFuture<Reply> future = pending.remove(id);
+            if (future != null) {
+              future.complete(new Reply(status, value));
+            }
+          }
+          buffer.compact();
+        }
+        close(new IOException("Lock server closed the connection"));
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    private void close(IOException cause) {
+      open = false;
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.warn("Closing the lock server connection failed.", e);
+      }
+      for (Integer id : pending.keySet()) {
+        CompletableFuture<Reply> future = pending.remove(id);
+        if (future != null) {
+          future.completeExceptionally(cause);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import com.variazioni.concurrent.lock.util.LockIds;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Lock storage shards. Without concurrent.lock.shards.urls every lock lives in the application
+ * DataSource. Otherwise each URL is a shard with its own connection pool, and a lock name belongs
+ * to the shard whose point follows its LOCK_ID on a consistent hash ring, so adding a shard only
+ * moves the names that land on its points.
+ * <p>
+ * Fencing tokens come from the AUTO_INCREMENT of the shard owning a name, so they only keep
+ * growing while names stay on their shard. Any change of the URL list moves names, adding a shard
+ * as well as removing or replacing one: before it, raise the AUTO_INCREMENT of RESOURCE_LOCK on
+ * every shard of the new list above the highest FENCING_TOKEN of every shard of the old list.
+ * Otherwise a moved name can get a token older than one it already handed out.
+ * <p>
+ * Adding a shard: create the tables on it with AUTO_INCREMENT of RESOURCE_LOCK above the
+ * FENCING_TOKEN of every other shard, so tokens keep growing for the names that move. Deploy the
+ * new URL list with the old list as concurrent.lock.shards.previous-urls to every node. While it
+ * is set a moved name is taken on its previous owner first and then on its new owner, so it
+ * conflicts with holders and nodes of both rings. When no node runs the old list and the longest
+ * lease has passed, remove the previous URLs.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class LockShards {
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  /** JDBC URLs of the shards, empty for the application DataSource alone */
+  @Value("${concurrent.lock.shards.urls:}")
+  private String[] urls;
+
+  /** Shard URLs before the last change, set while the moved names drain */
+  @Value("${concurrent.lock.shards.previous-urls:}")
+  private String[] previousUrls;
+
+  @Value("${concurrent.lock.shards.username:}")
+  private String username;
+
+  @Value("${concurrent.lock.shards.password:}")
+  private String password;
+
+  /** Connections per shard */
+  @Value("${concurrent.lock.shards.pool-size:10}")
+  private int poolSize;
+
+  /** Ring points per shard, more points spread the names more evenly */
+  @Value("${concurrent.lock.shards.virtual-nodes:128}")
+  private int virtualNodes;
+
+  /** All shards, current and previous, by URL */
+  private final Map<String, Shard> shards = new LinkedHashMap<String, Shard>();
+
+  private final List<HikariDataSource> pools = new ArrayList<HikariDataSource>();
+
+  private TreeMap<Long, Shard> ring;
+
+  /** Ring before the last change, null when nothing drains */
+  private TreeMap<Long, Shard> previousRing;
+
+  /**
+   * Open the pools and build the rings
+   *
+   * @author Variazioni
+   */
+  @PostConstruct
+  public void init() {
+    List<String> current = urls(urls);
+    if (current.isEmpty()) {
+      Shard shard = new Shard("default", jdbcTemplate, new TransactionTemplate(transactionManager));
+      shards.put(shard.id, shard);
+      ring = ring(Collections.singletonList(shard.id));
+      return;
+    }
+    List<String> previous = urls(previousUrls);
+    Set<String> all = new LinkedHashSet<String>(current);
+    all.addAll(previous);
+    for (String url : all) {
+      HikariConfig config = new HikariConfig();
+      config.setPoolName("lock-shard-" + shards.size());
+      config.setJdbcUrl(url);
+      config.setUsername(username);
+      config.setPassword(password);
+      config.setMaximumPoolSize(poolSize);
+      HikariDataSource pool = new HikariDataSource(config);
+      pools.add(pool);
+      shards.put(url, new Shard(url, new JdbcTemplate(pool),
+          new TransactionTemplate(new DataSourceTransactionManager(pool))));
+    }
+    ring = ring(current);
+    if (!previous.isEmpty() && !previous.equals(current)) {
+      previousRing = ring(previous);
+    }
+  }
+
+  /**
+   * Close the pools
+   *
+   * @author Variazioni
+   */
+  @PreDestroy
+  public void close() {
+    for (HikariDataSource pool : pools) {
+      pool.close();
+    }
+  }
+
+  /**
+   * Shard owning a lock name
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return Shard
+   */
+  public Shard shard(String lockName) {
+    return owner(ring, lockName);
+  }
+
+  /**
+   * Shards a lock is taken on, the previous owner first while a moved name drains
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return List
+   */
+  public List<Shard> owners(String lockName) {
+    Shard shard = owner(ring, lockName);
+    Shard previous = previousRing == null ? shard : owner(previousRing, lockName);
+    return previous == shard ? Collections.singletonList(shard) : Arrays.asList(previous, shard);
+  }
+
+  /**
+   * Lock names grouped by the shards they are taken on, shards and names in a stable order
+   *
+   * @author Variazioni
+   * @param lockNames
+   * @return Map
+   */
+  public Map<Shard, List<String>> group(Collection<String> lockNames) {
+    Map<Shard, List<String>> byShard = new LinkedHashMap<Shard, List<String>>();
+    for (Shard shard : shards.values()) {
+      byShard.put(shard, new ArrayList<String>());
+    }
+    for (String lockName : lockNames) {
+      for (Shard shard : owners(lockName)) {
+        byShard.get(shard).add(lockName);
+      }
+    }
+    byShard.values().removeIf(List::isEmpty);
+    return byShard;
+  }
+
+  /**
+   * Every shard, current and previous
+   *
+   * @author Variazioni
+   * @return Collection
+   */
+  public Collection<Shard> all() {
+    return Collections.unmodifiableCollection(shards.values());
+  }
+
+  private TreeMap<Long, Shard> ring(List<String> ids) {
+    TreeMap<Long, Shard> points = new TreeMap<Long, Shard>();
+    for (String id : ids) {
+      for (int i = 0; i < virtualNodes; i++) {
+        points.put(point(id + '#' + i), shards.get(id));
+      }
+    }
+    return points;
+  }
+
+  private static Shard owner(TreeMap<Long, Shard> points, String lockName) {
+    Map.Entry<Long, Shard> entry = points.ceilingEntry(point(lockName));
+    return entry == null ? points.firstEntry().getValue() : entry.getValue();
+  }
+
+  /** First 8 bytes of the LOCK_ID */
+  private static long point(String name) {
+    byte[] id = LockIds.of(name);
+    long point = 0;
+    for (int i = 0; i < 8; i++) {
+      point = point << 8 | (id[i] & 0xff);
+    }
+    return point;
+  }
+
+  private static List<String> urls(String[] urls) {
+    List<String> result = new ArrayList<String>();
+    for (String url : urls) {
+      if (!url.trim().isEmpty() && !result.contains(url.trim())) {
+        result.add(url.trim());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * One shard
+   */
+  public static final class Shard {
+    private final String id;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    private Shard(String id, JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate) {
+      this.id = id;
+      this.jdbcTemplate = jdbcTemplate;
+      this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * Getter
+     *
+     * @author Variazioni
+     * @return String The URL, or default for the application DataSource
+     */
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * Getter
+     *
+     * @author Variazioni
+     * @return JdbcTemplate
+     */
+    public JdbcTemplate getJdbcTemplate() {
+      return jdbcTemplate;
+    }
+
+    /**
+     * Getter
+     *
+     * @author Variazioni
+     * @return TransactionTemplate
+     */
+    public TransactionTemplate getTransactionTemplate() {
+      return transactionTemplate;
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * Counter-row semaphore for shared locks. Every lock name has one RESOURCE_PERMIT row with its
+ * capacity and in-use count, a permit is claimed with one conditional UPDATE on that row. The holder
+ * rows in RESOURCE_LOCK are only kept for expiry and ownership, so acquiring costs the same for any
+ * limit and the row lock makes overshooting the limit impossible. Every shard a lock name is taken
+ * on has its own counter row. A leased block of permits is one claim of several permits and one
+ * holder row per permit, all with the holder of the lease.
+ * <p>
+ * Every transaction takes the counter row before it touches holder rows, so claims, releases and
+ * the reaper cannot deadlock. Expired holders are only reclaimed by the reaper, a full claim fails
+ * without scanning the holder rows.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class PermitCounter {
+
+  @Autowired
+  private FencingTokens fencingTokens;
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(PermitCounter.class);
+
+  /** Claim SQL */
+  private static final String CLAIM_SQL =
+      "UPDATE RESOURCE_PERMIT SET `IN_USE` = `IN_USE` + ?, `CAPACITY` = ? WHERE `LOCK_ID` = ? AND `IN_USE` + ? <= ?";
+
+  /** Create SQL, no-op when the row exists */
+  private static final String CREATE_SQL =
+      "INSERT INTO RESOURCE_PERMIT (`LOCK_ID`, `LOCK_NAME`, `CAPACITY`, `IN_USE`) VALUES (?, ?, ?, 0) ON DUPLICATE KEY UPDATE `LOCK_ID` = `LOCK_ID`";
+
+  /** Give back SQL */
+  private static final String GIVE_BACK_SQL =
+      "UPDATE RESOURCE_PERMIT SET `IN_USE` = GREATEST(`IN_USE` - ?, 0) WHERE `LOCK_ID` = ?";
+
+  /** Give back the permits of the holder rows that exist, the key list is appended per call */
+  private static final String GIVE_BACK_HELD_SQL =
+      "UPDATE RESOURCE_PERMIT SET `IN_USE` = GREATEST(`IN_USE` - (SELECT COUNT(*) FROM RESOURCE_LOCK WHERE `LOCK_ID` = ? AND `LOCK_KEY` IN (";
+
+  /** Lock the counter row before reclaiming */
+  private static final String LOCK_ROW_SQL =
+      "SELECT `IN_USE` FROM RESOURCE_PERMIT WHERE `LOCK_ID` = ? FOR UPDATE";
+
+  /** Holder row SQL */
+  private static final String HOLDER_SQL =
+      "INSERT INTO RESOURCE_LOCK (`LOCK_KEY`, `LOCK_ID`, `LOCK_NAME`, `LOCK_HOLDER`, `EXPIRED_TIME`) VALUES (?, ?, ?, ?, DATE_ADD(NOW(), INTERVAL ? SECOND))";
+
+  /** Shards and lock names whose permit row is known to exist */
+  private final Set<String> knownRows = ConcurrentHashMap.newKeySet();
+
+  /** Holders acquired through this node, lockKey to lockName */
+  private final ConcurrentHashMap<String, String> holders = new ConcurrentHashMap<String, String>();
+
+  /**
+   * Claim a permit and insert the holder row, in one transaction
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @return boolean
+   */
+  public boolean acquire(LockShards.Shard shard, String lockName, String lockKey, int limit,
+      int timeout) {
+    byte[] lockId = LockIds.of(lockName);
+    JdbcTemplate jdbcTemplate = shard.getJdbcTemplate();
+    Boolean result = shard.getTransactionTemplate().execute(status -> {
+      if (!claim(shard, lockName, lockId, 1, limit)) {
+        return false;
+      }
+      fencingTokens.insert(jdbcTemplate, HOLDER_SQL, Collections.singletonList(lockName), lockKey,
+          lockKey, lockId, lockName, lockKey, timeout);
+      return true;
+    });
+    if (Boolean.TRUE.equals(result)) {
+      holders.put(lockKey, lockName);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Claim a block of permits and insert one holder row per permit, in one transaction
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param holder Holder of the lease
+   * @param rowKeys Lock keys of the holder rows
+   * @param limit
+   * @param timeout
+   * @return List Fencing tokens of the rows in order, empty if the permits are not free
+   */
+  public List<Long> lease(LockShards.Shard shard, String lockName, String holder,
+      List<String> rowKeys, int limit, int timeout) {
+    byte[] lockId = LockIds.of(lockName);
+    StringBuilder sql = new StringBuilder(
+        "INSERT INTO RESOURCE_LOCK (`LOCK_KEY`, `LOCK_ID`, `LOCK_NAME`, `LOCK_HOLDER`, `EXPIRED_TIME`) VALUES ");
+    Object[] args = new Object[rowKeys.size() * 5];
+    int i = 0;
+    for (String rowKey : rowKeys) {
+      sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, DATE_ADD(NOW(), INTERVAL ? SECOND))");
+      args[i++] = rowKey;
+      args[i++] = lockId;
+      args[i++] = lockName;
+      args[i++] = holder;
+      args[i++] = timeout;
+    }
+    List<Long> result = shard.getTransactionTemplate().execute(status -> {
+      if (!claim(shard, lockName, lockId, rowKeys.size(), limit)) {
+        return Collections.<Long>emptyList();
+      }
+      return fencingTokens.insertRows(shard.getJdbcTemplate(), sql.toString(), args);
+    });
+    return result == null ? Collections.<Long>emptyList() : result;
+  }
+
+  /**
+   * Whether a lockKey holds a permit acquired through this node
+   *
+   * @author Variazioni
+   * @param lockKey
+   * @return boolean
+   */
+  public boolean holds(String lockKey) {
+    return holders.containsKey(lockKey);
+  }
+
+  /**
+   * Forget a holder once all its rows are released. Not done by the releases themselves, a holder
+   * whose release failed or whose name still has rows on another shard must keep its permit.
+   *
+   * @author Variazioni
+   * @param lockKey
+   */
+  public void released(String lockKey) {
+    holders.remove(lockKey);
+  }
+
+  /**
+   * Delete the holder row and give its permit back. A row already removed by the reaper has had its
+   * permit given back there.
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockKey
+   * @return boolean
+   */
+  public boolean release(LockShards.Shard shard, String lockName, String lockKey) {
+    return releaseAll(shard, lockName, Collections.singletonList(lockKey)) > 0;
+  }
+
+  /**
+   * Delete the holder rows of some released permits of one lock name and give back as many permits
+   * as rows exist, in the transaction of the caller if there is one. The counter row is taken
+   * first, the rows it counts stay locked until they are deleted.
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockKeys
+   * @return int Number of permits given back
+   */
+  public int releaseAll(LockShards.Shard shard, String lockName, Collection<String> lockKeys) {
+    StringBuilder keys = new StringBuilder();
+    byte[] lockId = LockIds.of(lockName);
+    Object[] args = new Object[lockKeys.size() + 1];
+    args[0] = lockId;
+    int i = 1;
+    for (String lockKey : lockKeys) {
+      keys.append(i == 1 ? "?" : ", ?");
+      args[i++] = lockKey;
+    }
+    String giveBack = GIVE_BACK_HELD_SQL + keys + ")), 0) WHERE `LOCK_ID` = ?";
+    String delete = "DELETE FROM RESOURCE_LOCK WHERE `LOCK_ID` = ? AND `LOCK_KEY` IN (" + keys + ')';
+    Object[] giveBackArgs = Arrays.copyOf(args, args.length + 1);
+    giveBackArgs[args.length] = lockId;
+    JdbcTemplate jdbcTemplate = shard.getJdbcTemplate();
+    Integer result = shard.getTransactionTemplate().execute(status -> {
+      jdbcTemplate.update(giveBack, giveBackArgs);
+      return jdbcTemplate.update(delete, args);
+    });
+    return result == null ? 0 : result;
+  }
+
+  /**
+   * Delete expired holder rows of a lock name and give their permits back
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @return int Number of permits given back
+   */
+  public int reclaimExpired(LockShards.Shard shard, String lockName) {
+    Integer result = shard.getTransactionTemplate().execute(status -> reclaim(shard, lockName));
+    return result == null ? 0 : result;
+  }
+
+  /**
+   * Claim, creating the permit row on first use
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockId
+   * @param permits
+   * @param limit
+   * @return boolean
+   */
+  private boolean claim(LockShards.Shard shard, String lockName, byte[] lockId, int permits,
+      int limit) {
+    JdbcTemplate jdbcTemplate = shard.getJdbcTemplate();
+    if (jdbcTemplate.update(CLAIM_SQL, permits, limit, lockId, permits, limit) > 0) {
+      return true;
+    }
+    if (knownRows.add(shard.getId() + '\n' + lockName)) {
+      jdbcTemplate.update(CREATE_SQL, lockId, lockName, limit);
+      return jdbcTemplate.update(CLAIM_SQL, permits, limit, lockId, permits, limit) > 0;
+    }
+    return false;
+  }
+
+  private int reclaim(LockShards.Shard shard, String lockName) {
+    JdbcTemplate jdbcTemplate = shard.getJdbcTemplate();
+    String sql =
+        "DELETE FROM RESOURCE_LOCK WHERE `LOCK_ID` = ? AND `LOCK_KEY` <> 'SINGLE_LOCK' AND `EXPIRED_TIME` < NOW()";
+    byte[] lockId = LockIds.of(lockName);
+    boolean counted = !jdbcTemplate.queryForList(LOCK_ROW_SQL, Integer.class, lockId).isEmpty();
+    int expired = jdbcTemplate.update(sql, lockId);
+    if (expired > 0) {
+      if (counted) {
+        jdbcTemplate.update(GIVE_BACK_SQL, expired, lockId);
+      }
+      logger.warn(expired + " expired shared locks of " + lockName + " were reclaimed.");
+    }
+    return expired;
+  }
+}
@@ -0,0 +1,453 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import com.variazioni.concurrent.lock.metrics.LockMetrics;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * Leased permits of shared locks. Instead of one claim per acquisition, this node leases a block of
+ * permits of a lock name from the permit counter in one transaction and hands them out from a
+ * lock-free queue, so most acquisitions and releases make no round trip. A miss leases a block as
+ * large as the permits in use, so the lease follows demand, and every tick gives back the permits
+ * the busiest moment of the tick did not need. The leased holder rows count against the limit like
+ * any other holder, so the limit still holds across nodes. They are renewed while the node lives
+ * and expire with it. A lock name that is moving between shards is not leased. Leased permits have
+ * no fencing token: a holder row outlives all the local holders of its permit, so its token would
+ * not tell one holder from the next.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class PermitLeases {
+
+  @Autowired
+  private LockShards shards;
+
+  @Autowired
+  private PermitCounter permitCounter;
+
+  @Autowired(required = false)
+  private LockMetrics metrics = LockMetrics.NOOP;
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(PermitLeases.class);
+
+  /** Backend name of the metrics */
+  private static final String BACKEND = "lockByDatabase";
+
+  /** Renew SQL */
+  private static final String RENEW_SQL =
+      "UPDATE RESOURCE_LOCK SET `EXPIRED_TIME` = DATE_ADD(NOW(), INTERVAL ? SECOND), `UPDATE_TIME` = NOW() WHERE `LOCK_ID` = ? AND `LOCK_HOLDER` = ?";
+
+  /** Lease blocks of permits per node and hand them out locally, needs the permit counter */
+  @Value("${concurrent.lock.shared.permit-leasing:false}")
+  private boolean enabled;
+
+  /** Lifetime of the leased holder rows, renewed while the node lives */
+  @Value("${concurrent.lock.shared.lease-seconds:30}")
+  private int leaseSeconds;
+
+  /** Most permits leased at once */
+  @Value("${concurrent.lock.shared.lease-max-block:64}")
+  private int maxBlock;
+
+  /** Interval of giving back idle permits, renewing and expiring local holders */
+  @Value("${concurrent.lock.shared.lease-tick-millis:1000}")
+  private long tickMillis;
+
+  /** Leases by lock name */
+  private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+
+  /** Permits handed out, lockName and lockKey to holder */
+  private final ConcurrentHashMap<String, Holder> holders =
+      new ConcurrentHashMap<String, Holder>();
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Start ticking
+   *
+   * @author Variazioni
+   */
+  @PostConstruct
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "lock-permit-leases");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop ticking and give every leased permit back
+   *
+   * @author Variazioni
+   */
+  @PreDestroy
+  public void stop() {
+    if (scheduler == null) {
+      return;
+    }
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Lease lease : leases.values()) {
+      synchronized (lease) {
+        close(lease);
+      }
+    }
+  }
+
+  /**
+   * Whether the permits of a lock name are leased
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return boolean
+   */
+  public boolean covers(String lockName) {
+    return enabled && shards.owners(lockName).size() == 1;
+  }
+
+  /**
+   * Hand out a leased permit, leasing a block if none is free
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout Seconds until the permit is taken back if not released
+   * @param untilReleased Never take the permit back, it is renewed until released
+   * @return boolean
+   */
+  public boolean acquire(String lockName, String lockKey, int limit, int timeout,
+      boolean untilReleased) {
+    while (true) {
+      Lease lease = leases.computeIfAbsent(lockName, k -> new Lease(k, shards.shard(k)));
+      lease.limit = limit;
+      if (lease.inUse.get() >= limit) {
+        // The limit was lowered below the permits this node holds
+        return false;
+      }
+      Permit permit = lease.take();
+      if (permit != null) {
+        long deadline = untilReleased ? 0 : System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        holders.put(lockName + '\n' + lockKey, new Holder(lease, permit, deadline));
+        return true;
+      }
+      if (!extend(lease) && !lease.closed) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Give a permit back to its lease
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return boolean false if the lockKey holds no leased permit
+   */
+  public boolean release(String lockName, String lockKey) {
+    Holder holder = holders.remove(lockName + '\n' + lockKey);
+    if (holder == null) {
+      return false;
+    }
+    holder.lease.give(holder.permit);
+    return true;
+  }
+
+  /**
+   * Extend the time until a leased permit is taken back
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param second
+   * @return boolean false if the lockKey holds no leased permit
+   */
+  public boolean extend(String lockName, String lockKey, int second) {
+    Holder holder = holders.get(lockName + '\n' + lockKey);
+    if (holder == null) {
+      return false;
+    }
+    if (holder.deadline != 0) {
+      holder.deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(second);
+    }
+    return true;
+  }
+
+  /**
+   * Whether a lockKey holds a leased permit
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return boolean
+   */
+  public boolean holds(String lockName, String lockKey) {
+    return holders.containsKey(lockName + '\n' + lockKey);
+  }
+
+  /**
+   * Leased permits of a lock name nobody holds, they have holder rows but are free
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return int
+   */
+  public int idle(String lockName) {
+    Lease lease = leases.get(lockName);
+    return lease == null ? 0 : Math.max(lease.idle.get(), 0);
+  }
+
+  /**
+   * Lease a block as large as the permits in use, or a single permit if the block is not free
+   *
+   * @author Variazioni
+   * @param lease
+   * @return boolean Whether a permit is free now
+   */
+  private boolean extend(Lease lease) {
+    synchronized (lease) {
+      if (lease.closed) {
+        return false;
+      }
+      if (!lease.free.isEmpty()) {
+        return true;
+      }
+      int block = Math.min(Math.min(maxBlock, lease.limit), Math.max(1, lease.inUse.get()));
+      try {
+        return lease(lease, block) || block > 1 && lease(lease, 1);
+      } catch (Exception e) {
+        logger.error("Database exception, permit lease failure!", e);
+        metrics.failure(BACKEND, "lease", e);
+        return false;
+      }
+    }
+  }
+
+  private boolean lease(Lease lease, int block) {
+    List<String> rowKeys = new ArrayList<String>(block);
+    for (int i = 0; i < block; i++) {
+      rowKeys.add(LockIds.holderKey());
+    }
+    metrics.roundTrip(BACKEND, "lease");
+    if (permitCounter.lease(lease.shard, lease.lockName, lease.holder, rowKeys, lease.limit,
+        leaseSeconds).isEmpty()) {
+      return false;
+    }
+    if (lease.rows.isEmpty()) {
+      lease.renewedAt = System.nanoTime();
+    }
+    for (int i = 0; i < block; i++) {
+      lease.rows.add(rowKeys.get(i));
+      lease.free.add(new Permit(rowKeys.get(i)));
+      lease.idle.incrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * Take back the permits whose holders ran out, then renew, trim or close every lease
+   *
+   * @author Variazioni
+   */
+  private void tick() {
+    try {
+      long now = System.nanoTime();
+      Iterator<Map.Entry<String, Holder>> it = holders.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Holder> entry = it.next();
+        Holder holder = entry.getValue();
+        if (holder.deadline != 0 && now - holder.deadline >= 0
+            && holders.remove(entry.getKey(), holder)) {
+          logger.warn("Leased permit of " + holder.lease.lockName + " expired, taken back.");
+          holder.lease.give(holder.permit);
+        }
+      }
+      for (Lease lease : leases.values()) {
+        synchronized (lease) {
+          tick(lease, now);
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.error("Permit lease tick failed!", e);
+    }
+  }
+
+  private void tick(Lease lease, long now) {
+    if (lease.closed) {
+      return;
+    }
+    try {
+      if (!lease.rows.isEmpty()
+          && now - lease.renewedAt >= TimeUnit.SECONDS.toNanos(leaseSeconds) / 3) {
+        metrics.roundTrip(BACKEND, "extend");
+        int renewed = lease.shard.getJdbcTemplate().update(RENEW_SQL, leaseSeconds,
+            LockIds.of(lease.lockName), lease.holder);
+        lease.renewedAt = now;
+        if (renewed < lease.rows.size()) {
+          logger.warn((lease.rows.size() - renewed) + " leased permits of " + lease.lockName
+              + " were lost, the lease is given up!");
+          close(lease);
+          return;
+        }
+      }
+      // Keep what the busiest moment of the tick needed on top of the permits in use
+      int inUse = lease.inUse.get();
+      int surplus = lease.idle.get() - Math.max(lease.peak.getAndSet(inUse) - inUse, 0);
+      if (surplus > 0) {
+        giveBack(lease, surplus);
+      }
+      if (lease.rows.isEmpty() && lease.inUse.get() == 0) {
+        close(lease);
+      }
+    } catch (Exception e) {
+      logger.error("Database exception, permit lease renewal failure!", e);
+      metrics.failure(BACKEND, "extend", e);
+    }
+  }
+
+  private void giveBack(Lease lease, int count) {
+    List<Permit> permits = new ArrayList<Permit>(count);
+    List<String> rowKeys = new ArrayList<String>(count);
+    Permit permit;
+    while (permits.size() < count && (permit = lease.free.poll()) != null) {
+      lease.idle.decrementAndGet();
+      permits.add(permit);
+      rowKeys.add(permit.rowKey);
+    }
+    if (rowKeys.isEmpty()) {
+      return;
+    }
+    lease.rows.removeAll(rowKeys);
+    try {
+      metrics.roundTrip(BACKEND, "unlock");
+      permitCounter.releaseAll(lease.shard, lease.lockName, rowKeys);
+    } catch (RuntimeException e) {
+      lease.rows.addAll(rowKeys);
+      for (Permit p : permits) {
+        lease.free.add(p);
+        lease.idle.incrementAndGet();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Forget a lease and give its permits back, permits still held are not handed out again
+   *
+   * @author Variazioni
+   * @param lease
+   */
+  private void close(Lease lease) {
+    leases.remove(lease.lockName, lease);
+    lease.closed = true;
+    lease.free.clear();
+    lease.idle.set(0);
+    if (lease.rows.isEmpty()) {
+      return;
+    }
+    try {
+      metrics.roundTrip(BACKEND, "unlock");
+      permitCounter.releaseAll(lease.shard, lease.lockName, new ArrayList<String>(lease.rows));
+    } catch (Exception e) {
+      // The rows expire
+      logger.error("Database exception, permit lease release failure!", e);
+      metrics.failure(BACKEND, "unlock", e);
+    }
+    lease.rows.clear();
+  }
+
+  /**
+   * Permits of one lock name leased by this node. Taking and giving back are lock-free, leasing
+   * and trimming synchronize on the lease.
+   */
+  private static class Lease {
+    private final String lockName;
+    private final LockShards.Shard shard;
+    private final String holder = LockIds.holderKey();
+    private final ConcurrentLinkedQueue<Permit> free = new ConcurrentLinkedQueue<Permit>();
+    private final AtomicInteger idle = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final Set<String> rows = ConcurrentHashMap.newKeySet();
+    private volatile int limit;
+    private volatile boolean closed;
+    private long renewedAt;
+
+    private Lease(String lockName, LockShards.Shard shard) {
+      this.lockName = lockName;
+      this.shard = shard;
+    }
+
+    private Permit take() {
+      Permit permit = free.poll();
+      if (permit != null) {
+        idle.decrementAndGet();
+        peak.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+      }
+      return permit;
+    }
+
+    private void give(Permit permit) {
+      inUse.decrementAndGet();
+      if (!closed && rows.contains(permit.rowKey)) {
+        free.add(permit);
+        idle.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * One leased permit and its holder row
+   */
+  private static class Permit {
+    private final String rowKey;
+
+    private Permit(String rowKey) {
+      this.rowKey = rowKey;
+    }
+  }
+
+  /**
+   * A handed out permit
+   */
+  private static class Holder {
+    private final Lease lease;
+    private final Permit permit;
+    /** System.nanoTime() the permit is taken back at, 0 for never */
+    private volatile long deadline;
+
+    private Holder(Lease lease, Permit permit, long deadline) {
+      this.lease = lease;
+      this.permit = permit;
+      this.deadline = deadline;
+    }
+  }
+}
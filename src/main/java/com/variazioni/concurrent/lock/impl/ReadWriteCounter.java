@@ -0,0 +1,285 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * State rows of read/write locks. Every lock name has one RESOURCE_READ_WRITE row with its reader
+ * and writer counts and the intent of a waiting writer, a read or write lock is claimed with one
+ * conditional UPDATE on that row. The row lock orders readers and writers, so readers never take
+ * gap locks on each other and run fully in parallel, and no isolation level can let a reader and a
+ * writer in together. The holder rows in RESOURCE_LOCK are only kept for expiry, ownership and the
+ * fencing token: a reader row per reader, and the WRITE_LOCK row of the writer.
+ * <p>
+ * Every transaction takes the state row before it touches holder rows, as with the PermitCounter.
+ * Expired holders are only reclaimed by the reaper, a failed claim does not scan the holder rows.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class ReadWriteCounter {
+
+  @Autowired
+  private FencingTokens fencingTokens;
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(ReadWriteCounter.class);
+
+  /** Waiting writers keep new readers out, so writers do not starve */
+  @Value("${concurrent.lock.read-write.writer-preference:true}")
+  private boolean writerPreference;
+
+  /** Lifetime of the intent of a waiting writer, every attempt renews it */
+  @Value("${concurrent.lock.read-write.intent-seconds:5}")
+  private int writeIntentSeconds;
+
+  /** Read claim SQL, the last argument disables the check of a waiting writer */
+  private static final String READ_SQL =
+      "UPDATE RESOURCE_READ_WRITE SET `READERS` = `READERS` + 1 WHERE `LOCK_ID` = ? AND `WRITERS` = 0 AND (? = 0 OR `WRITE_INTENT` IS NULL OR `INTENT_EXPIRED_TIME` < NOW())";
+
+  /** Write claim SQL, only the intent of the writer itself or an expired one is ignored */
+  private static final String WRITE_SQL =
+      "UPDATE RESOURCE_READ_WRITE SET `WRITERS` = 1, `WRITE_INTENT` = NULL, `INTENT_EXPIRED_TIME` = NULL WHERE `LOCK_ID` = ? AND `READERS` = 0 AND `WRITERS` = 0 AND (`WRITE_INTENT` IS NULL OR `WRITE_INTENT` = ? OR `INTENT_EXPIRED_TIME` < NOW())";
+
+  /** Create SQL, no-op when the row exists */
+  private static final String CREATE_SQL =
+      "INSERT INTO RESOURCE_READ_WRITE (`LOCK_ID`, `LOCK_NAME`) VALUES (?, ?) ON DUPLICATE KEY UPDATE `LOCK_ID` = `LOCK_ID`";
+
+  /** Post or renew the intent of a waiting writer, unless another writer already waits */
+  private static final String INTENT_SQL =
+      "UPDATE RESOURCE_READ_WRITE SET `WRITE_INTENT` = ?, `INTENT_EXPIRED_TIME` = DATE_ADD(NOW(), INTERVAL ? SECOND) WHERE `LOCK_ID` = ? AND (`WRITE_INTENT` IS NULL OR `WRITE_INTENT` = ? OR `INTENT_EXPIRED_TIME` < NOW())";
+
+  /** Withdraw the intent of a writer that gave up */
+  private static final String WITHDRAW_SQL =
+      "UPDATE RESOURCE_READ_WRITE SET `WRITE_INTENT` = NULL, `INTENT_EXPIRED_TIME` = NULL WHERE `LOCK_ID` = ? AND `WRITE_INTENT` = ?";
+
+  /** Give back a reader whose holder row exists */
+  private static final String GIVE_BACK_READ_SQL =
+      "UPDATE RESOURCE_READ_WRITE SET `READERS` = GREATEST(`READERS` - (SELECT COUNT(*) FROM RESOURCE_LOCK WHERE `LOCK_ID` = ? AND `LOCK_KEY` = ? AND `LOCK_HOLDER` = ?), 0) WHERE `LOCK_ID` = ?";
+
+  /** Give back the writer whose holder row exists */
+  private static final String GIVE_BACK_WRITE_SQL =
+      "UPDATE RESOURCE_READ_WRITE SET `WRITERS` = GREATEST(`WRITERS` - (SELECT COUNT(*) FROM RESOURCE_LOCK WHERE `LOCK_ID` = ? AND `LOCK_KEY` = ? AND `LOCK_HOLDER` = ?), 0) WHERE `LOCK_ID` = ?";
+
+  /** Give back reclaimed holders */
+  private static final String GIVE_BACK_EXPIRED_SQL =
+      "UPDATE RESOURCE_READ_WRITE SET `WRITERS` = GREATEST(`WRITERS` - ?, 0), `READERS` = GREATEST(`READERS` - ?, 0) WHERE `LOCK_ID` = ?";
+
+  /** Lock the state row before reclaiming */
+  private static final String LOCK_ROW_SQL =
+      "SELECT `READERS` FROM RESOURCE_READ_WRITE WHERE `LOCK_ID` = ? FOR UPDATE";
+
+  /** Holder row SQL */
+  private static final String HOLDER_SQL =
+      "INSERT INTO RESOURCE_LOCK (`LOCK_KEY`, `LOCK_ID`, `LOCK_NAME`, `LOCK_HOLDER`, `EXPIRED_TIME`) VALUES (?, ?, ?, ?, DATE_ADD(NOW(), INTERVAL ? SECOND))";
+
+  /** Delete SQL of one holder row */
+  private static final String DELETE_SQL =
+      "DELETE FROM RESOURCE_LOCK WHERE `LOCK_ID` = ? AND `LOCK_KEY` = ? AND `LOCK_HOLDER` = ?";
+
+  /** Lock key of the holder row of the writer */
+  private static final String WRITE_LOCK = "WRITE_LOCK";
+
+  /** Shards and lock names whose state row is known to exist */
+  private final Set<String> knownRows = ConcurrentHashMap.newKeySet();
+
+  /** Holders acquired through this node, lockKey to whether it is the writer */
+  private final ConcurrentHashMap<String, Boolean> holders =
+      new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * Claim a read lock and insert the reader row, in one transaction
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return boolean
+   */
+  public boolean acquireRead(LockShards.Shard shard, String lockName, String lockKey,
+      int timeout) {
+    return acquire(shard, lockName, lockKey, lockKey, timeout, READ_SQL, LockIds.of(lockName),
+        writerPreference);
+  }
+
+  /**
+   * Claim the write lock and insert the WRITE_LOCK row, in one transaction. A failed claim posts
+   * or renews the intent of this writer with writer preference.
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return boolean
+   */
+  public boolean acquireWrite(LockShards.Shard shard, String lockName, String lockKey,
+      int timeout) {
+    byte[] lockId = LockIds.of(lockName);
+    if (acquire(shard, lockName, lockKey, WRITE_LOCK, timeout, WRITE_SQL, lockId, lockKey)) {
+      return true;
+    }
+    if (writerPreference) {
+      shard.getJdbcTemplate().update(INTENT_SQL, lockKey, writeIntentSeconds, lockId, lockKey);
+    }
+    return false;
+  }
+
+  /**
+   * Withdraw the intent of a writer that gave up
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockKey
+   */
+  public void withdraw(LockShards.Shard shard, String lockName, String lockKey) {
+    if (writerPreference) {
+      shard.getJdbcTemplate().update(WITHDRAW_SQL, LockIds.of(lockName), lockKey);
+    }
+  }
+
+  /**
+   * Whether a lockKey holds a read or write lock acquired through this node
+   *
+   * @author Variazioni
+   * @param lockKey
+   * @return boolean
+   */
+  public boolean holds(String lockKey) {
+    return holders.containsKey(lockKey);
+  }
+
+  /**
+   * Forget a holder once all its rows are released, like PermitCounter.released
+   *
+   * @author Variazioni
+   * @param lockKey
+   */
+  public void released(String lockKey) {
+    holders.remove(lockKey);
+  }
+
+  /**
+   * Delete the holder row and give its count back. A row already removed by the reaper has had its
+   * count given back there.
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockKey
+   * @return boolean
+   */
+  public boolean release(LockShards.Shard shard, String lockName, String lockKey) {
+    Boolean writer = holders.get(lockKey);
+    if (writer == null) {
+      return false;
+    }
+    byte[] lockId = LockIds.of(lockName);
+    String rowKey = writer ? WRITE_LOCK : lockKey;
+    JdbcTemplate jdbcTemplate = shard.getJdbcTemplate();
+    Integer result = shard.getTransactionTemplate().execute(status -> {
+      jdbcTemplate.update(writer ? GIVE_BACK_WRITE_SQL : GIVE_BACK_READ_SQL, lockId, rowKey,
+          lockKey, lockId);
+      return jdbcTemplate.update(DELETE_SQL, lockId, rowKey, lockKey);
+    });
+    return result != null && result > 0;
+  }
+
+  /**
+   * Delete expired holder rows of a lock name and give their counts back
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @return int Number of holders reclaimed, -1 if the name has no state row
+   */
+  public int reclaimExpired(LockShards.Shard shard, String lockName) {
+    Integer result = shard.getTransactionTemplate().execute(status -> reclaim(shard, lockName));
+    return result == null ? -1 : result;
+  }
+
+  /**
+   * Claim on the state row and insert the holder row, in one transaction
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockKey
+   * @param rowKey Lock key of the holder row
+   * @param timeout
+   * @param claimSql
+   * @param claimArgs
+   * @return boolean
+   */
+  private boolean acquire(LockShards.Shard shard, String lockName, String lockKey, String rowKey,
+      int timeout, String claimSql, Object... claimArgs) {
+    byte[] lockId = LockIds.of(lockName);
+    JdbcTemplate jdbcTemplate = shard.getJdbcTemplate();
+    Boolean result = shard.getTransactionTemplate().execute(status -> {
+      if (!claim(shard, lockName, lockId, claimSql, claimArgs)) {
+        return false;
+      }
+      fencingTokens.insert(jdbcTemplate, HOLDER_SQL, Collections.singletonList(lockName), lockKey,
+          rowKey, lockId, lockName, lockKey, timeout);
+      return true;
+    });
+    if (Boolean.TRUE.equals(result)) {
+      holders.put(lockKey, WRITE_LOCK.equals(rowKey));
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Claim, creating the state row on first use
+   *
+   * @author Variazioni
+   * @param shard
+   * @param lockName
+   * @param lockId
+   * @param claimSql
+   * @param claimArgs
+   * @return boolean
+   */
+  private boolean claim(LockShards.Shard shard, String lockName, byte[] lockId, String claimSql,
+      Object... claimArgs) {
+    JdbcTemplate jdbcTemplate = shard.getJdbcTemplate();
+    if (jdbcTemplate.update(claimSql, claimArgs) > 0) {
+      return true;
+    }
+    if (knownRows.add(shard.getId() + '\n' + lockName)) {
+      jdbcTemplate.update(CREATE_SQL, lockId, lockName);
+      return jdbcTemplate.update(claimSql, claimArgs) > 0;
+    }
+    return false;
+  }
+
+  private int reclaim(LockShards.Shard shard, String lockName) {
+    JdbcTemplate jdbcTemplate = shard.getJdbcTemplate();
+    byte[] lockId = LockIds.of(lockName);
+    if (jdbcTemplate.queryForList(LOCK_ROW_SQL, Integer.class, lockId).isEmpty()) {
+      return -1;
+    }
+    String writerSql =
+        "DELETE FROM RESOURCE_LOCK WHERE `LOCK_ID` = ? AND `LOCK_KEY` = 'WRITE_LOCK' AND `EXPIRED_TIME` < NOW()";
+    String readersSql =
+        "DELETE FROM RESOURCE_LOCK WHERE `LOCK_ID` = ? AND `LOCK_KEY` NOT IN ('SINGLE_LOCK', 'WRITE_LOCK') AND `EXPIRED_TIME` < NOW()";
+    int writers = jdbcTemplate.update(writerSql, lockId);
+    int readers = jdbcTemplate.update(readersSql, lockId);
+    if (writers + readers > 0) {
+      jdbcTemplate.update(GIVE_BACK_EXPIRED_SQL, writers, readers, lockId);
+      logger.warn(writers + readers + " expired read/write locks of " + lockName
+          + " were reclaimed.");
+    }
+    return writers + readers;
+  }
+}
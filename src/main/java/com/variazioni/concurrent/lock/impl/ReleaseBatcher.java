@@ -0,0 +1,373 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import com.variazioni.concurrent.lock.metrics.LockMetrics;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * Write-behind releases. Unlocks are queued and deleted in batches, one transaction per shard,
+ * every few milliseconds or as soon as a batch is full, so a short critical section does not wait
+ * for its DELETE and many releases share one connection. A queued release still holds its row
+ * until the flush: an acquisition of this node that fails deletes the queued releases of its lock
+ * name, or waits for a batch that is deleting them already, and tries again; counts of this node
+ * take them as free. Other nodes see the release after the flush. A lock name is in at most one
+ * batch at a time. The queue is flushed on shutdown, the releases of a node that dies expire with
+ * their leases.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class ReleaseBatcher {
+
+  @Autowired
+  private LockShards shards;
+
+  @Autowired
+  private PermitCounter permitCounter;
+
+  @Autowired(required = false)
+  private LockMetrics metrics = LockMetrics.NOOP;
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(ReleaseBatcher.class);
+
+  /** Backend name of the metrics */
+  private static final String BACKEND = "lockByDatabase";
+
+  /** Delete SQL, the row list is appended per batch */
+  private static final String DELETE_SQL =
+      "DELETE FROM RESOURCE_LOCK WHERE (`LOCK_ID`, `LOCK_HOLDER`) IN (";
+
+  /** Queue releases instead of deleting them in unlock */
+  @Value("${concurrent.lock.release.write-behind:false}")
+  private boolean enabled;
+
+  @Value("${concurrent.lock.release.flush-millis:5}")
+  private long flushMillis;
+
+  @Value("${concurrent.lock.release.batch-size:200}")
+  private int batchSize;
+
+  /** Queued releases per lock name, guarded by itself */
+  private final Map<String, List<Release>> pending = new HashMap<String, List<Release>>();
+
+  /** Batch being deleted per lock name, guarded by pending */
+  private final Map<String, CountDownLatch> flushing = new HashMap<String, CountDownLatch>();
+
+  /** Number of queued releases, guarded by pending */
+  private int queued;
+
+  /** One full flush at a time, acquisitions do not take it */
+  private final ReentrantLock flushLock = new ReentrantLock();
+
+  /** Told the lock names of every flushed batch */
+  private volatile Consumer<Set<String>> listener = lockNames -> {};
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Start flushing
+   *
+   * @author Variazioni
+   */
+  @PostConstruct
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "lock-release-batcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop flushing, then flush what is left
+   *
+   * @author Variazioni
+   */
+  @PreDestroy
+  public void stop() {
+    if (scheduler == null) {
+      return;
+    }
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  /**
+   * Whether releases are written behind
+   *
+   * @author Variazioni
+   * @return boolean
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Set the listener told the lock names of every flushed batch
+   *
+   * @author Variazioni
+   * @param listener
+   */
+  public void onFlushed(Consumer<Set<String>> listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Queue a release
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param permit Whether it holds a permit of the permit counter
+   */
+  public void release(String lockName, String lockKey, boolean permit) {
+    int size;
+    synchronized (pending) {
+      pending.computeIfAbsent(lockName, k -> new ArrayList<Release>())
+          .add(new Release(lockName, lockKey, permit));
+      size = ++queued;
+    }
+    if (scheduler.isShutdown()) {
+      // Released during shutdown, nothing flushes later
+      flush();
+    } else if (size == batchSize) {
+      try {
+        scheduler.execute(this::flush);
+      } catch (RejectedExecutionException e) {
+        flush();
+      }
+    }
+  }
+
+  /**
+   * Number of queued releases of a lock name, their rows still exist but are free
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return int
+   */
+  public int pending(String lockName) {
+    if (!enabled) {
+      return 0;
+    }
+    synchronized (pending) {
+      List<Release> releases = pending.get(lockName);
+      return releases == null ? 0 : releases.size();
+    }
+  }
+
+  /**
+   * Delete the queued releases of a lock name after this node failed to acquire it, or wait for
+   * the batch that is deleting them. Other lock names stay queued.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return boolean Whether releases of the name were deleted, so trying again can succeed
+   */
+  public boolean flushIfPending(String lockName) {
+    if (!enabled) {
+      return false;
+    }
+    boolean flushed = false;
+    while (true) {
+      CountDownLatch latch = new CountDownLatch(1);
+      CountDownLatch running;
+      List<Release> releases = null;
+      synchronized (pending) {
+        running = flushing.get(lockName);
+        if (running == null) {
+          releases = pending.remove(lockName);
+          if (releases == null) {
+            return flushed;
+          }
+          flushing.put(lockName, latch);
+          queued -= releases.size();
+        }
+      }
+      if (running == null) {
+        flush(releases, latch);
+        return true;
+      }
+      try {
+        running.await();
+        flushed = true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return flushed;
+      }
+    }
+  }
+
+  /**
+   * Flush the queue in batches. Lock names in a batch that is still being deleted wait for the
+   * next flush.
+   *
+   * @author Variazioni
+   */
+  public void flush() {
+    flushLock.lock();
+    try {
+      while (true) {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Release> batch = new ArrayList<Release>();
+        synchronized (pending) {
+          Iterator<Map.Entry<String, List<Release>>> it = pending.entrySet().iterator();
+          while (it.hasNext() && batch.size() < batchSize) {
+            Map.Entry<String, List<Release>> entry = it.next();
+            if (flushing.putIfAbsent(entry.getKey(), latch) == null) {
+              batch.addAll(entry.getValue());
+              it.remove();
+            }
+          }
+          queued -= batch.size();
+        }
+        if (batch.isEmpty()) {
+          return;
+        }
+        flush(batch, latch);
+      }
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Delete a batch, then let the acquisitions waiting for its lock names go
+   *
+   * @author Variazioni
+   * @param batch
+   * @param latch
+   */
+  private void flush(List<Release> batch, CountDownLatch latch) {
+    try {
+      flushBatch(batch);
+    } catch (RuntimeException e) {
+      logger.error("Flushing lock releases failed!", e);
+    } finally {
+      synchronized (pending) {
+        for (Release release : batch) {
+          flushing.remove(release.lockName, latch);
+        }
+      }
+      latch.countDown();
+    }
+  }
+
+  /**
+   * Delete a batch, one transaction per shard
+   *
+   * @author Variazioni
+   * @param batch
+   */
+  private void flushBatch(List<Release> batch) {
+    Map<LockShards.Shard, List<Release>> byShard =
+        new LinkedHashMap<LockShards.Shard, List<Release>>();
+    Set<String> lockNames = new TreeSet<String>();
+    for (Release release : batch) {
+      lockNames.add(release.lockName);
+      for (LockShards.Shard shard : shards.owners(release.lockName)) {
+        byShard.computeIfAbsent(shard, k -> new ArrayList<Release>()).add(release);
+      }
+    }
+    for (Map.Entry<LockShards.Shard, List<Release>> entry : byShard.entrySet()) {
+      flushShard(entry.getKey(), entry.getValue());
+    }
+    listener.accept(lockNames);
+  }
+
+  /**
+   * Delete the releases of one shard in one transaction. The plain rows go in one DELETE, the
+   * permits per lock name, so exactly the deleted permits are given back.
+   *
+   * @author Variazioni
+   * @param shard
+   * @param releases
+   */
+  private void flushShard(LockShards.Shard shard, List<Release> releases) {
+    StringBuilder sql = new StringBuilder(DELETE_SQL);
+    List<Object> args = new ArrayList<Object>();
+    Map<String, List<String>> permits = new TreeMap<String, List<String>>();
+    for (Release release : releases) {
+      if (release.permit) {
+        permits.computeIfAbsent(release.lockName, k -> new ArrayList<String>())
+            .add(release.lockKey);
+      } else {
+        sql.append(args.isEmpty() ? "(?, ?)" : ", (?, ?)");
+        args.add(LockIds.of(release.lockName));
+        args.add(release.lockKey);
+      }
+    }
+    sql.append(')');
+    try {
+      Integer released = shard.getTransactionTemplate().execute(status -> {
+        int deleted = 0;
+        if (!args.isEmpty()) {
+          metrics.roundTrip(BACKEND, "unlock");
+          deleted += shard.getJdbcTemplate().update(sql.toString(), args.toArray());
+        }
+        for (Map.Entry<String, List<String>> entry : permits.entrySet()) {
+          metrics.roundTrip(BACKEND, "unlock");
+          deleted += permitCounter.releaseAll(shard, entry.getKey(), entry.getValue());
+        }
+        return deleted;
+      });
+      for (List<String> lockKeys : permits.values()) {
+        lockKeys.forEach(permitCounter::released);
+      }
+      if (released != null && released < releases.size()) {
+        logger.warn((releases.size() - released) + " locks were lost before their release!");
+      }
+    } catch (Exception e) {
+      // Not queued again, the leases run out
+      logger.error("Database exception, unlock failure!", e);
+      metrics.failure(BACKEND, "unlock", e);
+    }
+  }
+
+  /**
+   * Queued release
+   */
+  private static class Release {
+    private final String lockName;
+    private final String lockKey;
+    private final boolean permit;
+
+    private Release(String lockName, String lockKey, boolean permit) {
+      this.lockName = lockName;
+      this.lockKey = lockKey;
+      this.permit = permit;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package com.variazioni.concurrent.lock.impl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import com.variazioni.concurrent.lock.util.LockIds;
+
+/**
+ * Release sequence per lock name in RESOURCE_LOCK_VERSION. Every release bumps the version of its
+ * lock name, so a waiter on any node polls one primary key row and only counts the holders again
+ * when the version moved. The row is created by the first waiter of a name, releases of names
+ * nobody ever waited for update nothing. The row lives on the shard owning the name, a moved name
+ * is bumped on its previous owner too. The reaper deletes rows no release bumped for a while,
+ * a waiter that finds its row gone counts the holders and creates it again. Opt in with
+ * concurrent.lock.wait.release-versions.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class ReleaseVersions {
+
+  @Autowired
+  private LockShards shards;
+
+  /** Create SQL, no-op when the row exists */
+  private static final String CREATE_SQL =
+      "INSERT INTO RESOURCE_LOCK_VERSION (`LOCK_ID`, `VERSION`) VALUES (?, 0) ON DUPLICATE KEY UPDATE `LOCK_ID` = `LOCK_ID`";
+
+  /** Version SQL */
+  private static final String VERSION_SQL =
+      "SELECT `VERSION` FROM RESOURCE_LOCK_VERSION WHERE `LOCK_ID` = ?";
+
+  /** Bump SQL */
+  private static final String BUMP_SQL =
+      "UPDATE RESOURCE_LOCK_VERSION SET `VERSION` = `VERSION` + 1 WHERE `LOCK_ID` IN (";
+
+  /** Lock names remembered to have a version row */
+  private static final int KNOWN_ROWS = 10000;
+
+  /** Lock names whose version row is known to exist, least recently used first */
+  private final Map<String, Boolean> knownRows =
+      Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > KNOWN_ROWS;
+        }
+      });
+
+  /**
+   * Current version of a lock name, creates its row on first use
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return long
+   */
+  public long version(String lockName) {
+    byte[] lockId = LockIds.of(lockName);
+    JdbcTemplate jdbcTemplate = shards.shard(lockName).getJdbcTemplate();
+    if (knownRows.get(lockName) == null) {
+      jdbcTemplate.update(CREATE_SQL, lockId);
+      knownRows.put(lockName, Boolean.TRUE);
+    }
+    List<Long> versions = jdbcTemplate.queryForList(VERSION_SQL, Long.class, lockId);
+    if (versions.isEmpty()) {
+      // Deleted meanwhile, created again by the next call
+      knownRows.remove(lockName);
+      return -1;
+    }
+    return versions.get(0);
+  }
+
+  /**
+   * Lock names were released
+   *
+   * @author Variazioni
+   * @param lockNames
+   */
+  public void bump(Collection<String> lockNames) {
+    for (Map.Entry<LockShards.Shard, List<String>> group : shards.group(lockNames).entrySet()) {
+      StringBuilder sql = new StringBuilder(BUMP_SQL);
+      Object[] args = new Object[group.getValue().size()];
+      for (int i = 0; i < args.length; i++) {
+        sql.append(i == 0 ? "?" : ", ?");
+        args[i] = LockIds.of(group.getValue().get(i));
+      }
+      group.getKey().getJdbcTemplate().update(sql.append(')').toString(), args);
+    }
+  }
+}
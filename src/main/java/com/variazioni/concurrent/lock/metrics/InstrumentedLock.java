@@ -0,0 +1,366 @@
+package com.variazioni.concurrent.lock.metrics;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.wait.LockWaiter;
+
+/**
+ * Measures the acquisitions and releases of one backend and keeps LockActivity up to date. The
+ * router hands out backends wrapped in it, so the service and the aspects are measured alike.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class InstrumentedLock implements Lock {
+
+  /** Exclusive lock mode */
+  public static final String EXCLUSIVE = "exclusive";
+  /** Shared lock mode */
+  public static final String SHARED = "shared";
+  /** Read lock mode */
+  public static final String READ = "read";
+  /** Write lock mode */
+  public static final String WRITE = "write";
+
+  private final String backend;
+  private final Lock lock;
+  private final LockMetrics metrics;
+  private final LockActivity activity;
+
+  /**
+   * Constructor
+   *
+   * @param backend Bean name of the backend
+   * @param lock
+   * @param metrics
+   * @param activity
+   */
+  public InstrumentedLock(String backend, Lock lock, LockMetrics metrics, LockActivity activity) {
+    this.backend = backend;
+    this.lock = lock;
+    this.metrics = metrics;
+    this.activity = activity;
+  }
+
+  /**
+   * Locks statistics
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return int
+   */
+  @Override
+  public int locksCount(String lockName) {
+    return lock.locksCount(lockName);
+  }
+
+  /**
+   * Shared lock, measured
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int limit, int timeout,
+      Duration waitTimeout) {
+    return acquire(SHARED, lockName, lockKey, waitTimeout,
+        () -> lock.lock(lockName, lockKey, limit, timeout, waitTimeout));
+  }
+
+  /**
+   * Exclusive lock, measured
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return acquire(EXCLUSIVE, lockName, lockKey, waitTimeout,
+        () -> lock.lock(lockName, lockKey, timeout, waitTimeout));
+  }
+
+  /**
+   * Read lock, measured
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean readLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return acquire(READ, lockName, lockKey, waitTimeout,
+        () -> lock.readLock(lockName, lockKey, timeout, waitTimeout));
+  }
+
+  /**
+   * Write lock, measured
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean writeLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return acquire(WRITE, lockName, lockKey, waitTimeout,
+        () -> lock.writeLock(lockName, lockKey, timeout, waitTimeout));
+  }
+
+  /**
+   * Unlock, measures the hold
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return boolean
+   */
+  @Override
+  public boolean unlock(String lockName, String lockKey) {
+    LockActivity.Hold hold = activity.released(lockName, lockKey);
+    boolean released;
+    try {
+      released = lock.unlock(lockName, lockKey);
+    } catch (RuntimeException e) {
+      metrics.failure(backend, "unlock", e);
+      throw e;
+    }
+    if (hold != null) {
+      metrics.release(backend, hold.getMode(), hold.heldNanos(), released);
+    }
+    return released;
+  }
+
+  /**
+   * Waiting to unlock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean waitLock(String lockName, Duration waitTimeout) {
+    return lock.waitLock(lockName, waitTimeout);
+  }
+
+  /**
+   * Asynchronous waiting to unlock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> waitLockAsync(String lockName, Duration waitTimeout) {
+    return lock.waitLockAsync(lockName, waitTimeout);
+  }
+
+  /**
+   * Lock timeout extended
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return boolean
+   */
+  @Override
+  public boolean extendLock(String lockName, String lockKey, int timeout) {
+    return lock.extendLock(lockName, lockKey, timeout);
+  }
+
+  /**
+   * Fencing token of a held lock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return long
+   */
+  @Override
+  public long getFencingToken(String lockName, String lockKey) {
+    return lock.getFencingToken(lockName, lockKey);
+  }
+
+  /**
+   * Asynchronous shared lock, measured
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int limit,
+      int timeout, Duration waitTimeout) {
+    return acquireAsync(SHARED, lockName, lockKey, waitTimeout,
+        lock.lockAsync(lockName, lockKey, limit, timeout, waitTimeout));
+  }
+
+  /**
+   * Asynchronous exclusive lock, measured
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int timeout,
+      Duration waitTimeout) {
+    return acquireAsync(EXCLUSIVE, lockName, lockKey, waitTimeout,
+        lock.lockAsync(lockName, lockKey, timeout, waitTimeout));
+  }
+
+  /**
+   * Exclusive lock on all names, measured as one acquisition
+   *
+   * @author Variazioni
+   * @param lockNames
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lockAll(Collection<String> lockNames, String lockKey, int timeout,
+      Duration waitTimeout) {
+    for (String lockName : lockNames) {
+      activity.waiting(lockName);
+    }
+    LockWaiter.Progress progress = LockWaiter.progress();
+    progress.clear();
+    long start = System.nanoTime();
+    String result = LockMetrics.ERROR;
+    try {
+      boolean locked = lock.lockAll(lockNames, lockKey, timeout, waitTimeout);
+      result = result(locked, waitTimeout);
+      return locked;
+    } catch (RuntimeException e) {
+      metrics.failure(backend, "lock", e);
+      throw e;
+    } finally {
+      for (String lockName : lockNames) {
+        activity.waited(lockName);
+        if (result == LockMetrics.ACQUIRED) {
+          activity.acquired(backend, EXCLUSIVE, lockName, lockKey);
+        }
+      }
+      metrics.acquisition(backend, EXCLUSIVE, result, System.nanoTime() - start,
+          progress.getPausedNanos(), progress.getAttempts());
+    }
+  }
+
+  /**
+   * Unlock all names, measures the holds
+   *
+   * @author Variazioni
+   * @param lockNames
+   * @param lockKey
+   * @return boolean
+   */
+  @Override
+  public boolean unlockAll(Collection<String> lockNames, String lockKey) {
+    boolean released = lock.unlockAll(lockNames, lockKey);
+    for (String lockName : lockNames) {
+      LockActivity.Hold hold = activity.released(lockName, lockKey);
+      if (hold != null) {
+        metrics.release(backend, hold.getMode(), hold.heldNanos(), released);
+      }
+    }
+    return released;
+  }
+
+  /**
+   * Backend bean name
+   *
+   * @author Variazioni
+   * @return String
+   */
+  public String getBackend() {
+    return backend;
+  }
+
+  /**
+   * The measured backend
+   *
+   * @author Variazioni
+   * @return Lock
+   */
+  public Lock getLock() {
+    return lock;
+  }
+
+  private boolean acquire(String mode, String lockName, String lockKey, Duration waitTimeout,
+      BooleanSupplier attempt) {
+    activity.waiting(lockName);
+    LockWaiter.Progress progress = LockWaiter.progress();
+    progress.clear();
+    long start = System.nanoTime();
+    String result = LockMetrics.ERROR;
+    try {
+      boolean locked = attempt.getAsBoolean();
+      result = result(locked, waitTimeout);
+      return locked;
+    } catch (RuntimeException e) {
+      metrics.failure(backend, "lock", e);
+      throw e;
+    } finally {
+      activity.waited(lockName);
+      if (result == LockMetrics.ACQUIRED) {
+        activity.acquired(backend, mode, lockName, lockKey);
+      }
+      metrics.acquisition(backend, mode, result, System.nanoTime() - start,
+          progress.getPausedNanos(), progress.getAttempts());
+    }
+  }
+
+  private CompletableFuture<Boolean> acquireAsync(String mode, String lockName, String lockKey,
+      Duration waitTimeout, CompletableFuture<Boolean> locked) {
+    long start = System.nanoTime();
+    activity.waiting(lockName);
+    locked.whenComplete((success, e) -> {
+      activity.waited(lockName);
+      String result = e != null ? LockMetrics.ERROR : result(Boolean.TRUE.equals(success),
+          waitTimeout);
+      if (e != null) {
+        metrics.failure(backend, "lock", e);
+      } else if (result == LockMetrics.ACQUIRED) {
+        activity.acquired(backend, mode, lockName, lockKey);
+      }
+      // The attempts ran on the wait workers, only the latency is known
+      metrics.acquisition(backend, mode, result, System.nanoTime() - start, 0, 0);
+    });
+    return locked;
+  }
+
+  private static String result(boolean locked, Duration waitTimeout) {
+    if (locked) {
+      return LockMetrics.ACQUIRED;
+    }
+    return LockWaiter.toNanos(waitTimeout) > 0 ? LockMetrics.TIMEOUT : LockMetrics.BUSY;
+  }
+}
@@ -0,0 +1,167 @@
+package com.variazioni.concurrent.lock.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.stereotype.Component;
+
+/**
+ * Locks held and waited on by this node, for the holder and waiter gauges and the locks endpoint
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Component
+public class LockActivity {
+
+  /** Held locks, lockName and lockKey to the hold */
+  private final ConcurrentHashMap<String, Hold> holds = new ConcurrentHashMap<String, Hold>();
+
+  /** Waiting threads or futures per lock name */
+  private final ConcurrentHashMap<String, Integer> waiting =
+      new ConcurrentHashMap<String, Integer>();
+
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  /**
+   * A wait for a lock starts
+   *
+   * @author Variazioni
+   * @param lockName
+   */
+  public void waiting(String lockName) {
+    waiting.merge(lockName, 1, Integer::sum);
+    waiters.incrementAndGet();
+  }
+
+  /**
+   * A wait for a lock is over, acquired or not
+   *
+   * @author Variazioni
+   * @param lockName
+   */
+  public void waited(String lockName) {
+    waiting.computeIfPresent(lockName, (k, count) -> count == 1 ? null : count - 1);
+    waiters.decrementAndGet();
+  }
+
+  /**
+   * A lock was acquired
+   *
+   * @author Variazioni
+   * @param backend
+   * @param mode
+   * @param lockName
+   * @param lockKey
+   */
+  public void acquired(String backend, String mode, String lockName, String lockKey) {
+    holds.put(lockName + '\n' + lockKey, new Hold(backend, mode, lockName));
+  }
+
+  /**
+   * A lock is released
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return Hold null if it was not acquired through this node
+   */
+  public Hold released(String lockName, String lockKey) {
+    return holds.remove(lockName + '\n' + lockKey);
+  }
+
+  /**
+   * Number of locks held
+   *
+   * @author Variazioni
+   * @return int
+   */
+  public int holders() {
+    return holds.size();
+  }
+
+  /**
+   * Number of waits in progress
+   *
+   * @author Variazioni
+   * @return int
+   */
+  public int waiters() {
+    return waiters.get();
+  }
+
+  /**
+   * Held locks, longest held first
+   *
+   * @author Variazioni
+   * @return List
+   */
+  public List<Map<String, Object>> heldLocks() {
+    List<Hold> sorted = new ArrayList<Hold>(holds.values());
+    sorted.sort((a, b) -> Long.compare(a.since, b.since));
+    long now = System.currentTimeMillis();
+    List<Map<String, Object>> result = new ArrayList<Map<String, Object>>(sorted.size());
+    for (Hold hold : sorted) {
+      Map<String, Object> item = new LinkedHashMap<String, Object>();
+      item.put("lockName", hold.lockName);
+      item.put("backend", hold.backend);
+      item.put("mode", hold.mode);
+      item.put("thread", hold.thread);
+      item.put("heldMillis", now - hold.since);
+      result.add(item);
+    }
+    return result;
+  }
+
+  /**
+   * Number of waits per lock name
+   *
+   * @author Variazioni
+   * @return Map
+   */
+  public Map<String, Integer> waitingLocks() {
+    return new TreeMap<String, Integer>(waiting);
+  }
+
+  /**
+   * One held lock
+   */
+  public static final class Hold {
+    private final String backend;
+    private final String mode;
+    private final String lockName;
+    private final String thread = Thread.currentThread().getName();
+    private final long since = System.currentTimeMillis();
+    private final long sinceNanos = System.nanoTime();
+
+    private Hold(String backend, String mode, String lockName) {
+      this.backend = backend;
+      this.mode = mode;
+      this.lockName = lockName;
+    }
+
+    /**
+     * Lock mode
+     *
+     * @author Variazioni
+     * @return String
+     */
+    public String getMode() {
+      return mode;
+    }
+
+    /**
+     * Nanoseconds since the lock was acquired
+     *
+     * @author Variazioni
+     * @return long
+     */
+    public long heldNanos() {
+      return System.nanoTime() - sinceNanos;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.variazioni.concurrent.lock.metrics;
+
+/**
+ * Receives the measurements of lock operations. Tags are limited to the backend bean name, the
+ * lock mode, the result, the operation and the exception type, never the lock name, so the number
+ * of series stays bounded. Every method does nothing by default.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public interface LockMetrics {
+
+  /** Metrics that record nothing */
+  public static final LockMetrics NOOP = new LockMetrics() {};
+
+  /** Acquisition result, acquired */
+  public static final String ACQUIRED = "acquired";
+  /** Acquisition result, waited until the deadline */
+  public static final String TIMEOUT = "timeout";
+  /** Acquisition result, the only attempt failed */
+  public static final String BUSY = "busy";
+  /** Acquisition result, the backend threw */
+  public static final String ERROR = "error";
+
+  /**
+   * One acquisition, successful or not
+   *
+   * @author Variazioni
+   * @param backend
+   * @param mode
+   * @param result
+   * @param latencyNanos From the call to the result
+   * @param pausedNanos Time spent pausing between attempts
+   * @param attempts 0 when unknown
+   */
+  public default void acquisition(String backend, String mode, String result, long latencyNanos,
+      long pausedNanos, int attempts) {}
+
+  /**
+   * One release of a lock acquired through this node
+   *
+   * @author Variazioni
+   * @param backend
+   * @param mode
+   * @param holdNanos
+   * @param released false if the lock was no longer held, usually because its lease expired
+   */
+  public default void release(String backend, String mode, long holdNanos, boolean released) {}
+
+  /**
+   * One database round trip
+   *
+   * @author Variazioni
+   * @param backend
+   * @param operation
+   */
+  public default void roundTrip(String backend, String operation) {}
+
+  /**
+   * One failed operation
+   *
+   * @author Variazioni
+   * @param backend
+   * @param operation
+   * @param cause
+   */
+  public default void failure(String backend, String operation, Throwable cause) {}
+
+  /**
+   * Leases that ran out before they were released
+   *
+   * @author Variazioni
+   * @param backend
+   * @param count
+   */
+  public default void expired(String backend, int count) {}
+}
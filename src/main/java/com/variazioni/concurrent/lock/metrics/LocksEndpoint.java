@@ -0,0 +1,41 @@
+package com.variazioni.concurrent.lock.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+/**
+ * Actuator endpoint "locks", the locks held and waited on by this node
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Endpoint(id = "locks")
+public class LocksEndpoint {
+
+  private final LockActivity activity;
+
+  /**
+   * Constructor
+   *
+   * @param activity
+   */
+  public LocksEndpoint(LockActivity activity) {
+    this.activity = activity;
+  }
+
+  /**
+   * Held locks, longest held first, and the number of waits per lock name
+   *
+   * @author Variazioni
+   * @return Map
+   */
+  @ReadOperation
+  public Map<String, Object> locks() {
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    result.put("held", activity.heldLocks());
+    result.put("waiting", activity.waitingLocks());
+    return result;
+  }
+}
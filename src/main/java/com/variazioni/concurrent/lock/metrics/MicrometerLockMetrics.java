@@ -0,0 +1,112 @@
+package com.variazioni.concurrent.lock.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer meters of the lock operations
+ *
+ * <pre>
+ * concurrent.lock.acquire     timer, backend mode result, latency histogram
+ * concurrent.lock.wait        timer, backend mode result, time paused between attempts
+ * concurrent.lock.attempts    summary, backend mode, attempts per acquisition
+ * concurrent.lock.hold        timer, backend mode, hold duration histogram
+ * concurrent.lock.release     counter, backend result, releases and releases of lost leases
+ * concurrent.lock.round.trips counter, backend operation
+ * concurrent.lock.failures    counter, backend operation cause
+ * concurrent.lock.expired     counter, backend, leases that ran out
+ * concurrent.lock.holders     gauge, locks held by this node
+ * concurrent.lock.waiters     gauge, waits in progress on this node
+ * </pre>
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class MicrometerLockMetrics implements LockMetrics {
+
+  private final MeterRegistry registry;
+
+  /** Meters by name and tag values, so a measurement builds no meter id */
+  private final ConcurrentHashMap<String, Object> meters = new ConcurrentHashMap<String, Object>();
+
+  /**
+   * Constructor
+   *
+   * @param registry
+   * @param activity
+   */
+  public MicrometerLockMetrics(MeterRegistry registry, LockActivity activity) {
+    this.registry = registry;
+    Gauge.builder("concurrent.lock.holders", activity, LockActivity::holders)
+        .description("Locks held by this node").register(registry);
+    Gauge.builder("concurrent.lock.waiters", activity, LockActivity::waiters)
+        .description("Lock waits in progress on this node").register(registry);
+  }
+
+  @Override
+  public void acquisition(String backend, String mode, String result, long latencyNanos,
+      long pausedNanos, int attempts) {
+    timer("concurrent.lock.acquire", "Lock acquisition latency", backend, mode, result)
+        .record(latencyNanos, TimeUnit.NANOSECONDS);
+    timer("concurrent.lock.wait", "Time paused between acquisition attempts", backend, mode,
+        result).record(pausedNanos, TimeUnit.NANOSECONDS);
+    if (attempts > 0) {
+      String key = "attempts\n" + backend + '\n' + mode;
+      ((DistributionSummary) meters.computeIfAbsent(key,
+          k -> DistributionSummary.builder("concurrent.lock.attempts")
+              .description("Attempts per acquisition").tag("backend", backend).tag("mode", mode)
+              .publishPercentileHistogram().register(registry))).record(attempts);
+    }
+  }
+
+  @Override
+  public void release(String backend, String mode, long holdNanos, boolean released) {
+    String key = "hold\n" + backend + '\n' + mode;
+    ((Timer) meters.computeIfAbsent(key,
+        k -> Timer.builder("concurrent.lock.hold").description("Lock hold duration")
+            .tag("backend", backend).tag("mode", mode).publishPercentileHistogram()
+            .register(registry))).record(holdNanos, TimeUnit.NANOSECONDS);
+    counter("concurrent.lock.release", "backend", backend, "result",
+        released ? "released" : "lost").increment();
+  }
+
+  @Override
+  public void roundTrip(String backend, String operation) {
+    counter("concurrent.lock.round.trips", "backend", backend, "operation", operation)
+        .increment();
+  }
+
+  @Override
+  public void failure(String backend, String operation, Throwable cause) {
+    counter("concurrent.lock.failures", "backend", backend, "operation", operation, "cause",
+        cause.getClass().getSimpleName()).increment();
+  }
+
+  @Override
+  public void expired(String backend, int count) {
+    counter("concurrent.lock.expired", "backend", backend).increment(count);
+  }
+
+  private Timer timer(String name, String description, String backend, String mode,
+      String result) {
+    String key = name + '\n' + backend + '\n' + mode + '\n' + result;
+    return (Timer) meters.computeIfAbsent(key,
+        k -> Timer.builder(name).description(description).tag("backend", backend)
+            .tag("mode", mode).tag("result", result).publishPercentileHistogram()
+            .register(registry));
+  }
+
+  private Counter counter(String name, String... tags) {
+    StringBuilder key = new StringBuilder(name);
+    for (String tag : tags) {
+      key.append('\n').append(tag);
+    }
+    return (Counter) meters.computeIfAbsent(key.toString(),
+        k -> Counter.builder(name).tags(tags).register(registry));
+  }
+}
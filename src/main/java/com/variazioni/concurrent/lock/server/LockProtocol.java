@@ -0,0 +1,154 @@
+package com.variazioni.concurrent.lock.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol of the lock server. Every frame starts with its length, excluding the length
+ * field itself, and the request id chosen by the client, so a connection carries any number of
+ * requests in flight and replies may come back in any order.
+ *
+ * <pre>
+ * request  : int length, int id, byte op, payload
+ * response : int length, int id, byte status, long value
+ * string   : short length, UTF-8 bytes
+ *
+ * LOCK     : string name, string key, byte mode, int limit, int timeout, long waitMillis
+ * UNLOCK   : string name, string key
+ * EXTEND   : string name, string key, int timeout
+ * COUNT    : string name
+ * WAIT     : string name, long waitMillis
+ * </pre>
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public final class LockProtocol {
+
+  /** Lock, the value of a granted reply is the fencing token */
+  public static final byte OP_LOCK = 1;
+  /** Unlock */
+  public static final byte OP_UNLOCK = 2;
+  /** Extend the lease */
+  public static final byte OP_EXTEND = 3;
+  /** Count the holders, the value of the reply is the count */
+  public static final byte OP_COUNT = 4;
+  /** Wait until a lock name has no holder */
+  public static final byte OP_WAIT = 5;
+
+  /** Lock mode, shared up to the limit */
+  public static final byte MODE_SHARED = 0;
+  /** Lock mode, exclusive */
+  public static final byte MODE_EXCLUSIVE = 1;
+  /** Lock mode, read, shared by readers and excluding writers */
+  public static final byte MODE_READ = 2;
+  /** Lock mode, write, excluding every other holder */
+  public static final byte MODE_WRITE = 3;
+
+  /** Reply status, failed */
+  public static final byte STATUS_FALSE = 0;
+  /** Reply status, succeeded */
+  public static final byte STATUS_TRUE = 1;
+  /** Reply status, malformed request */
+  public static final byte STATUS_ERROR = 2;
+
+  /** Length of a response frame, after the length field */
+  public static final int RESPONSE_LENGTH = 4 + 1 + 8;
+
+  /** Largest accepted frame */
+  public static final int MAX_FRAME = 64 * 1024;
+
+  private LockProtocol() {}
+
+  /**
+   * Encode a request
+   *
+   * @author Variazioni
+   * @param id
+   * @param op
+   * @param lockName
+   * @param lockKey Ignored by COUNT and WAIT
+   * @param mode
+   * @param limit
+   * @param timeout
+   * @param waitMillis
+   * @return ByteBuffer Ready to be written
+   */
+  public static ByteBuffer request(int id, byte op, String lockName, String lockKey, byte mode,
+      int limit, int timeout, long waitMillis) {
+    byte[] name = lockName.getBytes(StandardCharsets.UTF_8);
+    byte[] key = lockKey == null ? null : lockKey.getBytes(StandardCharsets.UTF_8);
+    int length = 4 + 1 + 2 + name.length;
+    switch (op) {
+      case OP_LOCK:
+        length += 2 + key.length + 1 + 4 + 4 + 8;
+        break;
+      case OP_UNLOCK:
+        length += 2 + key.length;
+        break;
+      case OP_EXTEND:
+        length += 2 + key.length + 4;
+        break;
+      case OP_WAIT:
+        length += 8;
+        break;
+      default:
+        break;
+    }
+    if (length > MAX_FRAME) {
+      throw new IllegalArgumentException("Lock name or key too long!");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+    buffer.putInt(length).putInt(id).put(op);
+    buffer.putShort((short) name.length).put(name);
+    switch (op) {
+      case OP_LOCK:
+        buffer.putShort((short) key.length).put(key);
+        buffer.put(mode).putInt(limit).putInt(timeout);
+        buffer.putLong(waitMillis);
+        break;
+      case OP_UNLOCK:
+        buffer.putShort((short) key.length).put(key);
+        break;
+      case OP_EXTEND:
+        buffer.putShort((short) key.length).put(key).putInt(timeout);
+        break;
+      case OP_WAIT:
+        buffer.putLong(waitMillis);
+        break;
+      default:
+        break;
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Encode a response into a buffer
+   *
+   * @author Variazioni
+   * @param buffer
+   * @param id
+   * @param status
+   * @param value
+   */
+  public static void response(ByteBuffer buffer, int id, byte status, long value) {
+    buffer.putInt(RESPONSE_LENGTH).putInt(id).put(status).putLong(value);
+  }
+
+  /**
+   * Read a string
+   *
+   * @author Variazioni
+   * @param buffer
+   * @return String
+   */
+  public static String getString(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xFFFF;
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+}
@@ -0,0 +1,319 @@
+package com.variazioni.concurrent.lock.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lock server. Keeps the locks in memory and serves many application nodes over LockProtocol on a
+ * single selector thread, so the lock state needs no synchronization. Requests are pipelined, a
+ * lock request that has to wait is queued on the server and its reply is pushed when it is
+ * granted. The locks of a client are released when its connection closes. Runs embedded in an
+ * application or on its own through main.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class LockServer {
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(LockServer.class);
+
+  private final InetSocketAddress address;
+
+  private final LockTable table = new LockTable();
+
+  private Selector selector;
+
+  private ServerSocketChannel serverChannel;
+
+  private Thread thread;
+
+  private volatile boolean running;
+
+  /**
+   * Constructor
+   *
+   * @param host
+   * @param port 0 picks a free port
+   */
+  public LockServer(String host, int port) {
+    this.address = new InetSocketAddress(host, port);
+  }
+
+  /**
+   * Standalone server, arguments are the port and optionally the bind address
+   *
+   * @author Variazioni
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+    String host = args.length > 1 ? args[1] : "0.0.0.0";
+    LockServer server = new LockServer(host, port);
+    server.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+  }
+
+  /**
+   * Bind and start serving
+   *
+   * @author Variazioni
+   * @throws IOException
+   */
+  public synchronized void start() throws IOException {
+    if (running) {
+      return;
+    }
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(address, 1024);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    running = true;
+    thread = new Thread(this::run, "lock-server");
+    thread.start();
+    logger.info("Lock server listening on " + serverChannel.getLocalAddress());
+  }
+
+  /**
+   * Stop serving, clients see their connection closed
+   *
+   * @author Variazioni
+   */
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    selector.wakeup();
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Bound port, useful when started on port 0
+   *
+   * @author Variazioni
+   * @return int
+   */
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Selector loop
+   *
+   * @author Variazioni
+   */
+  private void run() {
+    try {
+      while (running) {
+        long wait = TimeUnit.NANOSECONDS.toMillis(table.tick());
+        selector.select(Math.max(wait, 1));
+        for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          try {
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              Connection connection = (Connection) key.attachment();
+              if (key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.flush();
+              }
+            }
+          } catch (IOException e) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+              ((Connection) attachment).close();
+            }
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      logger.error("Lock server stopped unexpectedly!", e);
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        try {
+          key.channel().close();
+        } catch (IOException e) {
+          logger.warn("Closing a lock server channel failed.", e);
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        logger.warn("Closing the lock server selector failed.", e);
+      }
+      running = false;
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = serverChannel.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      Connection connection = new Connection(channel);
+      connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+  }
+
+  /**
+   * One client connection
+   */
+  private class Connection implements LockTable.Replier {
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(8 * 1024);
+    private ByteBuffer out = ByteBuffer.allocate(8 * 1024);
+    private boolean open = true;
+
+    private Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /** Read what is available and handle every complete frame */
+    private void read() throws IOException {
+      if (channel.read(in) < 0) {
+        close();
+        return;
+      }
+      in.flip();
+      while (in.remaining() >= 4) {
+        int length = in.getInt(in.position());
+        if (length < 5 || length > LockProtocol.MAX_FRAME) {
+          throw new IOException("Malformed frame of " + length + " bytes");
+        }
+        if (in.remaining() < 4 + length) {
+          break;
+        }
+        int limit = in.limit();
+        int end = in.position() + 4 + length;
+        in.position(in.position() + 4).limit(end);
+        handle(in);
+        in.limit(limit).position(end);
+      }
+      in.compact();
+      if (!in.hasRemaining()) {
+        ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+        in.flip();
+        in = larger.put(in);
+      }
+      // Replies of a whole batch of pipelined requests go out together
+      flush();
+    }
+
+    private void handle(ByteBuffer frame) {
+      int id = frame.getInt();
+      byte op = frame.get();
+      try {
+        String lockName = LockProtocol.getString(frame);
+        switch (op) {
+          case LockProtocol.OP_LOCK: {
+            String lockKey = LockProtocol.getString(frame);
+            byte mode = frame.get();
+            int limit = frame.getInt();
+            int timeout = frame.getInt();
+            long waitMillis = frame.getLong();
+            table.lock(this, id, lockName, lockKey, mode, limit, timeout, waitMillis);
+            break;
+          }
+          case LockProtocol.OP_UNLOCK:
+            table.unlock(this, id, lockName, LockProtocol.getString(frame));
+            break;
+          case LockProtocol.OP_EXTEND: {
+            String lockKey = LockProtocol.getString(frame);
+            table.extend(this, id, lockName, lockKey, frame.getInt());
+            break;
+          }
+          case LockProtocol.OP_COUNT:
+            table.count(this, id, lockName);
+            break;
+          case LockProtocol.OP_WAIT:
+            table.await(this, id, lockName, frame.getLong());
+            break;
+          default:
+            reply(id, LockProtocol.STATUS_ERROR, 0);
+            break;
+        }
+      } catch (RuntimeException e) {
+        // Truncated payload
+        logger.warn("Malformed lock request " + op + " rejected.", e);
+        reply(id, LockProtocol.STATUS_ERROR, 0);
+      }
+    }
+
+    @Override
+    public void reply(int id, byte status, long value) {
+      if (!open) {
+        return;
+      }
+      if (out.remaining() < 4 + LockProtocol.RESPONSE_LENGTH) {
+        ByteBuffer larger = ByteBuffer.allocate(out.capacity() * 2);
+        out.flip();
+        out = larger.put(out);
+      }
+      LockProtocol.response(out, id, status, value);
+      // Grants pushed outside of a read of this connection are flushed at once
+      if (key != null && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      }
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    /** Write as much as the socket takes, keep OP_WRITE while something is left */
+    private void flush() throws IOException {
+      if (!open) {
+        return;
+      }
+      out.flip();
+      channel.write(out);
+      out.compact();
+      int ops = out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+          : SelectionKey.OP_READ;
+      if (key.isValid() && key.interestOps() != ops) {
+        key.interestOps(ops);
+      }
+    }
+
+    private void close() {
+      if (!open) {
+        return;
+      }
+      open = false;
+      table.closed(this);
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.warn("Closing a lock client connection failed.", e);
+      }
+    }
+  }
+}
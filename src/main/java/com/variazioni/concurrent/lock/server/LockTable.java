@@ -0,0 +1,451 @@
+package com.variazioni.concurrent.lock.server;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock state of the server. Only the selector thread touches it, so it needs no synchronization.
+ * Waiters queue per lock name in arrival order and are granted as soon as a holder leaves, the
+ * grant is pushed to their connection as the reply of the original request. Newcomers never
+ * overtake the queue, so a waiting writer keeps new readers out. Holds belong to the connection
+ * that took them and are released when it closes, so a client that crashes does not keep its
+ * locks until they expire. Fencing tokens carry the wall clock milliseconds in their high bits, so
+ * a restarted server goes on above the tokens of the previous one unless its clock went back.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+class LockTable {
+
+  /** Where replies go */
+  interface Replier {
+
+    /**
+     * Send a reply, ignored when the connection is gone
+     *
+     * @author Variazioni
+     * @param id
+     * @param status
+     * @param value
+     */
+    void reply(int id, byte status, long value);
+
+    /**
+     * Whether the connection is still open
+     *
+     * @author Variazioni
+     * @return boolean
+     */
+    boolean isOpen();
+  }
+
+  private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+  /** Holds per connection, released when it closes */
+  private final HashMap<Replier, HashSet<Holder>> holds = new HashMap<Replier, HashSet<Holder>>();
+
+  /** Moments a lock name must be looked at again, for expiries and wait deadlines */
+  private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+  /** Bits of a fencing token below the wall clock milliseconds */
+  private static final int TOKEN_CLOCK_SHIFT = 20;
+
+  /** Last fencing token */
+  private long tokens;
+
+  /**
+   * Lock, replies now or when granted
+   *
+   * @author Variazioni
+   * @param replier
+   * @param id
+   * @param lockName
+   * @param lockKey
+   * @param mode
+   * @param limit
+   * @param timeout
+   * @param waitMillis
+   */
+  void lock(Replier replier, int id, String lockName, String lockKey, byte mode, int limit,
+      int timeout, long waitMillis) {
+    if (mode < LockProtocol.MODE_SHARED || mode > LockProtocol.MODE_WRITE) {
+      replier.reply(id, LockProtocol.STATUS_ERROR, 0);
+      return;
+    }
+    long now = System.nanoTime();
+    Entry entry = entry(lockName, now);
+    Waiter waiter = new Waiter(replier, id, lockName, lockKey, mode, limit, timeout,
+        now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, waitMillis)));
+    // Queued waiters go first, newcomers do not overtake them
+    if (!entry.waiters.isEmpty() || !grant(entry, waiter, now)) {
+      if (waitMillis <= 0) {
+        replier.reply(id, LockProtocol.STATUS_FALSE, 0);
+      } else {
+        entry.waiters.add(waiter);
+      }
+    }
+    settle(lockName, entry);
+  }
+
+  /**
+   * Unlock
+   *
+   * @author Variazioni
+   * @param replier
+   * @param id
+   * @param lockName
+   * @param lockKey
+   */
+  void unlock(Replier replier, int id, String lockName, String lockKey) {
+    long now = System.nanoTime();
+    Entry entry = entry(lockName, now);
+    Holder holder = entry.holders.remove(lockKey);
+    replier.reply(id, holder != null ? LockProtocol.STATUS_TRUE : LockProtocol.STATUS_FALSE, 0);
+    if (holder != null) {
+      dropHold(holder);
+      advance(entry, now);
+    }
+    settle(lockName, entry);
+  }
+
+  /**
+   * Release the holds of a connection that closed
+   *
+   * @author Variazioni
+   * @param replier
+   */
+  void closed(Replier replier) {
+    HashSet<Holder> held = holds.remove(replier);
+    if (held == null) {
+      return;
+    }
+    long now = System.nanoTime();
+    for (Holder holder : held) {
+      Entry entry = entries.get(holder.lockName);
+      if (entry != null && entry.holders.remove(holder.lockKey, holder)) {
+        advance(entry, now);
+        settle(holder.lockName, entry);
+      }
+    }
+  }
+
+  /**
+   * Extend a lease
+   *
+   * @author Variazioni
+   * @param replier
+   * @param id
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   */
+  void extend(Replier replier, int id, String lockName, String lockKey, int timeout) {
+    long now = System.nanoTime();
+    Entry entry = entry(lockName, now);
+    Holder holder = entry.holders.get(lockKey);
+    if (holder != null) {
+      holder.expiresAt = now + TimeUnit.SECONDS.toNanos(timeout);
+    }
+    replier.reply(id, holder != null ? LockProtocol.STATUS_TRUE : LockProtocol.STATUS_FALSE, 0);
+    settle(lockName, entry);
+  }
+
+  /**
+   * Count the holders
+   *
+   * @author Variazioni
+   * @param replier
+   * @param id
+   * @param lockName
+   */
+  void count(Replier replier, int id, String lockName) {
+    Entry entry = entry(lockName, System.nanoTime());
+    replier.reply(id, LockProtocol.STATUS_TRUE, entry.holders.size());
+    settle(lockName, entry);
+  }
+
+  /**
+   * Wait until a lock name has no holder, replies now or when it happens
+   *
+   * @author Variazioni
+   * @param replier
+   * @param id
+   * @param lockName
+   * @param waitMillis
+   */
+  void await(Replier replier, int id, String lockName, long waitMillis) {
+    long now = System.nanoTime();
+    Entry entry = entry(lockName, now);
+    if (entry.holders.isEmpty() || waitMillis <= 0) {
+      replier.reply(id, entry.holders.isEmpty() ? LockProtocol.STATUS_TRUE
+          : LockProtocol.STATUS_FALSE, 0);
+    } else {
+      entry.watchers.add(new Waiter(replier, id, lockName, null, LockProtocol.MODE_SHARED, 0, 0,
+          now + TimeUnit.MILLISECONDS.toNanos(waitMillis)));
+    }
+    settle(lockName, entry);
+  }
+
+  /**
+   * Handle the timers that are due
+   *
+   * @author Variazioni
+   * @return long Nanoseconds until the next timer, at most one second
+   */
+  long tick() {
+    long now = System.nanoTime();
+    Timer timer;
+    while ((timer = timers.peek()) != null && timer.at - now <= 0) {
+      timers.poll();
+      Entry entry = entries.get(timer.lockName);
+      if (entry == null || entry.timerAt != timer.at) {
+        // Stale, the entry was rescheduled or removed meanwhile
+        continue;
+      }
+      entry.timerAt = Long.MAX_VALUE;
+      entry.purge(now);
+      expire(entry, now);
+      advance(entry, now);
+      settle(timer.lockName, entry);
+    }
+    return timer == null ? TimeUnit.SECONDS.toNanos(1)
+        : Math.min(Math.max(timer.at - now, 0), TimeUnit.SECONDS.toNanos(1));
+  }
+
+  /**
+   * Grant the head waiters that fit, in order, and tell the watchers when the name is free
+   */
+  private void advance(Entry entry, long now) {
+    Waiter head;
+    while ((head = entry.waiters.peek()) != null) {
+      if (!head.replier.isOpen()) {
+        entry.waiters.poll();
+        continue;
+      }
+      if (!grant(entry, head, now)) {
+        break;
+      }
+      entry.waiters.poll();
+    }
+    if (entry.holders.isEmpty()) {
+      for (Waiter watcher : entry.watchers) {
+        watcher.replier.reply(watcher.id, LockProtocol.STATUS_TRUE, 0);
+      }
+      entry.watchers.clear();
+    }
+  }
+
+  /**
+   * Reply false to the waiters whose deadline has passed
+   */
+  private void expire(Entry entry, long now) {
+    for (ArrayDeque<Waiter> queue : entry.queues()) {
+      for (Iterator<Waiter> it = queue.iterator(); it.hasNext();) {
+        Waiter waiter = it.next();
+        if (waiter.deadline - now <= 0 || !waiter.replier.isOpen()) {
+          it.remove();
+          waiter.replier.reply(waiter.id, LockProtocol.STATUS_FALSE, 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Take the lock for a waiter if it fits and reply with the fencing token
+   */
+  private boolean grant(Entry entry, Waiter waiter, long now) {
+    if (!entry.fits(waiter) || entry.holders.containsKey(waiter.lockKey)) {
+      return false;
+    }
+    Holder holder = new Holder(waiter.replier, waiter.lockName, waiter.lockKey, waiter.mode,
+        now + TimeUnit.SECONDS.toNanos(waiter.timeout), nextToken());
+    entry.holders.put(waiter.lockKey, holder);
+    holds.computeIfAbsent(waiter.replier, k -> new HashSet<Holder>()).add(holder);
+    waiter.replier.reply(waiter.id, LockProtocol.STATUS_TRUE, holder.fencingToken);
+    return true;
+  }
+
+  /**
+   * Next fencing token, never below the wall clock so tokens keep growing across restarts
+   */
+  private long nextToken() {
+    tokens = Math.max(tokens + 1, System.currentTimeMillis() << TOKEN_CLOCK_SHIFT);
+    return tokens;
+  }
+
+  /**
+   * Forget a hold of its connection
+   */
+  private void dropHold(Holder holder) {
+    HashSet<Holder> held = holds.get(holder.owner);
+    if (held != null && held.remove(holder) && held.isEmpty()) {
+      holds.remove(holder.owner);
+    }
+  }
+
+  /**
+   * Entry of a lock name with its expired holders dropped
+   */
+  private Entry entry(String lockName, long now) {
+    Entry entry = entries.get(lockName);
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(lockName, entry);
+    } else if (entry.purge(now)) {
+      advance(entry, now);
+    }
+    return entry;
+  }
+
+  /**
+   * Drop an entry nobody uses any more, or look at it again at its next expiry or wait deadline
+   */
+  private void settle(String lockName, Entry entry) {
+    if (entry.waiters.isEmpty() && entry.watchers.isEmpty()) {
+      if (entry.holders.isEmpty()) {
+        entries.remove(lockName);
+      }
+      return;
+    }
+    long at = Long.MAX_VALUE;
+    for (Holder holder : entry.holders.values()) {
+      at = Math.min(at, holder.expiresAt);
+    }
+    for (ArrayDeque<Waiter> queue : entry.queues()) {
+      for (Waiter waiter : queue) {
+        at = Math.min(at, waiter.deadline);
+      }
+    }
+    if (at < entry.timerAt) {
+      entry.timerAt = at;
+      timers.add(new Timer(at, lockName));
+    }
+  }
+
+  /**
+   * State of one lock name
+   */
+  private class Entry {
+    private final HashMap<String, Holder> holders = new HashMap<String, Holder>(4);
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>(4);
+    private final ArrayDeque<Waiter> watchers = new ArrayDeque<Waiter>(1);
+    private long timerAt = Long.MAX_VALUE;
+
+    /** Drop expired holders, returns whether any was dropped */
+    private boolean purge(long now) {
+      boolean purged = false;
+      for (Iterator<Holder> it = holders.values().iterator(); it.hasNext();) {
+        Holder holder = it.next();
+        if (holder.expiresAt - now < 0) {
+          it.remove();
+          dropHold(holder);
+          purged = true;
+        }
+      }
+      return purged;
+    }
+
+    /**
+     * Whether a waiter can hold the lock next to the current holders. Like the database, an
+     * exclusive holder also takes one place of the shared limit, and a writer excludes everyone.
+     */
+    private boolean fits(Waiter waiter) {
+      if (waiter.mode == LockProtocol.MODE_WRITE) {
+        return holders.isEmpty();
+      }
+      int exclusive = 0;
+      for (Holder holder : holders.values()) {
+        if (holder.mode == LockProtocol.MODE_WRITE) {
+          return false;
+        }
+        if (holder.mode == LockProtocol.MODE_EXCLUSIVE) {
+          exclusive++;
+        }
+      }
+      switch (waiter.mode) {
+        case LockProtocol.MODE_EXCLUSIVE:
+          return exclusive == 0;
+        case LockProtocol.MODE_SHARED:
+          return holders.size() < waiter.limit;
+        default:
+          return true;
+      }
+    }
+
+    private List<ArrayDeque<Waiter>> queues() {
+      return Arrays.asList(waiters, watchers);
+    }
+  }
+
+  /**
+   * One holder, equal only to itself
+   */
+  private static class Holder {
+    private final Replier owner;
+    private final String lockName;
+    private final String lockKey;
+    private final byte mode;
+    private long expiresAt;
+    private final long fencingToken;
+
+    private Holder(Replier owner, String lockName, String lockKey, byte mode, long expiresAt,
+        long fencingToken) {
+      this.owner = owner;
+      this.lockName = lockName;
+      this.lockKey = lockKey;
+      this.mode = mode;
+      this.expiresAt = expiresAt;
+      this.fencingToken = fencingToken;
+    }
+  }
+
+  /**
+   * A queued request
+   */
+  private static class Waiter {
+    private final Replier replier;
+    private final int id;
+    private final String lockName;
+    private final String lockKey;
+    private final byte mode;
+    private final int limit;
+    private final int timeout;
+    private final long deadline;
+
+    private Waiter(Replier replier, int id, String lockName, String lockKey, byte mode, int limit,
+        int timeout, long deadline) {
+      this.replier = replier;
+      this.id = id;
+      this.lockName = lockName;
+      this.lockKey = lockKey;
+      this.mode = mode;
+      this.limit = limit;
+      this.timeout = timeout;
+      this.deadline = deadline;
+    }
+  }
+
+  /**
+   * A moment to look at a lock name again
+   */
+  private static class Timer implements Comparable<Timer> {
+    private final long at;
+    private final String lockName;
+
+    private Timer(long at, String lockName) {
+      this.at = at;
+      this.lockName = lockName;
+    }
+
+    @Override
+    public int compareTo(Timer other) {
+      return Long.signum(at - other.at);
+    }
+  }
+}
@@ -0,0 +1,340 @@
+package com.variazioni.concurrent.lock.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.variazioni.concurrent.lock.CompositeLockHandle;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.LockHandle;
+import com.variazioni.concurrent.lock.util.AppConst;
+
+/**
+ * Hold counts of the current thread. Only the outermost acquire and release of a lock go to the
+ * lock implementation, nested ones just change the count. The fencing token of every hold is kept
+ * too, so code running under a lock can read it. A handle may leave a hold from another thread,
+ * the owner thread drops the hold the next time it looks at it. The holds of a thread stay
+ * allocated while it holds nothing, so an uncontended outermost acquire only allocates its Hold.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public final class LockHolds {
+
+  /** Exclusive lock mode */
+  public static final char EXCLUSIVE = 'X';
+  /** Shared lock mode */
+  public static final char SHARED = 'S';
+  /** Read lock mode */
+  public static final char READ = 'R';
+  /** Write lock mode */
+  public static final char WRITE = 'W';
+
+  /** Lookup order of the modes of one lock name, strongest first */
+  private static final char[] MODES = {EXCLUSIVE, WRITE, SHARED, READ};
+
+  private static final ThreadLocal<Holds> HOLDS = ThreadLocal.withInitial(Holds::new);
+
+  private LockHolds() {}
+
+  /**
+   * Re-enter a lock the current thread already holds
+   *
+   * @author Variazioni
+   * @param mode
+   * @param lockName
+   * @return boolean false if the thread does not hold the lock yet
+   */
+  public static boolean reenter(char mode, String lockName) {
+    Hold hold = get(mode, lockName);
+    if (hold == null || !hold.enter()) {
+      return false;
+    }
+    HOLDS.get().entered.push(hold);
+    return true;
+  }
+
+  /**
+   * Record the outermost acquisition
+   *
+   * @author Variazioni
+   * @param mode
+   * @param lockName
+   * @param lockKey
+   */
+  public static void acquired(char mode, String lockName, String lockKey) {
+    acquired(mode, lockName, lockKey, AppConst.NO_FENCING_TOKEN);
+  }
+
+  /**
+   * Record the outermost acquisition with its fencing token
+   *
+   * @author Variazioni
+   * @param mode
+   * @param lockName
+   * @param lockKey
+   * @param fencingToken
+   */
+  public static void acquired(char mode, String lockName, String lockKey, long fencingToken) {
+    Holds holds = HOLDS.get();
+    Hold hold = new Hold(lockKey, fencingToken);
+    holds.byName(mode).put(lockName, hold);
+    holds.entered.push(hold);
+  }
+
+  /**
+   * Release one hold
+   *
+   * @author Variazioni
+   * @param mode
+   * @param lockName
+   * @return String The lockKey if this was the outermost release, otherwise null
+   */
+  public static String release(char mode, String lockName) {
+    Hold hold = get(mode, lockName);
+    if (hold == null) {
+      return null;
+    }
+    Holds holds = HOLDS.get();
+    holds.exit(hold);
+    if (hold.count.decrementAndGet() > 0) {
+      return null;
+    }
+    holds.drop(mode, lockName, hold);
+    return hold.lockKey;
+  }
+
+  /**
+   * Release one hold of a lock name, strongest mode first
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return int Remaining hold count, -1 if the thread holds no such lock
+   */
+  public static int release(String lockName) {
+    for (char mode : MODES) {
+      Hold hold = get(mode, lockName);
+      if (hold != null) {
+        // The last hold may have been left meanwhile by a handle, which also unlocked
+        return release(mode, lockName) == null ? Math.max(hold.count.get(), 1) : 0;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Handle of the hold the current thread just acquired or re-entered. Released on the owner
+   * thread it is the same as release(mode, lockName), on another thread it leaves the hold
+   * directly and unlocks if that was the last one.
+   *
+   * @author Variazioni
+   * @param lock
+   * @param mode
+   * @param lockName
+   * @return LockHandle
+   */
+  public static LockHandle handle(Lock lock, char mode, String lockName) {
+    Hold hold = get(mode, lockName);
+    Thread owner = Thread.currentThread();
+    boolean exclusive = mode == EXCLUSIVE || mode == WRITE;
+    return new LockHandle(lock, lockName, hold.lockKey, exclusive, () -> {
+      int remaining = leave(owner, mode, lockName, hold);
+      return remaining > 0 || (remaining == 0 && lock.unlock(lockName, hold.lockKey));
+    });
+  }
+
+  /**
+   * Handle of the exclusive holds the current thread has on several lock names, names it does not
+   * hold are left out. Releasing it leaves every hold once like handle does, and unlocks the names
+   * whose last hold it left together, one unlockAll per lockKey.
+   *
+   * @author Variazioni
+   * @param lock
+   * @param lockNames
+   * @return CompositeLockHandle
+   */
+  public static CompositeLockHandle handleAll(Lock lock, Collection<String> lockNames) {
+    Map<String, String> lockKeys = new LinkedHashMap<String, String>();
+    List<Hold> holds = new ArrayList<Hold>(lockNames.size());
+    for (String lockName : lockNames) {
+      Hold hold = get(EXCLUSIVE, lockName);
+      if (hold != null) {
+        lockKeys.put(lockName, hold.lockKey);
+        holds.add(hold);
+      }
+    }
+    Thread owner = Thread.currentThread();
+    List<String> names = new ArrayList<String>(lockKeys.keySet());
+    return new CompositeLockHandle(lock, lockKeys, () -> {
+      // Last holds left, grouped by the key they were acquired with
+      Map<String, List<String>> released = new HashMap<String, List<String>>(4);
+      boolean result = true;
+      for (int i = 0; i < names.size(); i++) {
+        Hold hold = holds.get(i);
+        int remaining = leave(owner, EXCLUSIVE, names.get(i), hold);
+        if (remaining == 0) {
+          released.computeIfAbsent(hold.lockKey, k -> new ArrayList<String>()).add(names.get(i));
+        } else {
+          result &= remaining > 0;
+        }
+      }
+      for (Map.Entry<String, List<String>> entry : released.entrySet()) {
+        result &= lock.unlockAll(entry.getValue(), entry.getKey());
+      }
+      return result;
+    });
+  }
+
+  /**
+   * LockKey held by the current thread, strongest mode first
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return String null if the thread holds no such lock
+   */
+  public static String lockKey(String lockName) {
+    Hold hold = find(lockName);
+    return hold == null ? null : hold.lockKey;
+  }
+
+  /**
+   * Fencing token of a lock held by the current thread, strongest mode first
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return long AppConst.NO_FENCING_TOKEN if the thread holds no such lock
+   */
+  public static long fencingToken(String lockName) {
+    Hold hold = find(lockName);
+    return hold == null ? AppConst.NO_FENCING_TOKEN : hold.fencingToken;
+  }
+
+  /**
+   * Fencing token of the lock the current thread entered last, for example the lock of the
+   * annotated method being executed
+   *
+   * @author Variazioni
+   * @return long AppConst.NO_FENCING_TOKEN if the thread holds no lock
+   */
+  public static long currentFencingToken() {
+    for (Hold hold : HOLDS.get().entered) {
+      if (hold.count.get() > 0) {
+        return hold.fencingToken;
+      }
+    }
+    return AppConst.NO_FENCING_TOKEN;
+  }
+
+  /**
+   * Leave one hold through a handle. On the owner thread it is release(mode, lockName).
+   *
+   * @author Variazioni
+   * @param owner
+   * @param mode
+   * @param lockName
+   * @param hold
+   * @return int Remaining hold count, 0 if the lock is to be unlocked, -1 if the hold was left
+   */
+  private static int leave(Thread owner, char mode, String lockName, Hold hold) {
+    if (Thread.currentThread() == owner) {
+      if (get(mode, lockName) != hold) {
+        return -1;
+      }
+      return release(mode, lockName) == null ? Math.max(hold.count.get(), 1) : 0;
+    }
+    return Math.max(hold.count.decrementAndGet(), -1);
+  }
+
+  private static Hold find(String lockName) {
+    for (char mode : MODES) {
+      Hold hold = get(mode, lockName);
+      if (hold != null) {
+        return hold;
+      }
+    }
+    return null;
+  }
+
+  private static Hold get(char mode, String lockName) {
+    Holds holds = HOLDS.get();
+    Hold hold = holds.byName(mode).get(lockName);
+    if (hold != null && hold.count.get() <= 0) {
+      // Left by a handle on another thread
+      holds.drop(mode, lockName, hold);
+      return null;
+    }
+    return hold;
+  }
+
+  /**
+   * Holds of one thread, one map per mode so no key has to be built
+   */
+  private static class Holds {
+    private final HashMap<String, Hold> exclusive = new HashMap<String, Hold>(4);
+    private final HashMap<String, Hold> shared = new HashMap<String, Hold>(4);
+    private final HashMap<String, Hold> read = new HashMap<String, Hold>(4);
+    private final HashMap<String, Hold> write = new HashMap<String, Hold>(4);
+    private final ArrayDeque<Hold> entered = new ArrayDeque<Hold>(4);
+
+    private HashMap<String, Hold> byName(char mode) {
+      switch (mode) {
+        case EXCLUSIVE:
+          return exclusive;
+        case SHARED:
+          return shared;
+        case READ:
+          return read;
+        case WRITE:
+          return write;
+        default:
+          throw new IllegalArgumentException("Unknown lock mode " + mode);
+      }
+    }
+
+    /** Leave the latest entry of a hold, releases are not always in order */
+    private void exit(Hold hold) {
+      // Hold has identity equality, entries are pushed so the first one is the latest
+      entered.removeFirstOccurrence(hold);
+    }
+
+    /** Forget a hold that was fully released */
+    private void drop(char mode, String lockName, Hold hold) {
+      byName(mode).remove(lockName);
+      while (entered.removeFirstOccurrence(hold)) {
+        // Entries a handle on another thread left behind
+      }
+    }
+  }
+
+  /**
+   * Hold of one lock
+   */
+  private static class Hold {
+    private final String lockKey;
+    private final long fencingToken;
+    /** Also left by handles on other threads */
+    private final AtomicInteger count = new AtomicInteger(1);
+
+    private Hold(String lockKey, long fencingToken) {
+      this.lockKey = lockKey;
+      this.fencingToken = fencingToken;
+    }
+
+    /** Enter once more, unless the last hold was left meanwhile */
+    private boolean enter() {
+      for (;;) {
+        int current = count.get();
+        if (current <= 0) {
+          return false;
+        }
+        if (count.compareAndSet(current, current + 1)) {
+          return true;
+        }
+      }
+    }
+  }
+}
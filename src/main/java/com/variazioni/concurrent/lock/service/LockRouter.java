@@ -0,0 +1,419 @@
+package com.variazioni.concurrent.lock.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import javax.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.LockBackendResolver;
+import com.variazioni.concurrent.lock.metrics.InstrumentedLock;
+import com.variazioni.concurrent.lock.metrics.LockActivity;
+import com.variazioni.concurrent.lock.metrics.LockMetrics;
+import com.variazioni.concurrent.lock.util.AppConst;
+import com.variazioni.concurrent.lock.wait.LockWaiter;
+
+/**
+ * Routes every lock name to one backend. Every Lock bean is a backend under its bean name, the
+ * backend of a name is chosen by the LockBackendResolver beans, then by the configured routes,
+ * then by the default backend. A lock name always goes to the same backend, so holders of
+ * different backends never meet on one name.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+@Component
+public class LockRouter implements Lock {
+
+  /** Database backend */
+  public static final String DATABASE = "lockByDatabase";
+  /** Database backend behind the local tier */
+  public static final String LOCAL_TIER = "lockByLocalTier";
+  /** In-memory backend */
+  public static final String MEMORY = "lockByMemory";
+  /** Lock server backend */
+  public static final String SERVER = "lockByServer";
+  /** MySQL named lock backend */
+  public static final String NAMED_LOCK = "lockByNamedLock";
+
+  /** Lock beans by bean name, without this router */
+  @Autowired
+  private Map<String, Lock> backends;
+
+  @Autowired(required = false)
+  private LockMetrics metrics = LockMetrics.NOOP;
+
+  @Autowired
+  private LockActivity activity;
+
+  /** Measure the backends and track what this node holds and waits on */
+  @Value("${concurrent.lock.metrics.enabled:true}")
+  private boolean metricsEnabled;
+
+  @Autowired(required = false)
+  private List<LockBackendResolver> resolvers = Collections.emptyList();
+
+  /** Default backend, empty for the database or, when it is enabled, the local tier */
+  @Value("${concurrent.lock.backend.default:}")
+  private String defaultBackend;
+
+  /** Routes like "order.*=lockByMemory|stock=lockByDatabase", a trailing * matches a prefix */
+  @Value("${concurrent.lock.backend.routes:}")
+  private String routes;
+
+  /** Queue the threads of this node locally, only the head goes to the database */
+  @Value("${concurrent.lock.local-tier.enabled:false}")
+  private boolean localTierEnabled;
+
+  private final List<String[]> routeTable = new ArrayList<String[]>();
+
+  private Lock defaultLock;
+
+  /**
+   * Parse the routes and check that every backend exists
+   *
+   * @author Variazioni
+   */
+  @PostConstruct
+  public void init() {
+    if (metricsEnabled) {
+      Map<String, Lock> instrumented = new HashMap<String, Lock>(backends.size() * 2);
+      for (Map.Entry<String, Lock> backend : backends.entrySet()) {
+        instrumented.put(backend.getKey(),
+            new InstrumentedLock(backend.getKey(), backend.getValue(), metrics, activity));
+      }
+      backends = instrumented;
+    }
+    if (defaultBackend == null || defaultBackend.trim().isEmpty()) {
+      defaultBackend = localTierEnabled ? LOCAL_TIER : DATABASE;
+      if (!backends.containsKey(defaultBackend)) {
+        // Never fall back to JVM-local locks, other nodes would not see them
+        throw new IllegalStateException("No lock backend named " + defaultBackend
+            + "! Configure one DataSource, or set concurrent.lock.backend.default.");
+      }
+    }
+    defaultBackend = defaultBackend.trim();
+    defaultLock = backend(defaultBackend);
+
+    for (String route : routes.split(AppConst.PP_SPLIT)) {
+      if (route.trim().isEmpty()) {
+        continue;
+      }
+      String[] pair = route.split("=", 2);
+      if (pair.length != 2) {
+        throw new IllegalStateException("Invalid lock backend route: " + route);
+      }
+      backend(pair[1].trim());
+      routeTable.add(new String[] {pair[0].trim(), pair[1].trim()});
+    }
+  }
+
+  /**
+   * Backend by bean name
+   *
+   * @author Variazioni
+   * @param backendName
+   * @return Lock
+   */
+  public Lock backend(String backendName) {
+    Lock lock = backends.get(backendName);
+    if (lock == null) {
+      throw new IllegalStateException("No lock backend named " + backendName + "!");
+    }
+    return lock;
+  }
+
+  /**
+   * Backend of a lock name, an explicit backend name wins over the routing
+   *
+   * @author Variazioni
+   * @param backendName Empty to route by lock name
+   * @param lockName
+   * @return Lock
+   */
+  public Lock route(String backendName, String lockName) {
+    return backendName == null || backendName.isEmpty() ? route(lockName) : backend(backendName);
+  }
+
+  /**
+   * Backend of a lock name
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return Lock
+   */
+  public Lock route(String lockName) {
+    String backendName = backendName(lockName);
+    return backendName == null ? defaultLock : backend(backendName);
+  }
+
+  /**
+   * Locks statistics
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return int
+   */
+  @Override
+  public int locksCount(String lockName) {
+    return route(lockName).locksCount(lockName);
+  }
+
+  /**
+   * Shared lock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int limit, int timeout,
+      Duration waitTimeout) {
+    return route(lockName).lock(lockName, lockKey, limit, timeout, waitTimeout);
+  }
+
+  /**
+   * Exclusive lock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param lockinTime
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lock(String lockName, String lockKey, int lockinTime, Duration waitTimeout) {
+    return route(lockName).lock(lockName, lockKey, lockinTime, waitTimeout);
+  }
+
+  /**
+   * Shared lock without blocking the caller
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param limit
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int limit,
+      int timeout, Duration waitTimeout) {
+    return route(lockName).lockAsync(lockName, lockKey, limit, timeout, waitTimeout);
+  }
+
+  /**
+   * Exclusive lock without blocking the caller
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> lockAsync(String lockName, String lockKey, int timeout,
+      Duration waitTimeout) {
+    return route(lockName).lockAsync(lockName, lockKey, timeout, waitTimeout);
+  }
+
+  /**
+   * Read lock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean readLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return route(lockName).readLock(lockName, lockKey, timeout, waitTimeout);
+  }
+
+  /**
+   * Write lock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean writeLock(String lockName, String lockKey, int timeout, Duration waitTimeout) {
+    return route(lockName).writeLock(lockName, lockKey, timeout, waitTimeout);
+  }
+
+  /**
+   * Unlock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return boolean
+   */
+  @Override
+  public boolean unlock(String lockName, String lockKey) {
+    return route(lockName).unlock(lockName, lockKey);
+  }
+
+  /**
+   * Waiting to unlock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean waitLock(String lockName, Duration waitTimeout) {
+    return route(lockName).waitLock(lockName, waitTimeout);
+  }
+
+  /**
+   * Asynchronous waiting to unlock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  @Override
+  public CompletableFuture<Boolean> waitLockAsync(String lockName, Duration waitTimeout) {
+    return route(lockName).waitLockAsync(lockName, waitTimeout);
+  }
+
+  /**
+   * Lock timeout extended
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @param timeout
+   * @return boolean
+   */
+  @Override
+  public boolean extendLock(String lockName, String lockKey, int timeout) {
+    return route(lockName).extendLock(lockName, lockKey, timeout);
+  }
+
+  /**
+   * Fencing token of a held lock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockKey
+   * @return long
+   */
+  @Override
+  public long getFencingToken(String lockName, String lockKey) {
+    return route(lockName).getFencingToken(lockName, lockKey);
+  }
+
+  /**
+   * Exclusive lock on all names, all or nothing. The names are grouped by backend and the groups
+   * are locked in backend name order, so overlapping sets cannot deadlock across backends either.
+   *
+   * @author Variazioni
+   * @param lockNames
+   * @param lockKey
+   * @param timeout
+   * @param waitTimeout
+   * @return boolean
+   */
+  @Override
+  public boolean lockAll(Collection<String> lockNames, String lockKey, int timeout,
+      Duration waitTimeout) {
+    long deadline = System.nanoTime() + LockWaiter.toNanos(waitTimeout);
+    List<Map.Entry<String, List<String>>> acquired =
+        new ArrayList<Map.Entry<String, List<String>>>(2);
+    for (Map.Entry<String, List<String>> group : group(lockNames).entrySet()) {
+      Duration remaining = Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+      if (!backend(group.getKey()).lockAll(group.getValue(), lockKey, timeout, remaining)) {
+        for (Map.Entry<String, List<String>> done : acquired) {
+          backend(done.getKey()).unlockAll(done.getValue(), lockKey);
+        }
+        return false;
+      }
+      acquired.add(group);
+    }
+    return true;
+  }
+
+  /**
+   * Unlock all names, one call per backend
+   *
+   * @author Variazioni
+   * @param lockNames
+   * @param lockKey
+   * @return boolean
+   */
+  @Override
+  public boolean unlockAll(Collection<String> lockNames, String lockKey) {
+    boolean result = true;
+    for (Map.Entry<String, List<String>> group : group(lockNames).entrySet()) {
+      result &= backend(group.getKey()).unlockAll(group.getValue(), lockKey);
+    }
+    return result;
+  }
+
+  /**
+   * Lock names by backend name, both sorted
+   *
+   * @author Variazioni
+   * @param lockNames
+   * @return Map
+   */
+  private Map<String, List<String>> group(Collection<String> lockNames) {
+    Map<String, List<String>> groups = new TreeMap<String, List<String>>();
+    for (String lockName : new TreeSet<String>(lockNames)) {
+      String backendName = backendName(lockName);
+      groups.computeIfAbsent(backendName == null ? defaultBackend : backendName,
+          k -> new ArrayList<String>()).add(lockName);
+    }
+    return groups;
+  }
+
+  /**
+   * Backend name of a lock name from the resolvers and the routes
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return String null for the default backend
+   */
+  private String backendName(String lockName) {
+    for (LockBackendResolver resolver : resolvers) {
+      String backendName = resolver.resolve(lockName);
+      if (backendName != null) {
+        return backendName;
+      }
+    }
+    for (String[] route : routeTable) {
+      String pattern = route[0];
+      if (pattern.endsWith("*") ? lockName.startsWith(pattern.substring(0, pattern.length() - 1))
+          : lockName.equals(pattern)) {
+        return route[1];
+      }
+    }
+    return null;
+  }
+}
@@ -1,16 +1,24 @@
 package com.variazioni.concurrent.lock.service;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import javax.annotation.Resource;
 import org.springframework.stereotype.Service;
+import com.variazioni.concurrent.lock.CompositeLockHandle;
 import com.variazioni.concurrent.lock.Lock;
+import com.variazioni.concurrent.lock.LockHandle;
 import com.variazioni.concurrent.lock.exception.LockException;
+import com.variazioni.concurrent.lock.util.AppConst;
+import com.variazioni.concurrent.lock.util.LockIds;
 
 /**
- * Lock service class
+ * Lock service class. Every acquire returns a handle carrying its lockKey, release or extend it
+ * from any thread; the current thread may also release by name.
  * 
  * @author Variazioni
  * @date 2021/07/18
@@ -18,13 +26,10 @@ import com.variazioni.concurrent.lock.exception.LockException;
 @Service
 public class LockService {
 
-  @Resource(name = "lockByDatabase")
+  /** Routes every lock name to its backend */
+  @Resource(name = "lockRouter")
   private Lock lock;
 
-  // For saving locked thread key
-  private ConcurrentHashMap<Long, HashMap<String, String>> threadSaved =
-      new ConcurrentHashMap<Long, HashMap<String, String>>(20);
-
   /**
    * Locks Count
    *
@@ -53,14 +58,41 @@ public class LockService {
    *        wait for other threads to complete and unlock before locking.
    * @param wait true or null:If the lock is not successful after waiting for 10 minutes, an
    *        exception will be thrown;false:If one time lock fails, an exception will be thrown
+   * @return LockHandle
    */
-  public void lock(String lockName, int lockinTime, int limit, Boolean wait) throws LockException {
+  public LockHandle lock(String lockName, int lockinTime, int limit, Boolean wait)
+      throws LockException {
     if (wait == null) {
       wait = true;
     }
-    if (!lock.lock(lockName, createLockKey(lockName), limit, lockinTime, wait)) {
-      throw new LockException("Locking failed! Please check the database configuration!");
+    return lock(lockName, lockinTime, limit,
+        wait ? AppConst.DEFAULT_WAIT_TIMEOUT : Duration.ZERO);
+  }
+
+  /**
+   * Shared lock with a wait deadline
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockinTime
+   * @param limit
+   * @param waitTimeout Maximum waiting time, Duration.ZERO tries once. If the lock is not
+   *        successful before the deadline, an exception will be thrown
+   * @return LockHandle
+   * @throws LockException
+   */
+  public LockHandle lock(String lockName, int lockinTime, int limit, Duration waitTimeout)
+      throws LockException {
+    // Re-entry, no database round trip
+    if (!LockHolds.reenter(LockHolds.SHARED, lockName)) {
+      String lockKey = generateLockKey();
+      if (!lock.lock(lockName, lockKey, limit, lockinTime, waitTimeout)) {
+        throw new LockException("Locking failed! Waited " + waitTimeout + " without success!");
+      }
+      LockHolds.acquired(LockHolds.SHARED, lockName, lockKey,
+          lock.getFencingToken(lockName, lockKey));
     }
+    return LockHolds.handle(lock, LockHolds.SHARED, lockName);
   }
 
   /**
@@ -71,31 +103,183 @@ public class LockService {
    * @param lockinTime
    * @param wait true or null:If the lock is not successful after waiting for 10 minutes, an
    *        exception will be thrown;false:If one time lock fails, an exception will be thrown
+   * @return LockHandle
    */
-  public void lock(String lockName, int lockinTime, Boolean wait) throws LockException {
+  public LockHandle lock(String lockName, int lockinTime, Boolean wait) throws LockException {
     if (wait == null) {
       wait = true;
     }
-    if (!lock.lock(lockName, createLockKey(lockName), lockinTime, wait)) {
-      throw new LockException("Locking failed! Please check the database configuration!");
+    return lock(lockName, lockinTime, wait ? AppConst.DEFAULT_WAIT_TIMEOUT : Duration.ZERO);
+  }
+
+  /**
+   * Exclusive lock with a wait deadline
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockinTime
+   * @param waitTimeout Maximum waiting time, Duration.ZERO tries once. If the lock is not
+   *        successful before the deadline, an exception will be thrown
+   * @return LockHandle
+   * @throws LockException
+   */
+  public LockHandle lock(String lockName, int lockinTime, Duration waitTimeout)
+      throws LockException {
+    // Re-entry, no database round trip
+    if (!LockHolds.reenter(LockHolds.EXCLUSIVE, lockName)) {
+      String lockKey = generateLockKey();
+      if (!lock.lock(lockName, lockKey, lockinTime, waitTimeout)) {
+        throw new LockException("Locking failed! Waited " + waitTimeout + " without success!");
+      }
+      LockHolds.acquired(LockHolds.EXCLUSIVE, lockName, lockKey,
+          lock.getFencingToken(lockName, lockKey));
+    }
+    return LockHolds.handle(lock, LockHolds.EXCLUSIVE, lockName);
+  }
+
+  /**
+   * Read lock. Readers share the lock, a writer excludes them all. The current thread may read
+   * under a write lock it holds.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockinTime
+   * @param waitTimeout Maximum waiting time, Duration.ZERO tries once. If the lock is not
+   *        successful before the deadline, an exception will be thrown
+   * @return LockHandle
+   * @throws LockException
+   */
+  public LockHandle readLock(String lockName, int lockinTime, Duration waitTimeout)
+      throws LockException {
+    // Re-entry, no database round trip
+    if (LockHolds.reenter(LockHolds.WRITE, lockName)) {
+      return LockHolds.handle(lock, LockHolds.WRITE, lockName);
+    }
+    if (!LockHolds.reenter(LockHolds.READ, lockName)) {
+      String lockKey = generateLockKey();
+      if (!lock.readLock(lockName, lockKey, lockinTime, waitTimeout)) {
+        throw new LockException("Locking failed! Waited " + waitTimeout + " without success!");
+      }
+      LockHolds.acquired(LockHolds.READ, lockName, lockKey,
+          lock.getFencingToken(lockName, lockKey));
+    }
+    return LockHolds.handle(lock, LockHolds.READ, lockName);
+  }
+
+  /**
+   * Write lock. Waits for the readers to leave, new readers wait for the writer.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockinTime
+   * @param waitTimeout Maximum waiting time, Duration.ZERO tries once. If the lock is not
+   *        successful before the deadline, an exception will be thrown
+   * @return LockHandle
+   * @throws LockException
+   */
+  public LockHandle writeLock(String lockName, int lockinTime, Duration waitTimeout)
+      throws LockException {
+    // Re-entry, no database round trip
+    if (!LockHolds.reenter(LockHolds.WRITE, lockName)) {
+      String lockKey = generateLockKey();
+      if (!lock.writeLock(lockName, lockKey, lockinTime, waitTimeout)) {
+        throw new LockException("Locking failed! Waited " + waitTimeout + " without success!");
+      }
+      LockHolds.acquired(LockHolds.WRITE, lockName, lockKey,
+          lock.getFencingToken(lockName, lockKey));
+    }
+    return LockHolds.handle(lock, LockHolds.WRITE, lockName);
+  }
+
+  /**
+   * Shared lock without blocking the calling thread
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockinTime
+   * @param limit
+   * @param waitTimeout Maximum waiting time, Duration.ZERO tries once
+   * @return CompletableFuture Completed with the handle, or exceptionally with a LockException
+   */
+  public CompletableFuture<LockHandle> lockAsync(String lockName, int lockinTime, int limit,
+      Duration waitTimeout) {
+    Lock lock = this.lock;
+    String lockKey = generateLockKey();
+    return toHandle(lock.lockAsync(lockName, lockKey, limit, lockinTime, waitTimeout),
+        new LockHandle(lock, lockName, lockKey, false), waitTimeout);
+  }
+
+  /**
+   * Exclusive lock without blocking the calling thread
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockinTime
+   * @param waitTimeout Maximum waiting time, Duration.ZERO tries once
+   * @return CompletableFuture Completed with the handle, or exceptionally with a LockException
+   */
+  public CompletableFuture<LockHandle> lockAsync(String lockName, int lockinTime,
+      Duration waitTimeout) {
+    Lock lock = this.lock;
+    String lockKey = generateLockKey();
+    return toHandle(lock.lockAsync(lockName, lockKey, lockinTime, waitTimeout),
+        new LockHandle(lock, lockName, lockKey, true), waitTimeout);
+  }
+
+  /**
+   * Shared lock, one attempt without blocking the calling thread
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockinTime
+   * @param limit
+   * @return CompletableFuture Completed with the handle, or exceptionally with a LockException
+   */
+  public CompletableFuture<LockHandle> tryLockAsync(String lockName, int lockinTime, int limit) {
+    return lockAsync(lockName, lockinTime, limit, Duration.ZERO);
+  }
+
+  /**
+   * Exclusive lock, one attempt without blocking the calling thread
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param lockinTime
+   * @return CompletableFuture Completed with the handle, or exceptionally with a LockException
+   */
+  public CompletableFuture<LockHandle> tryLockAsync(String lockName, int lockinTime) {
+    return lockAsync(lockName, lockinTime, Duration.ZERO);
+  }
+
+  /**
+   * Unlock by handle, from any thread
+   *
+   * @author Variazioni
+   * @param handle
+   * @throws LockException
+   */
+  public void unlock(LockHandle handle) throws LockException {
+    if (!handle.release()) {
+      throw new LockException("Unlocking failed! Please check whether the lock has timed out!");
     }
   }
 
   /**
-   * Unlock
+   * Unlock a lock held by the current thread
    * 
    * @author Variazioni
    * @param resourceName
    * @throws LockException
    */
   public void unlock(String resourceName) throws LockException {
-
-    // Get LockKey
-    String lockKey = getLockKey(Thread.currentThread().getId(), resourceName);
-
-    // If lockkey is null, means lock is exclusive lock
+    String lockKey = LockHolds.lockKey(resourceName);
     if (lockKey == null) {
-      lockKey = "SINGLE_LOCK";
+      throw new LockException("Unlocking failed! The current thread does not hold the lock!");
+    }
+
+    // Inner release of a re-entered lock, no database round trip
+    if (LockHolds.release(resourceName) > 0) {
+      return;
     }
 
     // Unlock
@@ -104,6 +288,57 @@ public class LockService {
     }
   }
 
+  /**
+   * Exclusive lock on several resources, all or nothing. Resources already held by the current
+   * thread are re-entered, the others are acquired together in one database round trip. The
+   * handle covers every resource, release it from any thread.
+   *
+   * @author Variazioni
+   * @param lockNames
+   * @param lockinTime
+   * @param waitTimeout Maximum waiting time, Duration.ZERO tries once
+   * @return CompositeLockHandle
+   * @throws LockException
+   */
+  public CompositeLockHandle lockAll(Collection<String> lockNames, int lockinTime,
+      Duration waitTimeout) throws LockException {
+    Set<String> names = new TreeSet<String>(lockNames);
+    List<String> reentered = new ArrayList<String>();
+    List<String> toAcquire = new ArrayList<String>();
+    for (String lockName : names) {
+      if (LockHolds.reenter(LockHolds.EXCLUSIVE, lockName)) {
+        reentered.add(lockName);
+      } else {
+        toAcquire.add(lockName);
+      }
+    }
+
+    String lockKey = generateLockKey();
+    if (!toAcquire.isEmpty() && !lock.lockAll(toAcquire, lockKey, lockinTime, waitTimeout)) {
+      for (String lockName : reentered) {
+        LockHolds.release(LockHolds.EXCLUSIVE, lockName);
+      }
+      throw new LockException("Locking failed! Waited " + waitTimeout + " without success!");
+    }
+    for (String lockName : toAcquire) {
+      LockHolds.acquired(LockHolds.EXCLUSIVE, lockName, lockKey,
+          lock.getFencingToken(lockName, lockKey));
+    }
+    return LockHolds.handleAll(lock, names);
+  }
+
+  /**
+   * Unlock several resources the current thread locked by lockAll, the same as releasing the
+   * handle of its holds
+   *
+   * @author Variazioni
+   * @param lockNames
+   * @throws LockException
+   */
+  public void unlockAll(Collection<String> lockNames) throws LockException {
+    unlock(LockHolds.handleAll(lock, new TreeSet<String>(lockNames)));
+  }
+
   /**
    * Waiting for lock release
    * 
@@ -118,21 +353,81 @@ public class LockService {
   }
 
   /**
-   * Lock timeout extended
+   * Waiting for lock release, at most waitTimeout
    * 
    * @author Variazioni
    * @param resourceName
-   * @param second
+   * @param waitTimeout Maximum waiting time, Duration.ZERO checks once. If the locks are not
+   *        released before the deadline, an exception will be thrown
    * @throws LockException
    */
-  public void extendLock(String resourceName, int second) throws LockException {
+  public void waitLock(String resourceName, Duration waitTimeout) throws LockException {
+    if (!lock.waitLock(resourceName, waitTimeout)) {
+      throw new LockException("Waiting for lock release failed! Waited " + waitTimeout
+          + " without success!");
+    }
+  }
+
+  /**
+   * Waiting for lock release without blocking the calling thread
+   * 
+   * @author Variazioni
+   * @param resourceName
+   * @param waitTimeout Maximum waiting time, Duration.ZERO checks once
+   * @return CompletableFuture Completed when released, exceptionally with a LockException at the
+   *         deadline
+   */
+  public CompletableFuture<Void> waitLockAsync(String resourceName, Duration waitTimeout) {
+    CompletableFuture<Void> result = new CompletableFuture<Void>();
+    lock.waitLockAsync(resourceName, waitTimeout).whenComplete((released, e) -> {
+      if (e != null) {
+        result.completeExceptionally(e);
+      } else if (!Boolean.TRUE.equals(released)) {
+        result.completeExceptionally(new LockException(
+            "Waiting for lock release failed! Waited " + waitTimeout + " without success!"));
+      } else {
+        result.complete(null);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Fencing token of a lock held by the current thread. Tokens increase with every acquisition of
+   * a lock name, pass them to the storage written under the lock so it can reject stale writers.
+   * 
+   * @author Variazioni
+   * @param resourceName
+   * @return long AppConst.NO_FENCING_TOKEN if the thread does not hold the lock
+   */
+  public long getFencingToken(String resourceName) {
+    return LockHolds.fencingToken(resourceName);
+  }
 
-    // Get lockKey
-    String lockKey = getLockKey(Thread.currentThread().getId(), resourceName);
+  /**
+   * Fencing token of the lock the current thread entered last, including locks taken by the
+   * annotations
+   * 
+   * @author Variazioni
+   * @return long AppConst.NO_FENCING_TOKEN if the thread holds no lock
+   */
+  public long currentFencingToken() {
+    return LockHolds.currentFencingToken();
+  }
 
-    // If lockkey is null, means lock is exclusive lock
+  /**
+   * Lock timeout extended, for a lock held by the current thread
+   * 
+   * @author Variazioni
+   * @param resourceName
+   * @param second
+   * @throws LockException
+   */
+  public void extendLock(String resourceName, int second) throws LockException {
+    String lockKey = LockHolds.lockKey(resourceName);
     if (lockKey == null) {
-      lockKey = "SINGLE_LOCK";
+      throw new LockException(
+          "Extend lock time failed! The current thread does not hold the lock!");
     }
 
     if (!lock.extendLock(resourceName, lockKey, second)) {
@@ -141,58 +436,52 @@ public class LockService {
   }
 
   /**
-   * Create lockkey
+   * Lock timeout extended by handle, from any thread
    * 
    * @author Variazioni
-   * @param resourceName
-   * @return String
+   * @param handle
+   * @param second
+   * @throws LockException
    */
-  private String createLockKey(String resourceName) {
-    Long threadId = Thread.currentThread().getId();
-    String lockKey = UUID.randomUUID().toString().replace("-", "") + ":" + threadId;
-
-    HashMap<String, String> lockKeyMap = threadSaved.get(threadId);
-    if (lockKeyMap == null || lockKeyMap.size() == 0) {
-      lockKeyMap = new HashMap<String, String>();
+  public void extendLock(LockHandle handle, int second) throws LockException {
+    if (!handle.extend(second)) {
+      throw new LockException("Extend lock time failed! Please check whether it has timed out!");
     }
-    lockKeyMap.put(lockKey, resourceName);
-    threadSaved.put(threadId, lockKeyMap);
-
-    return lockKey;
   }
 
   /**
-   * Get lockkey
+   * Generate lockkey
    * 
    * @author Variazioni
-   * @param threadId
-   * @param resourceName
    * @return String
    */
-  private String getLockKey(Long threadId, String resourceName) {
-    String lockKey = null;
-    /*
-     * Traverse the map to obtain the lockkey and lockname of the current thread. If the current
-     * thread has multiple locks on a resource, the first one will be obtained
-     */
-    HashMap<String, String> lockKeyMap = threadSaved.get(threadId);
-    try {
-      Iterator<String> iter = lockKeyMap.keySet().iterator();
-      while (iter.hasNext()) {
-
-        String key = iter.next();
-        String value = lockKeyMap.get(key);
-
-        if (value.equals(resourceName)) {
-          lockKey = key;
-          lockKeyMap.remove(key);
-          threadSaved.put(threadId, lockKeyMap);
-          break;
-        }
+  private String generateLockKey() {
+    return LockIds.holderKey();
+  }
+
+  /**
+   * Complete a handle future from a lock future. A handle nobody is waiting for any more is
+   * released again.
+   * 
+   * @author Variazioni
+   * @param locked
+   * @param handle
+   * @param waitTimeout
+   * @return CompletableFuture
+   */
+  private CompletableFuture<LockHandle> toHandle(CompletableFuture<Boolean> locked,
+      LockHandle handle, Duration waitTimeout) {
+    CompletableFuture<LockHandle> result = new CompletableFuture<LockHandle>();
+    locked.whenComplete((success, e) -> {
+      if (e != null) {
+        result.completeExceptionally(e);
+      } else if (!Boolean.TRUE.equals(success)) {
+        result.completeExceptionally(
+            new LockException("Locking failed! Waited " + waitTimeout + " without success!"));
+      } else if (!result.complete(handle)) {
+        handle.release();
       }
-    } catch (Exception e) {
-      lockKey = null;
-    }
-    return lockKey;
+    });
+    return result;
   }
 }
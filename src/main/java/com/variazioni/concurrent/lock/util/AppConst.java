@@ -1,5 +1,7 @@
 package com.variazioni.concurrent.lock.util;
 
+import java.time.Duration;
+
 /**
  * const
  * 
@@ -12,4 +14,8 @@ public class AppConst {
   public static final String PP_SPLIT = "\\|";
   /** Separator in programs */
   public static final String APP_SPLIT = ",";
+  /** Default wait timeout of blocking acquisitions */
+  public static final Duration DEFAULT_WAIT_TIMEOUT = Duration.ofMinutes(10);
+  /** Fencing token of a lock without one */
+  public static final long NO_FENCING_TOKEN = -1L;
 }
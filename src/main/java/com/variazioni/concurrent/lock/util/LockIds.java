@@ -0,0 +1,123 @@
+package com.variazioni.concurrent.lock.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compact lock identities. A lock name is stored under its LOCK_ID, the 16 byte MD5 of its UTF-8
+ * bytes, so any name fits the fixed-width key and the database can compute the same id with
+ * UNHEX(MD5(name)). A holder key is the node id, the thread id and a per-thread sequence, so it is
+ * unique without a random UUID and costs one short string. Holder keys are ASCII and fit the 64
+ * character LOCK_HOLDER column as long as the node id property is short.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public final class LockIds {
+
+  /**
+   * Node id, random per process so keys of an earlier run never come back, prefixed with the short
+   * concurrent.lock.node-id system property if set
+   */
+  private static final String NODE_ID = nodePrefix()
+      + Long.toString(ThreadLocalRandom.current().nextLong() >>> 24, 36);
+
+  /** Digest of each thread, with the last id it computed */
+  private static final ThreadLocal<Digest> DIGEST = ThreadLocal.withInitial(Digest::new);
+
+  /** Next holder sequence of each thread */
+  private static final ThreadLocal<long[]> SEQUENCE = ThreadLocal.withInitial(() -> new long[1]);
+
+  private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+  private LockIds() {}
+
+  /**
+   * LOCK_ID of a lock name. One operation asks for the id of its name several times, so each
+   * thread keeps only the last one; any other name costs one MD5 of a few bytes and no shared
+   * state. The returned array is shared and must not be modified.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @return byte[]
+   */
+  public static byte[] of(String lockName) {
+    Digest digest = DIGEST.get();
+    if (!lockName.equals(digest.lockName)) {
+      digest.id = digest.md5.digest(lockName.getBytes(StandardCharsets.UTF_8));
+      digest.lockName = lockName;
+    }
+    return digest.id;
+  }
+
+  /**
+   * New holder key, node:thread:sequence in base 36
+   *
+   * @author Variazioni
+   * @return String
+   */
+  public static String holderKey() {
+    long sequence = SEQUENCE.get()[0]++;
+    long thread = Thread.currentThread().getId();
+    char[] key = new char[NODE_ID.length() + 2 + length(thread) + length(sequence)];
+    NODE_ID.getChars(0, NODE_ID.length(), key, 0);
+    int end = NODE_ID.length();
+    key[end++] = ':';
+    end = append(key, end, thread);
+    key[end++] = ':';
+    append(key, end, sequence);
+    return new String(key);
+  }
+
+  /**
+   * Node id of this process
+   *
+   * @author Variazioni
+   * @return String
+   */
+  public static String nodeId() {
+    return NODE_ID;
+  }
+
+  private static String nodePrefix() {
+    String prefix = System.getProperty("concurrent.lock.node-id");
+    return prefix == null || prefix.isEmpty() ? "" : prefix + ".";
+  }
+
+  private static int length(long value) {
+    int length = 1;
+    while ((value /= 36) != 0) {
+      length++;
+    }
+    return length;
+  }
+
+  private static int append(char[] key, int from, long value) {
+    int end = from + length(value);
+    int i = end;
+    do {
+      key[--i] = DIGITS[(int) (value % 36)];
+      value /= 36;
+    } while (value != 0);
+    return end;
+  }
+
+  /**
+   * MD5 digest of one thread and its last result
+   */
+  private static class Digest {
+    private final MessageDigest md5;
+    private String lockName;
+    private byte[] id;
+
+    private Digest() {
+      try {
+        md5 = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package com.variazioni.concurrent.lock.wait;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponential backoff with jitter. The first attempts only spin, so a lock released right after a
+ * failed attempt is picked up at once; after that the pause doubles up to a cap, and each pause is
+ * randomized in [cap/2, cap] so waiters do not hit the database in lockstep.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class BackoffWaitStrategy implements WaitStrategy {
+
+  private final int spinTries;
+  private final long initialDelay;
+  private final long maxDelay;
+
+  /**
+   * Constructor
+   *
+   * @param spinTries
+   * @param initialDelay
+   * @param maxDelay
+   * @param unit
+   */
+  public BackoffWaitStrategy(int spinTries, long initialDelay, long maxDelay, TimeUnit unit) {
+    if (spinTries < 0 || initialDelay <= 0 || maxDelay < initialDelay) {
+      throw new IllegalArgumentException("Invalid backoff parameters!");
+    }
+    this.spinTries = spinTries;
+    this.initialDelay = unit.toNanos(initialDelay);
+    this.maxDelay = unit.toNanos(maxDelay);
+  }
+
+  @Override
+  public long nextDelay(String lockName, int attempt) {
+    if (attempt < spinTries) {
+      return 0;
+    }
+    int shift = Math.min(attempt - spinTries, 30);
+    long delay = initialDelay << shift;
+    if (delay <= 0 || delay > maxDelay) {
+      delay = maxDelay;
+    }
+    long half = delay >>> 1;
+    return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+  }
+}
@@ -0,0 +1,29 @@
+package com.variazioni.concurrent.lock.wait;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed interval waiting strategy, the behaviour of the old polling loop
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class FixedWaitStrategy implements WaitStrategy {
+
+  private final long interval;
+
+  /**
+   * Constructor
+   *
+   * @param interval
+   * @param unit
+   */
+  public FixedWaitStrategy(long interval, TimeUnit unit) {
+    this.interval = unit.toNanos(interval);
+  }
+
+  @Override
+  public long nextDelay(String lockName, int attempt) {
+    return interval;
+  }
+}
@@ -0,0 +1,135 @@
+package com.variazioni.concurrent.lock.wait;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+/**
+ * Waits for lock names to be released. Backends report the releases of this node, which wake the
+ * local waiters of the name at once, blocked threads as well as the queues of the
+ * LockWaitScheduler. Releases on other nodes and leases that ran out are only seen by the next
+ * check, paced by the wait strategy.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class LockReleaseNotifier {
+
+  private static final LockReleaseNotifier DEFAULT =
+      new LockReleaseNotifier(LockWaitScheduler.getDefault());
+
+  private final LockWaitScheduler scheduler;
+
+  /** Threads waiting for a lock name to be released */
+  private final ConcurrentHashMap<String, Set<Thread>> waiting =
+      new ConcurrentHashMap<String, Set<Thread>>();
+
+  /**
+   * Constructor
+   *
+   * @param scheduler
+   */
+  public LockReleaseNotifier(LockWaitScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Shared notifier
+   *
+   * @author Variazioni
+   * @return LockReleaseNotifier
+   */
+  public static LockReleaseNotifier getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * A lock name was released on this node
+   *
+   * @author Variazioni
+   * @param lockName
+   */
+  public void released(String lockName) {
+    Set<Thread> threads = waiting.get(lockName);
+    if (threads != null) {
+      for (Thread thread : threads) {
+        LockSupport.unpark(thread);
+      }
+    }
+    scheduler.wake(lockName);
+  }
+
+  /**
+   * Wait until no lock of the name is held or the deadline passes. The count is checked again
+   * after every release on this node and otherwise at the pace of the strategy.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @param strategy
+   * @param count Locks held, negative if they cannot be counted
+   * @return boolean false at the deadline or when the locks cannot be counted
+   * @throws InterruptedException
+   */
+  public boolean await(String lockName, Duration waitTimeout, WaitStrategy strategy,
+      IntSupplier count) throws InterruptedException {
+    long deadline = System.nanoTime() + LockWaiter.toNanos(waitTimeout);
+    Thread thread = Thread.currentThread();
+    // Registered before the first check, so a release in between leaves the permit to unpark
+    waiting.compute(lockName, (k, threads) -> {
+      Set<Thread> result = threads == null ? ConcurrentHashMap.newKeySet() : threads;
+      result.add(thread);
+      return result;
+    });
+    try {
+      for (int i = 0;; i++) {
+        int held = count.getAsInt();
+        if (held <= 0) {
+          return held == 0;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        long pause = Math.min(strategy.nextDelay(lockName, i), remaining);
+        LockSupport.parkNanos(this, Math.max(pause, 1));
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    } finally {
+      waiting.computeIfPresent(lockName, (k, threads) -> {
+        threads.remove(thread);
+        return threads.isEmpty() ? null : threads;
+      });
+    }
+  }
+
+  /**
+   * Wait until no lock of the name is held without blocking the caller. The wait is driven by the
+   * scheduler, which checks again after every release on this node.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @param strategy null for the default strategy of the scheduler
+   * @param count Locks held, negative if they cannot be counted
+   * @return CompletableFuture true when released, false at the deadline, exceptionally when the
+   *         locks cannot be counted
+   */
+  public CompletableFuture<Boolean> submit(String lockName, Duration waitTimeout,
+      WaitStrategy strategy, IntSupplier count) {
+    BooleanSupplier released = () -> {
+      int held = count.getAsInt();
+      if (held < 0) {
+        throw new IllegalStateException("Counting the locks of " + lockName + " failed!");
+      }
+      return held == 0;
+    };
+    return scheduler.watch(lockName, released, waitTimeout, strategy);
+  }
+}
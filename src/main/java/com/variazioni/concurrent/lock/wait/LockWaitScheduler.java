@@ -0,0 +1,323 @@
+package com.variazioni.concurrent.lock.wait;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Drives asynchronous waiters on a few shared threads. Waiters of one lock name form a FIFO queue
+ * and only the head is probed, one probe per lock name per retry, so thousands of waiters cost a
+ * handful of threads and no more database traffic than a single waiter. Waiters for a release
+ * queue apart from the waiters for the lock, so neither holds up the other. The head is paced by
+ * its own strategy, and a waiter whose deadline comes before it reaches the head is still tried
+ * once before it is given up. One timer thread only keeps the retry times, the attempts, which may
+ * block on the database, run on a bounded worker pool. The shared scheduler reads its pool size
+ * from the system properties concurrent.lock.wait.worker-threads and
+ * concurrent.lock.wait.worker-queue-size. Futures are completed on the worker threads, heavy
+ * continuations should use the async variants of CompletableFuture.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class LockWaitScheduler {
+
+  private static final LockWaitScheduler DEFAULT = new LockWaitScheduler(
+      Integer.getInteger("concurrent.lock.wait.worker-threads", 8),
+      Integer.getInteger("concurrent.lock.wait.worker-queue-size", 1024),
+      new BackoffWaitStrategy(0, 5, 1000, TimeUnit.MILLISECONDS));
+
+  /** Delay before handing a probe to a full worker pool again, in milliseconds */
+  private static final long REJECTED_RETRY_MILLIS = 10;
+
+  /** Keeps the retry times, never runs an attempt */
+  private final ScheduledExecutorService timer;
+  /** Runs the probes */
+  private final ThreadPoolExecutor workers;
+  private final WaitStrategy defaultStrategy;
+  /** Waiters for the lock */
+  private final ConcurrentHashMap<String, WaitQueue> queues =
+      new ConcurrentHashMap<String, WaitQueue>();
+  /** Waiters for a release */
+  private final ConcurrentHashMap<String, WaitQueue> watches =
+      new ConcurrentHashMap<String, WaitQueue>();
+
+  /**
+   * Constructor
+   *
+   * @param workerThreads Threads running the attempts
+   * @param workerQueueSize Probes waiting for a worker, at most two per lock name
+   * @param defaultStrategy
+   */
+  public LockWaitScheduler(int workerThreads, int workerQueueSize, WaitStrategy defaultStrategy) {
+    this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "lock-wait-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    AtomicInteger count = new AtomicInteger();
+    this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(workerQueueSize), r -> {
+          Thread thread = new Thread(r, "lock-wait-worker-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    this.workers.allowCoreThreadTimeOut(true);
+    this.defaultStrategy = defaultStrategy;
+  }
+
+  /**
+   * Shared scheduler
+   *
+   * @author Variazioni
+   * @return LockWaitScheduler
+   */
+  public static LockWaitScheduler getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Queue a waiter with the default strategy
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param attempt
+   * @param undo Undoes a successful attempt whose future was cancelled meanwhile
+   * @param waitTimeout
+   * @return CompletableFuture true when an attempt succeeded, false at the deadline
+   */
+  public CompletableFuture<Boolean> submit(String lockName, BooleanSupplier attempt, Runnable undo,
+      Duration waitTimeout) {
+    return submit(lockName, attempt, undo, waitTimeout, defaultStrategy);
+  }
+
+  /**
+   * Queue a waiter
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param attempt
+   * @param undo Undoes a successful attempt whose future was cancelled meanwhile
+   * @param waitTimeout
+   * @param strategy Paces the attempts of this waiter once it is the head
+   * @return CompletableFuture true when an attempt succeeded, false at the deadline
+   */
+  public CompletableFuture<Boolean> submit(String lockName, BooleanSupplier attempt, Runnable undo,
+      Duration waitTimeout, WaitStrategy strategy) {
+    return submit(queues, lockName, attempt, undo, waitTimeout, strategy);
+  }
+
+  /**
+   * Queue a waiter for a lock name to be released, apart from the waiters for the lock
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param released Whether the lock name is released now
+   * @param waitTimeout
+   * @param strategy null for the default strategy
+   * @return CompletableFuture true when released, false at the deadline
+   */
+  public CompletableFuture<Boolean> watch(String lockName, BooleanSupplier released,
+      Duration waitTimeout, WaitStrategy strategy) {
+    // Nothing is acquired, so there is nothing to undo
+    return submit(watches, lockName, released, () -> {}, waitTimeout,
+        strategy == null ? defaultStrategy : strategy);
+  }
+
+  /**
+   * Probe the waiters of a lock name now instead of at their next retry, after it was released on
+   * this node
+   *
+   * @author Variazioni
+   * @param lockName
+   */
+  public void wake(String lockName) {
+    WaitQueue queue = queues.get(lockName);
+    if (queue != null) {
+      expedite(queue);
+    }
+    queue = watches.get(lockName);
+    if (queue != null) {
+      expedite(queue);
+    }
+  }
+
+  private CompletableFuture<Boolean> submit(ConcurrentHashMap<String, WaitQueue> map,
+      String lockName, BooleanSupplier attempt, Runnable undo, Duration waitTimeout,
+      WaitStrategy strategy) {
+    Waiter waiter = new Waiter(attempt, undo, strategy,
+        System.nanoTime() + LockWaiter.toNanos(waitTimeout));
+    WaitQueue queue = map.compute(lockName, (k, q) -> {
+      WaitQueue result = q == null ? new WaitQueue(map, k) : q;
+      result.waiters.add(waiter);
+      return result;
+    });
+    if (queue.scheduled.compareAndSet(false, true)) {
+      dispatch(queue);
+    } else if (waiter.deadline - queue.nextAt < 0) {
+      // Due before the next probe, it gets its attempt in time
+      expedite(queue);
+    }
+    return waiter.future;
+  }
+
+  /**
+   * Bring the next probe of a queue forward. Only a retry that has not started yet is, a running
+   * probe sees what changed.
+   *
+   * @author Variazioni
+   * @param queue
+   */
+  private void expedite(WaitQueue queue) {
+    ScheduledFuture<?> next = queue.next;
+    if (next != null && next.cancel(false)) {
+      dispatch(queue);
+    }
+  }
+
+  /**
+   * Hand a probe of the queue to the workers. A full pool gets it again a little later, the queue
+   * stays scheduled meanwhile so it is never probed twice at once.
+   *
+   * @author Variazioni
+   * @param queue
+   */
+  private void dispatch(WaitQueue queue) {
+    try {
+      workers.execute(() -> probe(queue));
+    } catch (RejectedExecutionException e) {
+      queue.nextAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REJECTED_RETRY_MILLIS);
+      queue.next =
+          timer.schedule(() -> dispatch(queue), REJECTED_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Probe the head waiters of a queue until one fails, give up the waiters whose deadline has
+   * passed, then reschedule
+   *
+   * @author Variazioni
+   * @param queue
+   */
+  private void probe(WaitQueue queue) {
+    while (true) {
+      Waiter head = queue.waiters.peek();
+      if (head == null) {
+        queue.scheduled.set(false);
+        if (!queue.waiters.isEmpty() && queue.scheduled.compareAndSet(false, true)) {
+          continue;
+        }
+        queue.map.computeIfPresent(queue.lockName, (k, q) -> q.waiters.isEmpty() ? null : q);
+        return;
+      }
+      if (head.future.isDone() || attempt(head)) {
+        queue.waiters.poll();
+        continue;
+      }
+
+      // Expire the waiters whose deadline has passed, after one attempt each
+      long now = System.nanoTime();
+      long at = now + head.strategy.nextDelay(queue.lockName, head.attempts - 1);
+      for (Iterator<Waiter> it = queue.waiters.iterator(); it.hasNext();) {
+        Waiter waiter = it.next();
+        if (waiter.future.isDone()) {
+          it.remove();
+        } else if (waiter.deadline - now > 0) {
+          at = Math.min(at, waiter.deadline);
+        } else {
+          if (waiter.attempts > 0 || !attempt(waiter)) {
+            waiter.future.complete(false);
+          }
+          it.remove();
+        }
+      }
+      if (queue.waiters.peek() != head) {
+        continue;
+      }
+
+      queue.nextAt = at;
+      queue.next =
+          timer.schedule(() -> dispatch(queue), Math.max(at - now, 1), TimeUnit.NANOSECONDS);
+      // A waiter queued during the probe may not have seen this schedule
+      for (Waiter waiter : queue.waiters) {
+        if (waiter.deadline - at < 0) {
+          expedite(queue);
+          break;
+        }
+      }
+      return;
+    }
+  }
+
+  /**
+   * One attempt of a waiter
+   *
+   * @author Variazioni
+   * @param waiter
+   * @return boolean Whether the waiter is done, acquired or failed with an exception
+   */
+  private boolean attempt(Waiter waiter) {
+    waiter.attempts++;
+    boolean acquired;
+    try {
+      acquired = waiter.attempt.getAsBoolean();
+    } catch (RuntimeException e) {
+      waiter.future.completeExceptionally(e);
+      return true;
+    }
+    if (acquired && !waiter.future.complete(true)) {
+      // Cancelled while acquiring, the caller is gone
+      waiter.undo.run();
+    }
+    return acquired;
+  }
+
+  /**
+   * Waiters of one lock name
+   */
+  private static class WaitQueue {
+    private final ConcurrentHashMap<String, WaitQueue> map;
+    private final String lockName;
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile ScheduledFuture<?> next;
+    /** System.nanoTime() of the next probe */
+    private volatile long nextAt;
+
+    private WaitQueue(ConcurrentHashMap<String, WaitQueue> map, String lockName) {
+      this.map = map;
+      this.lockName = lockName;
+    }
+  }
+
+  /**
+   * Waiter
+   */
+  private static class Waiter {
+    private final BooleanSupplier attempt;
+    private final Runnable undo;
+    private final WaitStrategy strategy;
+    private final long deadline;
+    private final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+    /** Attempts so far, touched by the probe of its queue only */
+    private int attempts;
+
+    private Waiter(BooleanSupplier attempt, Runnable undo, WaitStrategy strategy, long deadline) {
+      this.attempt = attempt;
+      this.undo = undo;
+      this.strategy = strategy;
+      this.deadline = deadline;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.variazioni.concurrent.lock.wait;
+
+import java.time.Duration;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Retry loop bounded by a deadline
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public final class LockWaiter {
+
+  /** Attempts and pauses of the waits of each thread, for the metrics */
+  private static final ThreadLocal<Progress> PROGRESS = ThreadLocal.withInitial(Progress::new);
+
+  private LockWaiter() {}
+
+  /**
+   * Progress of the current thread, counts every wait since it was last cleared
+   *
+   * @author Variazioni
+   * @return Progress
+   */
+  public static Progress progress() {
+    return PROGRESS.get();
+  }
+
+  /**
+   * Run attempts until one succeeds or the deadline passes. A zero wait timeout makes exactly one
+   * attempt.
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param waitTimeout
+   * @param strategy
+   * @param attempt
+   * @return boolean
+   * @throws InterruptedException
+   */
+  public static boolean await(String lockName, Duration waitTimeout, WaitStrategy strategy,
+      BooleanSupplier attempt) throws InterruptedException {
+    long deadline = System.nanoTime() + toNanos(waitTimeout);
+    Progress progress = PROGRESS.get();
+    for (int i = 0;; i++) {
+      progress.attempts++;
+      if (attempt.getAsBoolean()) {
+        return true;
+      }
+      long now = System.nanoTime();
+      long remaining = deadline - now;
+      if (remaining <= 0) {
+        return false;
+      }
+      long pause = Math.min(strategy.nextDelay(lockName, i), remaining);
+      if (pause <= 0) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(pause);
+      }
+      progress.pausedNanos += System.nanoTime() - now;
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  /**
+   * Duration to nanoseconds, saturating on overflow
+   *
+   * @author Variazioni
+   * @param duration
+   * @return long
+   */
+  public static long toNanos(Duration duration) {
+    if (duration == null || duration.isNegative()) {
+      return 0;
+    }
+    try {
+      return duration.toNanos();
+    } catch (ArithmeticException e) {
+      return Long.MAX_VALUE / 2;
+    }
+  }
+
+  /**
+   * Attempts made and time spent pausing between them
+   */
+  public static final class Progress {
+    private int attempts;
+    private long pausedNanos;
+
+    /**
+     * Start counting again
+     *
+     * @author Variazioni
+     */
+    public void clear() {
+      attempts = 0;
+      pausedNanos = 0;
+    }
+
+    /**
+     * Attempts, 0 when the backend does not retry through LockWaiter
+     *
+     * @author Variazioni
+     * @return int
+     */
+    public int getAttempts() {
+      return attempts;
+    }
+
+    /**
+     * Nanoseconds spent pausing between attempts
+     *
+     * @author Variazioni
+     * @return long
+     */
+    public long getPausedNanos() {
+      return pausedNanos;
+    }
+  }
+}
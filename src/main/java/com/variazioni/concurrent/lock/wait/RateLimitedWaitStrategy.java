@@ -0,0 +1,73 @@
+package com.variazioni.concurrent.lock.wait;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the retry rate per lock name. All waiters of one lock name in this JVM share a schedule of
+ * probe slots, so the database sees at most one retry per interval for that name no matter how many
+ * threads are waiting. Schedules whose slots are all in the past are dropped about once a second,
+ * a dropped schedule is the same as a new one.
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public class RateLimitedWaitStrategy implements WaitStrategy {
+
+  private final WaitStrategy delegate;
+  private final long minInterval;
+  private final ConcurrentHashMap<String, AtomicLong> nextSlots =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  /** When the past schedules are dropped next */
+  private final AtomicLong nextPrune = new AtomicLong(System.nanoTime());
+
+  /**
+   * Constructor
+   *
+   * @param delegate
+   * @param maxRetriesPerSecond
+   */
+  public RateLimitedWaitStrategy(WaitStrategy delegate, int maxRetriesPerSecond) {
+    if (maxRetriesPerSecond <= 0) {
+      throw new IllegalArgumentException("Retry rate must be positive!");
+    }
+    this.delegate = delegate;
+    this.minInterval = TimeUnit.SECONDS.toNanos(1) / maxRetriesPerSecond;
+  }
+
+  @Override
+  public long nextDelay(String lockName, int attempt) {
+    long now = System.nanoTime();
+    long earliest = now + delegate.nextDelay(lockName, attempt);
+
+    // Reserve the first free probe slot not earlier than the delegate's choice
+    AtomicLong nextSlot = nextSlots.computeIfAbsent(lockName, k -> new AtomicLong(now));
+    while (true) {
+      long slot = nextSlot.get();
+      long granted = slot - earliest > 0 ? slot : earliest;
+      if (nextSlot.compareAndSet(slot, granted + minInterval)) {
+        prune(now);
+        return Math.max(0, granted - now);
+      }
+    }
+  }
+
+  /**
+   * Drop the schedules with no slot ahead, on one thread at a time and at most once a second
+   */
+  private void prune(long now) {
+    long due = nextPrune.get();
+    if (now - due < 0 || !nextPrune.compareAndSet(due, now + TimeUnit.SECONDS.toNanos(1))) {
+      return;
+    }
+    for (Map.Entry<String, AtomicLong> entry : nextSlots.entrySet()) {
+      if (entry.getValue().get() - now < 0) {
+        // A waiter racing with the removal reserves on a schedule nobody else sees, once
+        nextSlots.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+}
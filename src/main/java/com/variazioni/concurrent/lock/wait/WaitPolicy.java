@@ -0,0 +1,43 @@
+package com.variazioni.concurrent.lock.wait;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selectable waiting policies
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public enum WaitPolicy {
+
+  /** Fixed interval polling */
+  FIXED,
+  /** Short spin, then exponential backoff with jitter */
+  BACKOFF,
+  /** Backoff, with the retry rate capped per lock name */
+  RATE_LIMITED;
+
+  /**
+   * Create strategy
+   *
+   * @author Variazioni
+   * @param spinTries
+   * @param initialMillis
+   * @param maxMillis
+   * @param maxRetriesPerSecond
+   * @return WaitStrategy
+   */
+  public WaitStrategy create(int spinTries, long initialMillis, long maxMillis,
+      int maxRetriesPerSecond) {
+    switch (this) {
+      case FIXED:
+        return new FixedWaitStrategy(maxMillis, TimeUnit.MILLISECONDS);
+      case RATE_LIMITED:
+        return new RateLimitedWaitStrategy(
+            new BackoffWaitStrategy(spinTries, initialMillis, maxMillis, TimeUnit.MILLISECONDS),
+            maxRetriesPerSecond);
+      default:
+        return new BackoffWaitStrategy(spinTries, initialMillis, maxMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+}
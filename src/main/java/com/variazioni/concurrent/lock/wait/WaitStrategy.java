@@ -0,0 +1,20 @@
+package com.variazioni.concurrent.lock.wait;
+
+/**
+ * Waiting strategy between two acquisition attempts
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+public interface WaitStrategy {
+
+  /**
+   * Pause before the next attempt
+   *
+   * @author Variazioni
+   * @param lockName
+   * @param attempt Number of failed attempts so far, starting from 0
+   * @return long Nanoseconds to pause, 0 means spin (yield) and retry
+   */
+  public long nextDelay(String lockName, int attempt);
+}
@@ -0,0 +1,180 @@
+package com.variazioni.concurrent.lock.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import com.variazioni.concurrent.lock.util.AppConst;
+
+/**
+ * In-memory backend, the same semantics as the database without one
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+class LockByMemoryTest {
+
+  private LockByMemory lock;
+
+  /**
+   * Fresh backend per test
+   *
+   * @author Variazioni
+   */
+  @BeforeEach
+  void createLock() {
+    lock = new LockByMemory();
+  }
+
+  /**
+   * An exclusive lock has one holder at a time, and is free again after the unlock
+   *
+   * @author Variazioni
+   */
+  @Test
+  void exclusiveHasOneHolder() {
+    assertTrue(lock.lock("exclusive", "first", 60, Duration.ZERO));
+    assertFalse(lock.lock("exclusive", "second", 60, Duration.ZERO));
+    assertEquals(1, lock.locksCount("exclusive"));
+
+    assertFalse(lock.unlock("exclusive", "second"));
+    assertTrue(lock.unlock("exclusive", "first"));
+    assertEquals(0, lock.locksCount("exclusive"));
+    assertTrue(lock.lock("exclusive", "second", 60, Duration.ZERO));
+    assertTrue(lock.unlock("exclusive", "second"));
+  }
+
+  /**
+   * A shared lock takes holders up to its limit, and an exclusive holder takes one place of it
+   *
+   * @author Variazioni
+   */
+  @Test
+  void sharedStopsAtLimit() {
+    assertTrue(lock.lock("shared", "first", 2, 60, Duration.ZERO));
+    assertTrue(lock.lock("shared", "second", 2, 60, Duration.ZERO));
+    assertFalse(lock.lock("shared", "third", 2, 60, Duration.ZERO));
+    assertEquals(2, lock.locksCount("shared"));
+
+    assertTrue(lock.unlock("shared", "first"));
+    assertTrue(lock.lock("shared", "third", 2, 60, Duration.ZERO));
+    assertTrue(lock.unlock("shared", "second"));
+    assertTrue(lock.unlock("shared", "third"));
+
+    assertTrue(lock.lock("shared", "exclusive", 60, Duration.ZERO));
+    assertTrue(lock.lock("shared", "first", 2, 60, Duration.ZERO));
+    assertFalse(lock.lock("shared", "second", 2, 60, Duration.ZERO));
+  }
+
+  /**
+   * A holder whose timeout has passed no longer counts, and its lock can be taken
+   *
+   * @author Variazioni
+   */
+  @Test
+  void expiredHolderIsDropped() {
+    assertTrue(lock.lock("expiry", "first", 0, Duration.ZERO));
+    sleepPastExpiry();
+
+    assertEquals(0, lock.locksCount("expiry"));
+    assertFalse(lock.unlock("expiry", "first"));
+    assertTrue(lock.lock("expiry", "second", 60, Duration.ZERO));
+    assertTrue(lock.unlock("expiry", "second"));
+  }
+
+  /**
+   * Extending keeps a holder past its first timeout, an expired or unknown holder is not extended
+   *
+   * @author Variazioni
+   */
+  @Test
+  void extendKeepsHolder() {
+    assertTrue(lock.lock("extend", "first", 1, Duration.ZERO));
+    assertTrue(lock.extendLock("extend", "first", 60));
+    assertFalse(lock.extendLock("extend", "second", 60));
+    assertEquals(1, lock.locksCount("extend"));
+    assertTrue(lock.unlock("extend", "first"));
+
+    assertTrue(lock.lock("extend", "first", 0, Duration.ZERO));
+    sleepPastExpiry();
+    assertFalse(lock.extendLock("extend", "first", 60));
+  }
+
+  /**
+   * Every acquisition gets a larger fencing token, which is forgotten with the holder
+   *
+   * @author Variazioni
+   */
+  @Test
+  void fencingTokensGrow() {
+    assertTrue(lock.lock("fencing", "first", 60, Duration.ZERO));
+    long first = lock.getFencingToken("fencing", "first");
+    assertTrue(lock.unlock("fencing", "first"));
+    assertTrue(lock.lock("fencing", "second", 60, Duration.ZERO));
+    assertTrue(lock.getFencingToken("fencing", "second") > first);
+    assertEquals(AppConst.NO_FENCING_TOKEN, lock.getFencingToken("fencing", "first"));
+    assertTrue(lock.unlock("fencing", "second"));
+  }
+
+  /**
+   * Readers share a read/write lock, a writer needs it free, and a waiting writer keeps new
+   * readers out until it gives up
+   *
+   * @author Variazioni
+   */
+  @Test
+  void waitingWriterKeepsReadersOut() {
+    assertTrue(lock.readLock("rw", "reader", 60, Duration.ZERO));
+    assertTrue(lock.readLock("rw", "other", 60, Duration.ZERO));
+    assertFalse(lock.writeLock("rw", "writer", 60, Duration.ofMillis(20)));
+    assertTrue(lock.readLock("rw", "late", 60, Duration.ZERO));
+
+    CompletableFuture<Boolean> writer = CompletableFuture.supplyAsync(
+        () -> lock.writeLock("rw", "writer", 60, Duration.ofSeconds(5)));
+    while (lock.readLock("rw", "probe", 60, Duration.ZERO)) {
+      // The writer has not registered its intent yet
+      assertTrue(lock.unlock("rw", "probe"));
+    }
+    assertTrue(lock.unlock("rw", "reader"));
+    assertTrue(lock.unlock("rw", "other"));
+    assertTrue(lock.unlock("rw", "late"));
+    assertTrue(writer.join());
+    assertFalse(lock.readLock("rw", "reader", 60, Duration.ZERO));
+    assertTrue(lock.unlock("rw", "writer"));
+  }
+
+  /**
+   * A waiter gets the lock once it is released, and a wait for a release ends with it
+   *
+   * @author Variazioni
+   * @throws Exception
+   */
+  @Test
+  void waiterGetsReleasedLock() throws Exception {
+    assertTrue(lock.lock("wait", "first", 60, Duration.ZERO));
+    CompletableFuture<Boolean> waiter =
+        lock.lockAsync("wait", "second", 60, Duration.ofSeconds(5));
+    assertFalse(waiter.isDone());
+
+    assertTrue(lock.unlock("wait", "first"));
+    assertTrue(waiter.get(5, TimeUnit.SECONDS));
+    assertFalse(lock.waitLockAsync("wait", Duration.ofMillis(20)).get(5, TimeUnit.SECONDS));
+    assertTrue(lock.unlock("wait", "second"));
+    assertTrue(lock.waitLock("wait", Duration.ZERO));
+  }
+
+  /**
+   * A timeout of 0 seconds expires on the next clock tick
+   */
+  private static void sleepPastExpiry() {
+    try {
+      Thread.sleep(2);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
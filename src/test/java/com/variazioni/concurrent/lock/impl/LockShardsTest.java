@@ -0,0 +1,317 @@
+package com.variazioni.concurrent.lock.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import com.variazioni.concurrent.lock.config.LockAutoConfiguration;
+import com.variazioni.concurrent.lock.config.LockDatabaseAutoConfiguration;
+import com.variazioni.concurrent.lock.service.LockRouter;
+import com.variazioni.concurrent.lock.util.AppConst;
+import com.variazioni.concurrent.lock.util.LockIds;
+import com.zaxxer.hikari.HikariDataSource;
+import ch.vorburger.exec.ManagedProcessException;
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+
+/**
+ * Sharded table backend against two embedded MariaDB instances
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+class LockShardsTest {
+
+  private static final String SCHEMA = "doc/create_tables.sql";
+
+  private static final String DATABASE_NAME = "concurrent_lock";
+
+  private static final List<DB> databases = new ArrayList<DB>();
+
+  /** Pools of the checks, one per instance */
+  private static final Map<String, HikariDataSource> dataSources =
+      new HashMap<String, HikariDataSource>();
+
+  private static String first;
+
+  private static String second;
+
+  /**
+   * Start both instances and create the tables
+   *
+   * @author Variazioni
+   * @throws Exception
+   */
+  @BeforeAll
+  static void startDatabases() throws Exception {
+    first = database();
+    second = database();
+  }
+
+  /**
+   * Close the pools and stop both instances
+   *
+   * @author Variazioni
+   * @throws ManagedProcessException
+   */
+  @AfterAll
+  static void stopDatabases() throws ManagedProcessException {
+    for (HikariDataSource dataSource : dataSources.values()) {
+      dataSource.close();
+    }
+    for (DB db : databases) {
+      db.stop();
+    }
+  }
+
+  /**
+   * Every name stays on the same shard across contexts, and both shards get names
+   *
+   * @author Variazioni
+   */
+  @Test
+  void routingIsStable() {
+    Map<String, String> routes = new HashMap<String, String>();
+    try (AnnotationConfigApplicationContext context = open(first + "," + second, "")) {
+      LockShards shards = context.getBean(LockShards.class);
+      for (int i = 0; i < 200; i++) {
+        String lockName = "route-" + i;
+        List<LockShards.Shard> owners = shards.owners(lockName);
+        assertEquals(1, owners.size());
+        routes.put(lockName, owners.get(0).getId());
+      }
+    }
+    assertEquals(new HashSet<String>(Arrays.asList(first, second)),
+        new HashSet<String>(routes.values()));
+
+    try (AnnotationConfigApplicationContext context = open(first + "," + second, "")) {
+      LockShards shards = context.getBean(LockShards.class);
+      LockByDatabase lock = context.getBean(LockByDatabase.class);
+      for (Map.Entry<String, String> route : routes.entrySet()) {
+        assertEquals(route.getValue(), shards.shard(route.getKey()).getId());
+      }
+      String lockName = "route-0";
+      assertTrue(lock.lock(lockName, "holder", 60, Duration.ZERO));
+      String owner = routes.get(lockName);
+      assertEquals(1, rows(owner, lockName));
+      assertEquals(0, rows(owner.equals(first) ? second : first, lockName));
+      assertTrue(lock.unlock(lockName, "holder"));
+    }
+  }
+
+  /**
+   * A moved name that is held on its new owner is not left taken on its previous owner, and its
+   * fencing token is forgotten
+   *
+   * @author Variazioni
+   */
+  @Test
+  void ownersRollBack() {
+    try (AnnotationConfigApplicationContext context = open(first + "," + second, first)) {
+      String lockName = movedName(context.getBean(LockShards.class));
+      insertHolder(second, lockName, "other");
+
+      LockByDatabase lock = context.getBean(LockByDatabase.class);
+      assertFalse(lock.lock(lockName, "holder", 60, Duration.ZERO));
+      assertEquals(0, rows(first, lockName));
+      assertEquals(AppConst.NO_FENCING_TOKEN,
+          context.getBean(FencingTokens.class).get(lockName, "holder"));
+      delete(second, lockName);
+    }
+  }
+
+  /**
+   * Tokens of a moved name keep growing when the new shard starts above the old one
+   *
+   * @author Variazioni
+   */
+  @Test
+  void fencingTokensGrowAcrossShards() {
+    String lockName;
+    long before;
+    try (AnnotationConfigApplicationContext context = open(first, "")) {
+      try (AnnotationConfigApplicationContext moved = open(first + "," + second, first)) {
+        lockName = movedName(moved.getBean(LockShards.class));
+      }
+      LockByDatabase lock = context.getBean(LockByDatabase.class);
+      assertTrue(lock.lock(lockName, "holder", 60, Duration.ZERO));
+      before = lock.getFencingToken(lockName, "holder");
+      assertTrue(lock.unlock(lockName, "holder"));
+    }
+
+    // As LockShards asks before any change of the URL list
+    long highest = new JdbcTemplate(dataSource(first)).queryForObject(
+        "SELECT COALESCE(MAX(`FENCING_TOKEN`), 0) FROM RESOURCE_LOCK", Long.class);
+    new JdbcTemplate(dataSource(second)).execute(
+        "ALTER TABLE RESOURCE_LOCK AUTO_INCREMENT = " + (Math.max(highest, before) + 1));
+
+    long draining;
+    try (AnnotationConfigApplicationContext context = open(first + "," + second, first)) {
+      LockByDatabase lock = context.getBean(LockByDatabase.class);
+      assertTrue(lock.lock(lockName, "holder", 60, Duration.ZERO));
+      draining = lock.getFencingToken(lockName, "holder");
+      assertTrue(lock.unlock(lockName, "holder"));
+    }
+    assertTrue(draining > before);
+
+    try (AnnotationConfigApplicationContext context = open(first + "," + second, "")) {
+      LockByDatabase lock = context.getBean(LockByDatabase.class);
+      assertTrue(lock.lock(lockName, "holder", 60, Duration.ZERO));
+      assertTrue(lock.getFencingToken(lockName, "holder") > draining);
+      assertTrue(lock.unlock(lockName, "holder"));
+    }
+  }
+
+  /**
+   * The token of a lease that ran out is forgotten, the token of a live one is kept
+   *
+   * @author Variazioni
+   */
+  @Test
+  void lostFencingTokensAreEvicted() {
+    try (AnnotationConfigApplicationContext context = open(first + "," + second, "")) {
+      LockByDatabase lock = context.getBean(LockByDatabase.class);
+      FencingTokens fencingTokens = context.getBean(FencingTokens.class);
+      LockShards shards = context.getBean(LockShards.class);
+      assertTrue(lock.lock("lost", "holder", 60, Duration.ZERO));
+      assertTrue(lock.lock("kept", "holder", 60, Duration.ZERO));
+      new JdbcTemplate(dataSource(shards.shard("lost").getId())).update(
+          "UPDATE RESOURCE_LOCK SET `EXPIRED_TIME` = DATE_SUB(NOW(), INTERVAL 1 SECOND) WHERE `LOCK_ID` = ?",
+          LockIds.of("lost"));
+
+      assertEquals(1, fencingTokens.evictLost(0, 1));
+      assertEquals(AppConst.NO_FENCING_TOKEN, fencingTokens.get("lost", "holder"));
+      assertTrue(fencingTokens.get("kept", "holder") != AppConst.NO_FENCING_TOKEN);
+      assertTrue(lock.unlock("kept", "holder"));
+      delete(shards.shard("lost").getId(), "lost");
+    }
+  }
+
+  /**
+   * A name owned by the first shard before the second one was added and by the second one after
+   */
+  private static String movedName(LockShards shards) {
+    for (int i = 0;; i++) {
+      String lockName = "moved-" + i;
+      List<LockShards.Shard> owners = shards.owners(lockName);
+      if (owners.size() == 2) {
+        assertEquals(first, owners.get(0).getId());
+        assertEquals(second, owners.get(1).getId());
+        return lockName;
+      }
+    }
+  }
+
+  private static void insertHolder(String url, String lockName, String lockHolder) {
+    new JdbcTemplate(dataSource(url)).update(
+        "INSERT INTO RESOURCE_LOCK (`LOCK_KEY`,`LOCK_ID`,`LOCK_NAME`,`LOCK_HOLDER`,`EXPIRED_TIME`) VALUES ('SINGLE_LOCK', ?, ?, ?, DATE_ADD(NOW(), INTERVAL 60 SECOND))",
+        LockIds.of(lockName), lockName, lockHolder);
+  }
+
+  private static void delete(String url, String lockName) {
+    new JdbcTemplate(dataSource(url)).update("DELETE FROM RESOURCE_LOCK WHERE `LOCK_ID` = ?",
+        LockIds.of(lockName));
+  }
+
+  private static int rows(String url, String lockName) {
+    return new JdbcTemplate(dataSource(url)).queryForObject(
+        "SELECT COUNT(*) FROM RESOURCE_LOCK WHERE `LOCK_ID` = ?", Integer.class,
+        LockIds.of(lockName));
+  }
+
+  /**
+   * Context of the table backend with the given shards, the first instance is the DataSource
+   */
+  private static AnnotationConfigApplicationContext open(String urls, String previousUrls) {
+    AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("concurrent.lock.backend.default", LockRouter.DATABASE);
+    properties.put("concurrent.lock.reaper.enabled", "false");
+    properties.put("concurrent.lock.shards.urls", urls);
+    properties.put("concurrent.lock.shards.previous-urls", previousUrls);
+    properties.put("concurrent.lock.shards.username", "root");
+    properties.put("test.database.url", first);
+    context.getEnvironment().getPropertySources()
+        .addFirst(new MapPropertySource("test", properties));
+    context.register(DatabaseConfiguration.class, LockDatabaseAutoConfiguration.class,
+        LockAutoConfiguration.class);
+    context.refresh();
+    return context;
+  }
+
+  private static String database() throws ManagedProcessException, IOException {
+    DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder().setPort(0);
+    DB db = DB.newEmbeddedDB(config.build());
+    db.start();
+    databases.add(db);
+    db.createDB(DATABASE_NAME);
+    String url = config.getURL(DATABASE_NAME) + "?useSSL=false";
+
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource(url));
+    String schema = new String(Files.readAllBytes(Paths.get(SCHEMA)), StandardCharsets.UTF_8);
+    for (String sql : schema.split(";")) {
+      if (!sql.trim().isEmpty()) {
+        jdbcTemplate.execute(sql);
+      }
+    }
+    return url;
+  }
+
+  private static synchronized HikariDataSource dataSource(String url) {
+    return dataSources.computeIfAbsent(url, k -> {
+      HikariDataSource dataSource = new HikariDataSource();
+      dataSource.setJdbcUrl(url);
+      dataSource.setUsername("root");
+      dataSource.setMaximumPoolSize(4);
+      return dataSource;
+    });
+  }
+
+  /**
+   * Database beans of the first instance
+   */
+  @Configuration
+  static class DatabaseConfiguration {
+
+    @Bean(destroyMethod = "close")
+    public HikariDataSource dataSource(@Value("${test.database.url}") String url) {
+      HikariDataSource dataSource = new HikariDataSource();
+      dataSource.setJdbcUrl(url);
+      dataSource.setUsername("root");
+      dataSource.setMaximumPoolSize(8);
+      return dataSource;
+    }
+
+    @Bean
+    public JdbcTemplate jdbcTemplate(DataSource dataSource) {
+      return new JdbcTemplate(dataSource);
+    }
+
+    @Bean
+    public PlatformTransactionManager transactionManager(DataSource dataSource) {
+      return new DataSourceTransactionManager(dataSource);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package com.variazioni.concurrent.lock.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lock server over the wire, with plain blocking sockets as clients
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+class LockServerTest {
+
+  private static LockServer server;
+
+  /**
+   * Start the server on a free port
+   *
+   * @author Variazioni
+   * @throws IOException
+   */
+  @BeforeAll
+  static void startServer() throws IOException {
+    server = new LockServer("127.0.0.1", 0);
+    server.start();
+  }
+
+  /**
+   * Stop the server
+   *
+   * @author Variazioni
+   */
+  @AfterAll
+  static void stopServer() {
+    server.stop();
+  }
+
+  /**
+   * A queued lock is granted by a pushed reply once the holder unlocks, pipelined requests are
+   * answered in the order they complete
+   *
+   * @author Variazioni
+   * @throws IOException
+   */
+  @Test
+  void queuedLockIsPushed() throws IOException {
+    try (SocketChannel holder = connect(); SocketChannel waiting = connect()) {
+      send(holder, 1, LockProtocol.OP_LOCK, "pushed", "a", 10000);
+      assertReply(holder, 1, LockProtocol.STATUS_TRUE);
+      send(waiting, 2, LockProtocol.OP_LOCK, "pushed", "b", 10000);
+      send(waiting, 3, LockProtocol.OP_COUNT, "pushed", null, 0);
+      assertEquals(1L, assertReply(waiting, 3, LockProtocol.STATUS_TRUE));
+
+      send(holder, 4, LockProtocol.OP_UNLOCK, "pushed", "a", 0);
+      assertReply(holder, 4, LockProtocol.STATUS_TRUE);
+      assertReply(waiting, 2, LockProtocol.STATUS_TRUE);
+      send(waiting, 5, LockProtocol.OP_UNLOCK, "pushed", "b", 0);
+      assertReply(waiting, 5, LockProtocol.STATUS_TRUE);
+    }
+  }
+
+  /**
+   * The locks of a client are released when its connection closes
+   *
+   * @author Variazioni
+   * @throws IOException
+   */
+  @Test
+  void closedConnectionReleasesLocks() throws IOException {
+    try (SocketChannel waiting = connect()) {
+      try (SocketChannel crashed = connect()) {
+        send(crashed, 1, LockProtocol.OP_LOCK, "closed", "a", 10000);
+        assertReply(crashed, 1, LockProtocol.STATUS_TRUE);
+        send(waiting, 2, LockProtocol.OP_LOCK, "closed", "b", 10000);
+        send(waiting, 3, LockProtocol.OP_COUNT, "closed", null, 0);
+        assertEquals(1L, assertReply(waiting, 3, LockProtocol.STATUS_TRUE));
+      }
+      assertReply(waiting, 2, LockProtocol.STATUS_TRUE);
+      send(waiting, 4, LockProtocol.OP_UNLOCK, "closed", "b", 0);
+      assertReply(waiting, 4, LockProtocol.STATUS_TRUE);
+    }
+  }
+
+  /**
+   * WAIT is answered when the name is free
+   *
+   * @author Variazioni
+   * @throws IOException
+   */
+  @Test
+  void waitIsAnsweredWhenFree() throws IOException {
+    try (SocketChannel holder = connect(); SocketChannel watcher = connect()) {
+      send(holder, 1, LockProtocol.OP_LOCK, "watched", "a", 0);
+      assertReply(holder, 1, LockProtocol.STATUS_TRUE);
+      send(watcher, 2, LockProtocol.OP_WAIT, "watched", null, 10000);
+      send(holder, 3, LockProtocol.OP_UNLOCK, "watched", "a", 0);
+      assertReply(holder, 3, LockProtocol.STATUS_TRUE);
+      assertReply(watcher, 2, LockProtocol.STATUS_TRUE);
+    }
+  }
+
+  private static SocketChannel connect() throws IOException {
+    return SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+  }
+
+  private static void send(SocketChannel channel, int id, byte op, String lockName,
+      String lockKey, long waitMillis) throws IOException {
+    ByteBuffer request = LockProtocol.request(id, op, lockName, lockKey,
+        LockProtocol.MODE_EXCLUSIVE, 1, 60, waitMillis);
+    while (request.hasRemaining()) {
+      channel.write(request);
+    }
+  }
+
+  /**
+   * Read the next reply, check it answers the request and return its value
+   */
+  private static long assertReply(SocketChannel channel, int id, byte status) throws IOException {
+    ByteBuffer response = ByteBuffer.allocate(4 + LockProtocol.RESPONSE_LENGTH);
+    while (response.hasRemaining()) {
+      assertTrue(channel.read(response) >= 0);
+    }
+    response.flip();
+    assertEquals(LockProtocol.RESPONSE_LENGTH, response.getInt());
+    assertEquals(id, response.getInt());
+    assertEquals(status, response.get());
+    return response.getLong();
+  }
+}
@@ -0,0 +1,209 @@
+package com.variazioni.concurrent.lock.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lock state of the server, driven directly without a selector
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+class LockTableTest {
+
+  private final LockTable table = new LockTable();
+
+  /**
+   * Waiters are granted in arrival order and a newcomer does not overtake a queued writer
+   *
+   * @author Variazioni
+   */
+  @Test
+  void grantsInArrivalOrder() {
+    Client first = new Client();
+    Client second = new Client();
+    Client third = new Client();
+    table.lock(first, 1, "order", "a", LockProtocol.MODE_EXCLUSIVE, 1, 60, 0);
+    table.lock(second, 2, "order", "b", LockProtocol.MODE_EXCLUSIVE, 1, 60, 10000);
+    table.lock(third, 3, "order", "c", LockProtocol.MODE_EXCLUSIVE, 1, 60, 10000);
+    assertTrue(first.granted(1));
+    assertNull(second.status(2));
+    assertNull(third.status(3));
+
+    table.unlock(first, 4, "order", "a");
+    assertTrue(first.granted(4));
+    assertTrue(second.granted(2));
+    assertNull(third.status(3));
+
+    table.unlock(second, 5, "order", "b");
+    assertTrue(third.granted(3));
+  }
+
+  /**
+   * A reader arriving behind a queued writer waits even though the readers before it hold
+   *
+   * @author Variazioni
+   */
+  @Test
+  void queuedWriterKeepsNewReadersOut() {
+    Client reader = new Client();
+    Client writer = new Client();
+    Client late = new Client();
+    table.lock(reader, 1, "rw", "r1", LockProtocol.MODE_READ, 0, 60, 0);
+    table.lock(writer, 2, "rw", "w", LockProtocol.MODE_WRITE, 0, 60, 10000);
+    table.lock(late, 3, "rw", "r2", LockProtocol.MODE_READ, 0, 60, 0);
+    assertTrue(reader.granted(1));
+    assertNull(writer.status(2));
+    assertFalse(late.granted(3));
+
+    table.unlock(reader, 4, "rw", "r1");
+    assertTrue(writer.granted(2));
+  }
+
+  /**
+   * Closing a connection releases its holds and grants the next waiter
+   *
+   * @author Variazioni
+   */
+  @Test
+  void closingReleasesHolds() {
+    Client crashed = new Client();
+    Client waiting = new Client();
+    table.lock(crashed, 1, "close", "a", LockProtocol.MODE_EXCLUSIVE, 1, 60, 0);
+    table.lock(crashed, 2, "close-other", "a", LockProtocol.MODE_SHARED, 2, 60, 0);
+    table.lock(waiting, 3, "close", "b", LockProtocol.MODE_EXCLUSIVE, 1, 60, 10000);
+    assertNull(waiting.status(3));
+
+    crashed.open = false;
+    table.closed(crashed);
+    assertTrue(waiting.granted(3));
+    table.count(waiting, 4, "close-other");
+    assertEquals(0L, waiting.value(4));
+  }
+
+  /**
+   * A holder whose lease ran out is dropped and the queued waiter is granted on the tick
+   *
+   * @author Variazioni
+   * @throws InterruptedException
+   */
+  @Test
+  void expiredHoldersAreDropped() throws InterruptedException {
+    Client holder = new Client();
+    Client waiting = new Client();
+    table.lock(holder, 1, "expire", "a", LockProtocol.MODE_EXCLUSIVE, 1, 1, 0);
+    table.lock(waiting, 2, "expire", "b", LockProtocol.MODE_EXCLUSIVE, 1, 60, 10000);
+    assertNull(waiting.status(2));
+
+    Thread.sleep(1100);
+    table.tick();
+    assertTrue(waiting.granted(2));
+    table.extend(holder, 3, "expire", "a", 60);
+    assertFalse(holder.granted(3));
+  }
+
+  /**
+   * A waiter whose deadline passed is answered false on the tick
+   *
+   * @author Variazioni
+   * @throws InterruptedException
+   */
+  @Test
+  void waitDeadlinePasses() throws InterruptedException {
+    Client holder = new Client();
+    Client waiting = new Client();
+    table.lock(holder, 1, "deadline", "a", LockProtocol.MODE_EXCLUSIVE, 1, 60, 0);
+    table.lock(waiting, 2, "deadline", "b", LockProtocol.MODE_EXCLUSIVE, 1, 60, 50);
+    assertNull(waiting.status(2));
+
+    Thread.sleep(80);
+    table.tick();
+    assertFalse(waiting.granted(2));
+  }
+
+  /**
+   * WAIT replies at once for a free name, when the last holder leaves, or false at its deadline
+   *
+   * @author Variazioni
+   * @throws InterruptedException
+   */
+  @Test
+  void waitRepliesWhenFree() throws InterruptedException {
+    Client holder = new Client();
+    Client watcher = new Client();
+    table.await(watcher, 1, "wait", 10000);
+    assertTrue(watcher.granted(1));
+
+    table.lock(holder, 2, "wait", "a", LockProtocol.MODE_SHARED, 2, 60, 0);
+    table.lock(holder, 3, "wait", "b", LockProtocol.MODE_SHARED, 2, 60, 0);
+    table.await(watcher, 4, "wait", 10000);
+    table.unlock(holder, 5, "wait", "a");
+    assertNull(watcher.status(4));
+    table.unlock(holder, 6, "wait", "b");
+    assertTrue(watcher.granted(4));
+
+    table.lock(holder, 7, "wait", "a", LockProtocol.MODE_SHARED, 2, 60, 0);
+    table.await(watcher, 8, "wait", 50);
+    Thread.sleep(80);
+    table.tick();
+    assertFalse(watcher.granted(8));
+  }
+
+  /**
+   * Fencing tokens grow with every grant and a table started later goes on above them
+   *
+   * @author Variazioni
+   * @throws InterruptedException
+   */
+  @Test
+  void fencingTokensGrowAcrossRestarts() throws InterruptedException {
+    Client client = new Client();
+    table.lock(client, 1, "token", "a", LockProtocol.MODE_EXCLUSIVE, 1, 60, 0);
+    table.unlock(client, 2, "token", "a");
+    table.lock(client, 3, "token", "a", LockProtocol.MODE_EXCLUSIVE, 1, 60, 0);
+    assertTrue(client.value(3) > client.value(1));
+
+    // No restart is quicker than a millisecond
+    Thread.sleep(2);
+    LockTable restarted = new LockTable();
+    restarted.lock(client, 4, "token", "a", LockProtocol.MODE_EXCLUSIVE, 1, 60, 0);
+    assertTrue(client.value(4) > client.value(3));
+  }
+
+  /**
+   * Replies of one connection by request id
+   */
+  private static class Client implements LockTable.Replier {
+    private final Map<Integer, Byte> statuses = new HashMap<Integer, Byte>();
+    private final Map<Integer, Long> values = new HashMap<Integer, Long>();
+    private boolean open = true;
+
+    @Override
+    public void reply(int id, byte status, long value) {
+      statuses.put(id, status);
+      values.put(id, value);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    private Byte status(int id) {
+      return statuses.get(id);
+    }
+
+    private boolean granted(int id) {
+      return statuses.get(id) == LockProtocol.STATUS_TRUE;
+    }
+
+    private long value(int id) {
+      return values.get(id);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package com.variazioni.concurrent.lock.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import com.variazioni.concurrent.lock.CompositeLockHandle;
+import com.variazioni.concurrent.lock.LockHandle;
+import com.variazioni.concurrent.lock.impl.LockByMemory;
+import com.variazioni.concurrent.lock.util.AppConst;
+
+/**
+ * Hold counts of the current thread
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+class LockHoldsTest {
+
+  /**
+   * Only the outermost release returns the lockKey, the nested ones just count down
+   *
+   * @author Variazioni
+   */
+  @Test
+  void nestedHoldsCountDown() {
+    assertFalse(LockHolds.reenter(LockHolds.EXCLUSIVE, "nested"));
+    LockHolds.acquired(LockHolds.EXCLUSIVE, "nested", "key");
+    assertTrue(LockHolds.reenter(LockHolds.EXCLUSIVE, "nested"));
+    assertTrue(LockHolds.reenter(LockHolds.EXCLUSIVE, "nested"));
+    assertEquals("key", LockHolds.lockKey("nested"));
+
+    assertNull(LockHolds.release(LockHolds.EXCLUSIVE, "nested"));
+    assertNull(LockHolds.release(LockHolds.EXCLUSIVE, "nested"));
+    assertEquals("key", LockHolds.release(LockHolds.EXCLUSIVE, "nested"));
+    assertNull(LockHolds.lockKey("nested"));
+    assertNull(LockHolds.release(LockHolds.EXCLUSIVE, "nested"));
+    assertFalse(LockHolds.reenter(LockHolds.EXCLUSIVE, "nested"));
+  }
+
+  /**
+   * Each mode of a lock name is counted apart, releasing by name takes the strongest first
+   *
+   * @author Variazioni
+   */
+  @Test
+  void modesAreCountedApart() {
+    LockHolds.acquired(LockHolds.READ, "modes", "reader");
+    assertFalse(LockHolds.reenter(LockHolds.WRITE, "modes"));
+    LockHolds.acquired(LockHolds.WRITE, "modes", "writer");
+    assertTrue(LockHolds.reenter(LockHolds.WRITE, "modes"));
+    assertEquals("writer", LockHolds.lockKey("modes"));
+
+    assertEquals(1, LockHolds.release("modes"));
+    assertEquals(0, LockHolds.release("modes"));
+    assertEquals("reader", LockHolds.lockKey("modes"));
+    assertEquals(0, LockHolds.release("modes"));
+    assertEquals(-1, LockHolds.release("modes"));
+  }
+
+  /**
+   * The fencing token of the lock entered last is the current one, until it is released
+   *
+   * @author Variazioni
+   */
+  @Test
+  void currentFencingTokenFollowsNesting() {
+    assertEquals(AppConst.NO_FENCING_TOKEN, LockHolds.currentFencingToken());
+    LockHolds.acquired(LockHolds.EXCLUSIVE, "outer", "key", 7);
+    LockHolds.acquired(LockHolds.SHARED, "inner", "key", 9);
+    assertEquals(9, LockHolds.currentFencingToken());
+    assertEquals(7, LockHolds.fencingToken("outer"));
+
+    assertTrue(LockHolds.reenter(LockHolds.EXCLUSIVE, "outer"));
+    assertEquals(7, LockHolds.currentFencingToken());
+    assertNull(LockHolds.release(LockHolds.EXCLUSIVE, "outer"));
+    assertEquals(9, LockHolds.currentFencingToken());
+
+    assertEquals("key", LockHolds.release(LockHolds.SHARED, "inner"));
+    assertEquals(7, LockHolds.currentFencingToken());
+    assertEquals("key", LockHolds.release(LockHolds.EXCLUSIVE, "outer"));
+    assertEquals(AppConst.NO_FENCING_TOKEN, LockHolds.currentFencingToken());
+  }
+
+  /**
+   * A handle released on another thread leaves the hold, the last one also unlocks, and the owner
+   * thread forgets the hold the next time it looks
+   *
+   * @author Variazioni
+   */
+  @Test
+  void handleLeavesFromAnotherThread() {
+    LockByMemory lock = new LockByMemory();
+    assertTrue(lock.lock("handle", "key", 60, Duration.ZERO));
+    LockHolds.acquired(LockHolds.EXCLUSIVE, "handle", "key");
+    LockHandle outer = LockHolds.handle(lock, LockHolds.EXCLUSIVE, "handle");
+    assertTrue(LockHolds.reenter(LockHolds.EXCLUSIVE, "handle"));
+    LockHandle inner = LockHolds.handle(lock, LockHolds.EXCLUSIVE, "handle");
+
+    assertTrue(CompletableFuture.supplyAsync(inner::release).join());
+    assertEquals(1, lock.locksCount("handle"));
+    assertTrue(CompletableFuture.supplyAsync(outer::release).join());
+    assertEquals(0, lock.locksCount("handle"));
+    assertFalse(outer.release());
+
+    assertNull(LockHolds.lockKey("handle"));
+    assertFalse(LockHolds.reenter(LockHolds.EXCLUSIVE, "handle"));
+    assertEquals(-1, LockHolds.release("handle"));
+  }
+
+  /**
+   * A composite handle covers the held names only and unlocks those whose last hold it leaves
+   *
+   * @author Variazioni
+   */
+  @Test
+  void handleAllUnlocksLastHolds() {
+    LockByMemory lock = new LockByMemory();
+    assertTrue(lock.lock("all-a", "key", 60, Duration.ZERO));
+    assertTrue(lock.lock("all-b", "key", 60, Duration.ZERO));
+    LockHolds.acquired(LockHolds.EXCLUSIVE, "all-a", "key");
+    LockHolds.acquired(LockHolds.EXCLUSIVE, "all-b", "key");
+    assertTrue(LockHolds.reenter(LockHolds.EXCLUSIVE, "all-b"));
+
+    CompositeLockHandle handle =
+        LockHolds.handleAll(lock, Arrays.asList("all-a", "all-b", "all-c"));
+    assertEquals(Arrays.asList("all-a", "all-b"), handle.getLockNames());
+    assertTrue(handle.release());
+    assertEquals(0, lock.locksCount("all-a"));
+    assertEquals(1, lock.locksCount("all-b"));
+    assertNull(LockHolds.lockKey("all-a"));
+
+    assertEquals("key", LockHolds.release(LockHolds.EXCLUSIVE, "all-b"));
+    assertTrue(lock.unlock("all-b", "key"));
+  }
+}
@@ -0,0 +1,168 @@
+package com.variazioni.concurrent.lock.wait;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Asynchronous waiters on the shared scheduler threads
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+class LockWaitSchedulerTest {
+
+  /** Slow retries, so only a wake or a deadline makes a waiter go on in time */
+  private static final WaitStrategy SLOW = new FixedWaitStrategy(10, TimeUnit.SECONDS);
+
+  private LockWaitScheduler scheduler;
+
+  /**
+   * Fresh scheduler per test
+   *
+   * @author Variazioni
+   */
+  @BeforeEach
+  void createScheduler() {
+    scheduler = new LockWaitScheduler(2, 16, SLOW);
+  }
+
+  /**
+   * A free lock is acquired by the first attempt
+   *
+   * @author Variazioni
+   * @throws Exception
+   */
+  @Test
+  void freeLockIsAcquiredAtOnce() throws Exception {
+    CompletableFuture<Boolean> future =
+        scheduler.submit("free", () -> true, () -> {}, Duration.ofSeconds(5));
+    assertTrue(future.get(5, TimeUnit.SECONDS));
+  }
+
+  /**
+   * A waiter that never gets the lock completes with false at its deadline, after trying
+   *
+   * @author Variazioni
+   * @throws Exception
+   */
+  @Test
+  void deadlineCompletesWithFalse() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    CompletableFuture<Boolean> future = scheduler.submit("taken", () -> {
+      attempts.incrementAndGet();
+      return false;
+    }, () -> {}, Duration.ofMillis(50));
+    assertFalse(future.get(5, TimeUnit.SECONDS));
+    assertTrue(attempts.get() >= 1);
+  }
+
+  /**
+   * A wake probes the waiters at once instead of at their next retry, in their queue order
+   *
+   * @author Variazioni
+   * @throws Exception
+   */
+  @Test
+  void wakeProbesWaitersInOrder() throws Exception {
+    AtomicBoolean free = new AtomicBoolean();
+    List<Integer> order = new CopyOnWriteArrayList<Integer>();
+    List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+    for (int i = 0; i < 3; i++) {
+      int waiter = i;
+      futures.add(scheduler.submit("woken", () -> {
+        // The head takes the lock, which is released again right away
+        if (!free.compareAndSet(true, false)) {
+          return false;
+        }
+        order.add(waiter);
+        free.set(true);
+        return true;
+      }, () -> {}, Duration.ofSeconds(30)));
+    }
+    Thread.sleep(50);
+    assertFalse(futures.get(0).isDone());
+
+    free.set(true);
+    scheduler.wake("woken");
+    for (CompletableFuture<Boolean> future : futures) {
+      assertTrue(future.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(3, order.size());
+    assertEquals(0, (int) order.get(0));
+    assertEquals(1, (int) order.get(1));
+    assertEquals(2, (int) order.get(2));
+  }
+
+  /**
+   * A release watch completes when woken and does not hold up the waiters for the lock
+   *
+   * @author Variazioni
+   * @throws Exception
+   */
+  @Test
+  void watchIsWokenByRelease() throws Exception {
+    AtomicBoolean released = new AtomicBoolean();
+    CompletableFuture<Boolean> watch =
+        scheduler.watch("watched", released::get, Duration.ofSeconds(30), null);
+    CompletableFuture<Boolean> waiter =
+        scheduler.submit("watched", () -> true, () -> {}, Duration.ofSeconds(5));
+    assertTrue(waiter.get(5, TimeUnit.SECONDS));
+    assertFalse(watch.isDone());
+
+    released.set(true);
+    scheduler.wake("watched");
+    assertTrue(watch.get(5, TimeUnit.SECONDS));
+  }
+
+  /**
+   * A lock acquired for a waiter that was cancelled during the attempt is undone
+   *
+   * @author Variazioni
+   * @throws Exception
+   */
+  @Test
+  void cancelledWaiterIsUndone() throws Exception {
+    CompletableFuture<Boolean> undone = new CompletableFuture<Boolean>();
+    CompletableFuture<CompletableFuture<Boolean>> submitted =
+        new CompletableFuture<CompletableFuture<Boolean>>();
+    CompletableFuture<Boolean> future = scheduler.submit("cancelled", () -> {
+      // The caller gives up while the lock is being taken
+      submitted.join().cancel(false);
+      return true;
+    }, () -> undone.complete(true), Duration.ofSeconds(5));
+    submitted.complete(future);
+    assertTrue(undone.get(5, TimeUnit.SECONDS));
+    assertTrue(future.isCancelled());
+  }
+
+  /**
+   * An attempt that throws completes its future with the exception
+   *
+   * @author Variazioni
+   * @throws Exception
+   */
+  @Test
+  void failedAttemptCompletesExceptionally() throws Exception {
+    IllegalStateException failure = new IllegalStateException("down");
+    CompletableFuture<Boolean> future = scheduler.submit("failing", () -> {
+      throw failure;
+    }, () -> {}, Duration.ofSeconds(5));
+    ExecutionException thrown =
+        assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+    assertSame(failure, thrown.getCause());
+  }
+}
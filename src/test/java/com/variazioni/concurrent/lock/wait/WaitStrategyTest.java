@@ -0,0 +1,107 @@
+package com.variazioni.concurrent.lock.wait;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Waiting strategies between two acquisition attempts
+ *
+ * @author Variazioni
+ * @date 2021/07/18
+ */
+class WaitStrategyTest {
+
+  /**
+   * The fixed strategy always pauses the same interval
+   *
+   * @author Variazioni
+   */
+  @Test
+  void fixedKeepsInterval() {
+    WaitStrategy strategy = new FixedWaitStrategy(50, TimeUnit.MILLISECONDS);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(50), strategy.nextDelay("fixed", 0));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(50), strategy.nextDelay("fixed", 100));
+  }
+
+  /**
+   * Backoff spins first, then doubles its pause with jitter in [delay/2, delay] up to the cap
+   *
+   * @author Variazioni
+   */
+  @Test
+  void backoffDoublesUpToCap() {
+    WaitStrategy strategy = new BackoffWaitStrategy(2, 10, 80, TimeUnit.MILLISECONDS);
+    assertEquals(0, strategy.nextDelay("backoff", 0));
+    assertEquals(0, strategy.nextDelay("backoff", 1));
+    long delay = TimeUnit.MILLISECONDS.toNanos(10);
+    for (int attempt = 2; attempt < 10; attempt++) {
+      for (int i = 0; i < 100; i++) {
+        assertBetween(delay / 2, delay, strategy.nextDelay("backoff", attempt));
+      }
+      delay = Math.min(delay * 2, TimeUnit.MILLISECONDS.toNanos(80));
+    }
+    // The shift is bounded, so a long wait never overflows
+    assertBetween(TimeUnit.MILLISECONDS.toNanos(40), TimeUnit.MILLISECONDS.toNanos(80),
+        strategy.nextDelay("backoff", Integer.MAX_VALUE));
+  }
+
+  /**
+   * Backoff rejects parameters it cannot follow
+   *
+   * @author Variazioni
+   */
+  @Test
+  void backoffRejectsInvalidParameters() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new BackoffWaitStrategy(-1, 10, 80, TimeUnit.MILLISECONDS));
+    assertThrows(IllegalArgumentException.class,
+        () -> new BackoffWaitStrategy(0, 0, 80, TimeUnit.MILLISECONDS));
+    assertThrows(IllegalArgumentException.class,
+        () -> new BackoffWaitStrategy(0, 100, 80, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Waiters of one lock name get probe slots at least the minimum interval apart, other lock
+   * names have their own schedule
+   *
+   * @author Variazioni
+   */
+  @Test
+  void rateLimitSpacesSlotsPerName() {
+    WaitStrategy strategy = new RateLimitedWaitStrategy(new FixedWaitStrategy(0, TimeUnit.SECONDS),
+        100);
+    long interval = TimeUnit.MILLISECONDS.toNanos(10);
+    long start = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      long delay = strategy.nextDelay("limited", 0);
+      // The i-th slot is i intervals after the first one, which is not before start
+      assertTrue(delay >= i * interval - (System.nanoTime() - start));
+      assertTrue(delay <= i * interval);
+    }
+    assertTrue(strategy.nextDelay("other", 0) < interval);
+    assertThrows(IllegalArgumentException.class,
+        () -> new RateLimitedWaitStrategy(new FixedWaitStrategy(0, TimeUnit.SECONDS), 0));
+  }
+
+  /**
+   * Each policy creates its strategy
+   *
+   * @author Variazioni
+   */
+  @Test
+  void policyCreatesStrategy() {
+    assertTrue(WaitPolicy.FIXED.create(4, 5, 100, 10) instanceof FixedWaitStrategy);
+    assertTrue(WaitPolicy.BACKOFF.create(4, 5, 100, 10) instanceof BackoffWaitStrategy);
+    assertTrue(WaitPolicy.RATE_LIMITED.create(4, 5, 100, 10) instanceof RateLimitedWaitStrategy);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100),
+        WaitPolicy.FIXED.create(4, 5, 100, 10).nextDelay("policy", 0));
+    assertEquals(0, WaitPolicy.BACKOFF.create(4, 5, 100, 10).nextDelay("policy", 3));
+  }
+
+  private static void assertBetween(long min, long max, long actual) {
+    assertTrue(actual >= min && actual <= max, actual + " not in [" + min + ", " + max + "]");
+  }
+}